@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+# benchmark the menu operations against a database built by sql/scripts/create_db.sh
+# (they write to it, so use a scratch copy). Pass operation names to run only those;
+# tune with -Damazon.bench.threads, warmupMillis, measureMillis, out, baseline, tolerance in JAVA_OPTS.
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar AmazonBenchmark $USER"_project_phase_3_DB" $PGPORT $USER "$@"
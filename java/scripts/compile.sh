@@ -3,7 +3,7 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Amazon.java
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
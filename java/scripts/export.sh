@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+# export the rows added since the last run to gzipped CSV files under the given directory
+# (default: export/). Pass table names after it to export only those; tune with
+# -Damazon.export.fetchSize, gapMillis, maxGaps, maxOpenFiles in JAVA_OPTS.
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar DataExporter $USER"_project_phase_3_DB" $PGPORT $USER ${1:-export} "${@:2}"
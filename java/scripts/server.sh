@@ -0,0 +1,8 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+# serve the HTTP/JSON API, on port 8080 unless another one is given
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar AmazonServer $USER"_project_phase_3_DB" $PGPORT $USER ${1:-8080}
@@ -10,18 +10,22 @@
  *
  */
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.lang.Math;
 
 /**
@@ -31,11 +35,69 @@ import java.lang.Math;
  */
 public class Amazon {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by all sessions.
+   private ConnectionPool _pool = null;
+
+   // true when this session created the pool and is responsible for closing it
+   private boolean _ownsPool = false;
+
+   // delivers NOTIFY events to the in-memory caches below
+   private ChangeNotifier _notifier = null;
+
+   // in-memory spatial index of store locations
+   private StoreIndex _stores = null;
+
+   // in-memory map of store ids to their manager and location
+   private StoreDirectory _directory = null;
+
+   // chooses the warehouse of a supply request
+   private WarehouseRouter _warehouses = null;
+
+   // read-through cache of the Product table
+   private ProductCatalog _catalog = null;
+
+   // sessions of the users that logged in, with their managed stores
+   private SessionCache _sessions = null;
+
+   // writes the ProductUpdates audit trail in batches, null when the trigger writes it
+   private AuditWriter _audit = null;
+
+   // the store operations, which the menus below are a client of
+   private AmazonService _service = null;
+
+   // takes orders in memory and writes them behind, null unless amazon.inventory is set
+   private InventoryEngine _inventory = null;
+
+   // restocks products in the background, null unless amazon.replenish is set
+   private ReplenishmentScheduler _replenisher = null;
+
+   // latency, row and error counts of the statements run by the helpers below
+   private QueryMetrics _metrics = null;
+
+   // empty parameter list for the non-parameterized query helpers
+   private static final Object[] NO_PARAMS = new Object[0];
+
+   // rows fetched per round trip by the streaming helpers
+   private int _fetchSize = Integer.getInteger("amazon.fetchSize", 500);
+
+   // name of the cursor executeQueryStreaming declares, one at a time per connection
+   private static final String CURSOR = "amazon_rows";
+
+   // customers may only order from stores within this distance
+   public static final double STORE_RADIUS = 30.0;
+
+   // outcomes of submitOrder() other than a new order number, see place_order() in triggers.sql
+   public static final int ORDER_STORE_NOT_FOUND = -1;
+   public static final int ORDER_OUT_OF_RANGE = -2;
+   public static final int ORDER_NO_SUCH_PRODUCT = -3;
+   public static final int ORDER_INSUFFICIENT_STOCK = -4;
+   public static final int ORDER_INVALID_UNITS = -5;
+
+   // rows shown per page by the menus that page through long lists
+   private static final int PAGE_SIZE = Integer.getInteger("amazon.cli.pageSize", 20);
 
    // Keep track of the current user id
-   private String currentUser = null;
+   private int currentUser = -1;
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -58,8 +120,75 @@ public class Amazon {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // create the shared connection pool
+         this._pool = new ConnectionPool(url, user, passwd,
+               Integer.getInteger("amazon.pool.maxSize", 32),
+               Long.getLong("amazon.pool.maxWaitMillis", 30000L),
+               Long.getLong("amazon.pool.idleTimeoutMillis", 600000L),
+               Long.getLong("amazon.pool.maxLifetimeMillis", 1800000L),
+               Integer.getInteger("amazon.pool.statementCacheSize", 64));
+         this._ownsPool = true;
+
+         // amazon.audit.mode is sync (the trigger writes each row), async or group
+         String auditMode = System.getProperty("amazon.audit.mode", "sync");
+         if (!auditMode.equalsIgnoreCase("sync")) {
+            this._pool.setInitSql(AuditWriter.SESSION_SETTING);
+            this._audit = new AuditWriter(this._pool,
+                  auditMode.equalsIgnoreCase("group") ? AuditWriter.Mode.GROUP_COMMIT : AuditWriter.Mode.ASYNC,
+                  Integer.getInteger("amazon.audit.queueSize", 10000),
+                  Integer.getInteger("amazon.audit.batchSize", 500),
+                  Long.getLong("amazon.audit.flushMillis", 200L));
+         }
+
+         // obtain a physical connection up front so a bad setup fails fast
+         this._pool.release(this._pool.borrow());
+
+         // statement metrics, also readable through JMX
+         this._metrics = new QueryMetrics(!"false".equals(System.getProperty("amazon.metrics")),
+               !"false".equals(System.getProperty("amazon.metrics.bytes")),
+               Long.getLong("amazon.metrics.slowMillis", 200L));
+         this._metrics.register();
+
+         // load the in-memory caches and keep them current
+         this._notifier = new ChangeNotifier(this._pool, Long.getLong("amazon.notify.pollMillis", 500L));
+         this._stores = new StoreIndex(this);
+         this._notifier.listen(StoreIndex.CHANNEL, this._stores);
+         this._stores.load();
+         // before the session cache, so sessions reloaded after a change see the new managers
+         this._directory = new StoreDirectory(this);
+         this._notifier.listen(StoreIndex.CHANNEL, this._directory);
+         this._directory.load();
+         this._warehouses = new WarehouseRouter(this,
+               Double.parseDouble(System.getProperty("amazon.supply.unitsPerArea", "0.1")),
+               Long.getLong("amazon.supply.windowMillis", 3600000L));
+         this._warehouses.load();
+         this._catalog = new ProductCatalog(this, this._notifier, Integer.getInteger("amazon.catalog.maxStores", 1024));
+         this._sessions = new SessionCache(this, Integer.getInteger("amazon.session.maxSessions", 10000),
+               Long.getLong("amazon.session.tokenIdleMillis", 1800000L));
+         this._notifier.listen(StoreIndex.CHANNEL, this._sessions);
+         if (Boolean.getBoolean("amazon.inventory"))
+            this._inventory = new InventoryEngine(this,
+                  new File(System.getProperty("amazon.inventory.journal", "amazon-journal")),
+                  !"false".equals(System.getProperty("amazon.inventory.fsync")),
+                  Long.getLong("amazon.inventory.syncMillis", 0L),
+                  Integer.getInteger("amazon.inventory.segmentBytes", 64 * 1024 * 1024),
+                  Integer.getInteger("amazon.inventory.queueSize", 100000),
+                  Integer.getInteger("amazon.inventory.batchSize", 1000),
+                  Long.getLong("amazon.inventory.flushMillis", 20L),
+                  Integer.getInteger("amazon.inventory.numberBlock", 1000));
+         this._service = new AmazonService(this);
+         if (Boolean.getBoolean("amazon.replenish"))
+            this._replenisher = new ReplenishmentScheduler(this,
+                  Long.getLong("amazon.replenish.intervalMillis", 60000L),
+                  Long.getLong("amazon.replenish.windowMillis", 86400000L),
+                  Long.getLong("amazon.replenish.leadTimeMillis", 86400000L),
+                  Long.getLong("amazon.replenish.coverMillis", 604800000L),
+                  Integer.getInteger("amazon.replenish.safetyUnits", 10),
+                  Integer.getInteger("amazon.replenish.maxUnits", 1000),
+                  Integer.getInteger("amazon.replenish.maxOrders", 5000),
+                  Integer.getInteger("amazon.replenish.maxProducts", 500),
+                  Integer.getInteger("amazon.replenish.maxStores", 20),
+                  Integer.getInteger("amazon.replenish.reserveConnections", 2));
          System.out.println("Done");
       } catch (Exception e) {
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -68,6 +197,115 @@ public class Amazon {
       } // end catch
    }// end Amazon
 
+   /**
+    * Creates a new session that shares the connection pool and caches of an
+    * existing one. They are closed by the session that created them.
+    *
+    * @param parent the session to share the pool and caches with
+    */
+   public Amazon(Amazon parent) {
+      this._pool = parent._pool;
+      this._fetchSize = parent._fetchSize;
+      this._metrics = parent._metrics;
+      this._notifier = parent._notifier;
+      this._stores = parent._stores;
+      this._directory = parent._directory;
+      this._warehouses = parent._warehouses;
+      this._catalog = parent._catalog;
+      this._sessions = parent._sessions;
+      this._audit = parent._audit;
+      this._inventory = parent._inventory;
+      this._replenisher = parent._replenisher;
+      this._service = new AmazonService(this);
+   }// end Amazon
+
+   /**
+    * Sets the number of rows fetched per round trip by the streaming
+    * helpers. Zero lets the driver buffer whole results.
+    *
+    * @param fetchSize rows per round trip
+    */
+   public void setFetchSize(int fetchSize) {
+      this._fetchSize = fetchSize;
+   }
+
+   /**
+    * @return the connection pool used by this session
+    */
+   public ConnectionPool getPool() {
+      return this._pool;
+   }
+
+   /**
+    * @return the statement metrics of the query helpers
+    */
+   public QueryMetrics getMetrics() {
+      return this._metrics;
+   }
+
+   /**
+    * @return the write-behind inventory engine, null when orders go straight to the database
+    */
+   public InventoryEngine getInventory() {
+      return this._inventory;
+   }
+
+   /**
+    * @return the replenishment scheduler, null when it is not running
+    */
+   public ReplenishmentScheduler getReplenisher() {
+      return this._replenisher;
+   }
+
+   /**
+    * @return the in-memory store location index used by this session
+    */
+   public StoreIndex getStoreIndex() {
+      return this._stores;
+   }
+
+   /**
+    * @return the in-memory store directory used by this session
+    */
+   public StoreDirectory getStoreDirectory() {
+      return this._directory;
+   }
+
+   /**
+    * @return the warehouse router used by this session
+    */
+   public WarehouseRouter getWarehouseRouter() {
+      return this._warehouses;
+   }
+
+   /**
+    * @return the product catalog cache used by this session
+    */
+   public ProductCatalog getCatalog() {
+      return this._catalog;
+   }
+
+   /**
+    * @return the session cache used by this session
+    */
+   public SessionCache getSessions() {
+      return this._sessions;
+   }
+
+   /**
+    * @return the batched audit writer, or null when the trigger writes the audit trail
+    */
+   public AuditWriter getAuditWriter() {
+      return this._audit;
+   }
+
+   /**
+    * @return the store operations bound to this session
+    */
+   public AmazonService getService() {
+      return this._service;
+   }
+
    // Check if the input string is an integer
    public static boolean isInteger(String s) {
       try {
@@ -92,19 +330,28 @@ public class Amazon {
       return true;
    }
 
+   // Ask whether to show the next page of a list
+   public static boolean showNextPage(String pageToken) throws IOException {
+      if (pageToken == null)
+         return false;
+      System.out.print("\tPress Enter for more, or q to stop: ");
+      String input = in.readLine();
+      return input != null && !input.trim().equalsIgnoreCase("q");
+   }
+
    // Get store ID from the user
-   public static String getStoreID(Amazon esql) {
-      String store_id = null;
+   public static int getStoreID(Amazon esql) {
+      int store_id;
       while (true) {
          System.out.print("\tEnter store id: ");
          try {
-            store_id = in.readLine();
-            if (!isInteger(store_id)) {
+            String input = in.readLine();
+            if (!isInteger(input)) {
                System.out.println("Invalid input. Try again!");
                continue;
             }
-            String query = String.format("SELECT * FROM Store WHERE storeid = %s", store_id);
-            if (esql.executeQuery(query) == 0) {
+            store_id = Integer.parseInt(input);
+            if (!esql._service.storeExists(store_id)) {
                System.out.println("Store does not exist. Try again!");
                continue;
             }
@@ -130,17 +377,39 @@ public class Amazon {
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate(String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
+   public int executeUpdate(String sql) throws SQLException {
+      return executeUpdate(sql, NO_PARAMS);
+   }// end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate(sql);
+   /**
+    * Method to execute a parameterized update SQL statement. The statement
+    * is prepared once per pooled connection and reused afterwards.
+    *
+    * @param sql    the input SQL string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate(String sql, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      PooledConnection conn = this._pool.borrow();
+      long borrowed = System.nanoTime();
+      int rowCount = -1;
+      try {
+         // fetch the cached statement object
+         PreparedStatement stmt = conn.prepare(sql);
+         bind(stmt, params);
 
-      // close the instruction
-      stmt.close();
+         // issues the update instruction
+         rowCount = stmt.executeUpdate();
+         return rowCount;
+      } finally {
+         this._pool.release(conn);
+         this._metrics.record(sql, borrowed - start, System.nanoTime() - borrowed, rowCount, 0);
+      }
    }// end executeUpdate
 
    /**
@@ -153,38 +422,43 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
-
-      /*
-       ** obtains the metadata object for the returned result set. The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()) {
-         if (outputHeader) {
-            for (int i = 1; i <= numCol; i++) {
-               System.out.print(rsmd.getColumnName(i) + "\t");
+      return executeQueryAndPrintResult(query, NO_PARAMS);
+   }// end executeQueryAndPrintResult
+
+   /**
+    * Parameterized form of executeQueryAndPrintResult. Rows are streamed to
+    * standard out with the default fetch size, so large listings are never
+    * held in memory.
+    *
+    * @param query  the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult(String query, Object... params) throws SQLException {
+      return executeQueryStreaming(query, this._fetchSize, new RowHandler() {
+         private int numCol = -1;
+
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            if (numCol < 0) {
+               /*
+                ** obtains the metadata object for the returned result set. The metadata
+                ** contains row and column info.
+                */
+               ResultSetMetaData rsmd = rs.getMetaData();
+               numCol = rsmd.getColumnCount();
+               for (int i = 1; i <= numCol; i++) {
+                  System.out.print(rsmd.getColumnName(i) + "\t");
+               }
+               System.out.println();
             }
+            for (int i = 1; i <= numCol; ++i)
+               System.out.print(rs.getString(i) + "\t");
             System.out.println();
-            outputHeader = false;
+            return true;
          }
-         for (int i = 1; i <= numCol; ++i)
-            System.out.print(rs.getString(i) + "\t");
-         System.out.println();
-         ++rowCount;
-      } // end while
-      stmt.close();
-      return rowCount;
-   }// end executeQuery
+      }, params);
+   }// end executeQueryAndPrintResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT). This
@@ -196,87 +470,336 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
-
-      /*
-       ** obtains the metadata object for the returned result set. The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
-      int rowCount = 0;
+      return executeQueryAndReturnResult(query, NO_PARAMS);
+   }// end executeQueryAndReturnResult
 
+   /**
+    * Parameterized form of executeQueryAndReturnResult.
+    *
+    * @param query  the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult(String query, Object... params) throws SQLException {
       // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result = new ArrayList<List<String>>();
-      while (rs.next()) {
-         List<String> record = new ArrayList<String>();
-         for (int i = 1; i <= numCol; ++i)
-            record.add(rs.getString(i));
-         result.add(record);
-      } // end while
-      stmt.close();
+      final List<List<String>> result = new ArrayList<List<String>>();
+      executeQueryStreaming(query, 0, new RowHandler() {
+         private int numCol = -1;
+
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            if (numCol < 0)
+               numCol = rs.getMetaData().getColumnCount();
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i = 1; i <= numCol; ++i)
+               record.add(rs.getString(i));
+            result.add(record);
+            return true;
+         }
+      }, params);
       return result;
    }// end executeQueryAndReturnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT). This
-    * method issues the query to the DBMS and returns the number of results
+    * method issues the query to the DBMS and returns the number of results.
+    * It reads every row; use executeExists to check whether a row exists.
     *
     * @param query the input query string
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
+      return executeQuery(query, NO_PARAMS);
+   }
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
+   /**
+    * Parameterized form of executeQuery.
+    *
+    * @param query  the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery(String query, Object... params) throws SQLException {
+      // iterates through the result set and count nuber of results.
+      return executeQueryStreaming(query, 0, new RowHandler() {
+         public boolean handleRow(ResultSet rs) {
+            return true;
+         }
+      }, params);
+   }// end executeQuery
 
-      int rowCount = 0;
+   /**
+    * Method to check whether a query returns any row. Only the first row is
+    * read, so the query should be a probe such as
+    * SELECT 1 FROM ... WHERE ... LIMIT 1 that the server can stop early.
+    *
+    * @param query  the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return true when the query returned at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean executeExists(String query, Object... params) throws SQLException {
+      return executeQueryStreaming(query, 0, new RowHandler() {
+         public boolean handleRow(ResultSet rs) {
+            return false;
+         }
+      }, params) > 0;
+   }// end executeExists
 
-      // iterates through the result set and count nuber of results.
-      while (rs.next()) {
-         rowCount++;
-      } // end while
-      stmt.close();
-      return rowCount;
-   }
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * each row to a callback as it arrives. With a positive fetch size the
+    * query is declared as a cursor inside a read-only transaction and read
+    * back with FETCH, fetchSize rows per round trip, so memory use stays
+    * constant however large the result is. The bundled 7.3 driver has no
+    * setFetchSize, hence the explicit DECLARE/FETCH, and only a SELECT can
+    * be declared. A fetch size of zero runs the query directly and lets the
+    * driver buffer the whole result, which is cheaper for small lookups.
+    *
+    * @param query     the input query string with ? placeholders
+    * @param fetchSize rows fetched per round trip, or 0 for the whole result at once
+    * @param handler   the callback receiving each row
+    * @param params    the values bound to the placeholders, in order
+    * @return the number of rows handed to the callback
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryStreaming(String query, int fetchSize, RowHandler handler, Object... params)
+         throws SQLException {
+      long start = System.nanoTime();
+      PooledConnection conn = this._pool.borrow();
+      long borrowed = System.nanoTime();
+      boolean cursor = fetchSize > 0;
+      boolean countBytes = this._metrics.isCountingBytes();
+      int[] counts = new int[1];
+      long[] bytes = new long[1];
+      boolean done = false;
+      try {
+         if (!cursor) {
+            PreparedStatement stmt = conn.prepare(query);
+            bind(stmt, params);
+
+            // issues the query instruction
+            handleRows(stmt.executeQuery(), handler, countBytes, counts, bytes);
+         } else {
+            Connection c = conn.getConnection();
+            // cursors only exist inside a transaction
+            c.setAutoCommit(false);
+            // DECLARE and FETCH cannot be server-prepared, so they skip the statement cache
+            PreparedStatement declare = c.prepareStatement("DECLARE " + CURSOR + " NO SCROLL CURSOR FOR " + query);
+            try {
+               bind(declare, params);
+               declare.execute();
+            } finally {
+               declare.close();
+            }
+            Statement fetch = c.createStatement();
+            try {
+               String sql = "FETCH " + fetchSize + " FROM " + CURSOR;
+               while (true) {
+                  int before = counts[0];
+                  if (!handleRows(fetch.executeQuery(sql), handler, countBytes, counts, bytes))
+                     break;
+                  if (counts[0] - before < fetchSize)
+                     break; // the last, partial batch
+               }
+            } finally {
+               fetch.close();
+            }
+            // ends the transaction, which closes the cursor
+            c.commit();
+         }
+         done = true;
+         return counts[0];
+      } finally {
+         // release() rolls back and restores autocommit if the commit was not reached
+         this._pool.release(conn);
+         this._metrics.record(query, borrowed - start, System.nanoTime() - borrowed, done ? counts[0] : -1,
+               bytes[0]);
+      }
+   }// end executeQueryStreaming
+
+   // hands the rows of a result to the callback, returning false when it asked to stop
+   private static boolean handleRows(ResultSet rs, RowHandler handler, boolean countBytes, int[] counts,
+         long[] bytes) throws SQLException {
+      try {
+         int numCol = countBytes ? rs.getMetaData().getColumnCount() : 0;
+         while (rs.next()) {
+            ++counts[0];
+            for (int i = 1; i <= numCol; i++) {
+               // the driver hands back the row's own buffer for non-binary columns
+               byte[] value = rs.getBytes(i);
+               if (value != null)
+                  bytes[0] += value.length;
+            }
+            if (!handler.handleRow(rs))
+               return false;
+         } // end while
+         return true;
+      } finally {
+         rs.close();
+      }
+   }// end handleRows
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and map
+    * every row to a typed object. Numeric columns are read with the
+    * primitive accessors, so callers get typed values instead of strings to
+    * parse. The bundled 7.3 driver still builds and parses a String for
+    * each of those cells internally.
+    *
+    * @param query  the input query string with ? placeholders
+    * @param mapper maps one row to an object
+    * @param params the values bound to the placeholders, in order
+    * @return the mapped rows, in result order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> executeQueryForList(String query, final RowMapper<T> mapper, Object... params)
+         throws SQLException {
+      final List<T> result = new ArrayList<T>();
+      executeQueryStreaming(query, 0, new RowHandler() {
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            result.add(mapper.map(rs));
+            return true;
+         }
+      }, params);
+      return result;
+   }// end executeQueryForList
+
+   /**
+    * Same as executeQueryForList but maps only the first row.
+    *
+    * @param query  the input query string with ? placeholders
+    * @param mapper maps one row to an object
+    * @param params the values bound to the placeholders, in order
+    * @return the first mapped row, or null when the query returned no rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T executeQueryForObject(String query, final RowMapper<T> mapper, Object... params)
+         throws SQLException {
+      final List<T> result = new ArrayList<T>(1);
+      executeQueryStreaming(query, 0, new RowHandler() {
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            result.add(mapper.map(rs));
+            return false;
+         }
+      }, params);
+      return result.isEmpty() ? null : result.get(0);
+   }// end executeQueryForObject
+
+   /**
+    * Method to execute a query returning a single integer, such as a count
+    * or a key, without boxing it.
+    *
+    * @param query   the input query string with ? placeholders
+    * @param missing the value returned when the query returns no rows
+    * @param params  the values bound to the placeholders, in order
+    * @return the first column of the first row, or missing
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryForInt(String query, int missing, Object... params) throws SQLException {
+      final int[] result = new int[] { missing };
+      executeQueryStreaming(query, 0, new RowHandler() {
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            result[0] = rs.getInt(1);
+            return false;
+         }
+      }, params);
+      return result[0];
+   }// end executeQueryForInt
+
+   /**
+    * Binds the given values to the placeholders of a prepared statement,
+    * using the typed setter matching each value's class.
+    *
+    * @param stmt   the statement to bind
+    * @param params the values bound to the placeholders, in order
+    * @throws java.sql.SQLException when a value could not be bound
+    */
+   static void bind(PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; i++) {
+         Object param = params[i];
+         if (param == null)
+            stmt.setNull(i + 1, Types.VARCHAR);
+         else if (param instanceof Integer)
+            stmt.setInt(i + 1, ((Integer) param).intValue());
+         else if (param instanceof Long)
+            stmt.setLong(i + 1, ((Long) param).longValue());
+         else if (param instanceof Double)
+            stmt.setDouble(i + 1, ((Double) param).doubleValue());
+         else if (param instanceof String)
+            stmt.setString(i + 1, (String) param);
+         else if (param instanceof Timestamp)
+            stmt.setTimestamp(i + 1, (Timestamp) param);
+         else
+            stmt.setObject(i + 1, param);
+      }
+   }// end bind
+
+   /**
+    * Places an order through the place_order() stored function. The range
+    * check, the conditional stock decrement and the order insert run in a
+    * single transaction and a single round trip, so concurrent orders can
+    * never oversell a product.
+    *
+    * @param customerId the ordering customer
+    * @param storeId    the store to order from
+    * @param product    the product name
+    * @param units      the number of units to order
+    * @return the new order number, or one of the negative ORDER_* codes
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int submitOrder(int customerId, int storeId, String product, int units) throws SQLException {
+      return executeQueryForInt("SELECT place_order(?, ?, ?, ?, ?)", ORDER_STORE_NOT_FOUND, customerId, storeId,
+            product, units, STORE_RADIUS);
+   }// end submitOrder
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys. currval is local to a
+    * database session, so with pooled connections this only reports a value
+    * when the sequence was advanced on the connection that gets borrowed here.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement();
-
-      ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')", sequence));
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+      PooledConnection conn = this._pool.borrow();
+      try {
+         PreparedStatement stmt = conn.prepare("Select currval(?)");
+         stmt.setString(1, sequence);
+         ResultSet rs = stmt.executeQuery();
+         try {
+            if (rs.next())
+               return rs.getInt(1);
+            return -1;
+         } finally {
+            rs.close();
+         }
+      } finally {
+         this._pool.release(conn);
+      }
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to close the connection pool if this session created it.
     */
    public void cleanup() {
-      try {
-         if (this._connection != null) {
-            this._connection.close();
-         } // end if
-      } catch (SQLException e) {
-         // ignored.
-      } // end try
+      if (this._pool != null && this._ownsPool) {
+         if (this._replenisher != null)
+            this._replenisher.close();
+         // before the audit writer, which records the products it writes
+         if (this._inventory != null)
+            this._inventory.close();
+         if (this._notifier != null)
+            this._notifier.close();
+         if (this._audit != null)
+            this._audit.close();
+         this._pool.close();
+      } // end if
    }// end cleanup
 
    /**
@@ -322,6 +845,8 @@ public class Amazon {
                   break;
                case 2:
                   authorisedUser = LogIn(esql);
+                  if (authorisedUser == null)
+                     authorisedUser = "";
                   break;
                case 9:
                   keepon = false;
@@ -489,14 +1014,12 @@ public class Amazon {
          String latitude = in.readLine(); // enter lat value between [0.0, 100.0]
          System.out.print("\tEnter longitude: "); // enter long value between [0.0, 100.0]
          String longitude = in.readLine();
+         if (!isDouble(latitude) || !isDouble(longitude)) {
+            System.out.println("Invalid input. Try again!");
+            return;
+         }
 
-         String type = "Customer";
-
-         String query = String.format(
-               "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name,
-               password, latitude, longitude, type);
-
-         esql.executeUpdate(query);
+         esql._service.createUser(name, password, Double.parseDouble(latitude), Double.parseDouble(longitude));
          System.out.println("User successfully created!");
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -515,16 +1038,15 @@ public class Amazon {
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         int userNum = esql.executeQuery(query);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         // Get the user type
-         String userType = result.get(0).get(5);
+         Session session = esql._service.logIn(name, password);
+         if (session == null) {
+            System.out.println("Invalid name or password.");
+            return null;
+         }
          // Save the user id
-         esql.currentUser = result.get(0).get(0);
-         if (userNum > 0)
-            return userType;
-         return null;
+         esql.currentUser = session.userId;
+         // Return the user type
+         return session.type;
       } catch (Exception e) {
          System.err.println(e.getMessage());
          return null;
@@ -535,53 +1057,16 @@ public class Amazon {
 
    public static void viewStores(Amazon esql) {
       try {
-         // Get all stores
-         String store_query = "SELECT storeID, latitude, longitude FROM Store";
-         List<List<String>> stores = esql.executeQueryAndReturnResult(store_query);
-
-         // Get current User's latitude and longitude
-         String user_query = String.format("SELECT latitude, longitude FROM Users WHERE userid = %s", esql.currentUser);
-         List<List<String>> user = esql.executeQueryAndReturnResult(user_query);
-         double user_latitude = Double.parseDouble(user.get(0).get(0));
-         double user_longitude = Double.parseDouble(user.get(0).get(1));
-
-         // Stores within 30 miles
-         List<String> valid_store = new ArrayList<String>();
-
-         // iterate through stores
-         for (List<String> record : stores) {
-            // get lattidue and longitude from record
-            String store_id = record.get(0);
-            double store_latitude = Double.parseDouble(record.get(1));
-            double store_longitude = Double.parseDouble(record.get(2));
-
-            // check distance from from user
-            if (30.0 <= calculateDistance(user_latitude, user_longitude, store_latitude, store_longitude)) {
-               // add id to a set
-               valid_store.add(store_id);
-            }
-         }
-
-         String in_stores_set = "";
-
-         for (int i = 0; i < valid_store.size(); i++) {
-            if (i == 0) {
-               in_stores_set += "(";
-            }
-
-            in_stores_set += valid_store.get(i);
-
-            if (i == valid_store.size() - 1) {
-               in_stores_set += ")";
-               continue;
-            }
-
-            in_stores_set += ", ";
+         // Stores within 30 miles of the current user
+         int[] valid_store = esql._service.viewStores(esql.currentUser);
+         if (valid_store.length == 0) {
+            System.out.println("No stores within 30 miles of your location.");
+            return;
          }
 
-         // create/exe query for store ids in the set
-         String valid_stores_query = String.format("SELECT storeID FROM Store WHERE storeID IN %s", in_stores_set);
-         esql.executeQueryAndPrintResult(valid_stores_query);
+         System.out.println("storeid\t");
+         for (int i = 0; i < valid_store.length; i++)
+            System.out.println(valid_store[i] + "\t");
 
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -591,11 +1076,15 @@ public class Amazon {
    public static void viewProducts(Amazon esql) {
       try {
          // Get the Store
-         String store_id = getStoreID(esql);
-         // Get products from the Store with storeid
-         String store_query = String
-               .format("SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = %s", store_id);
-         esql.executeQueryAndPrintResult(store_query);
+         int store_id = getStoreID(esql);
+         System.out.println("productname\tnumberofunits\tpriceperunit\t");
+         String token = null;
+         do {
+            Page<Product> page = esql._service.viewProducts(store_id, token, PAGE_SIZE);
+            for (Product product : page.items)
+               System.out.println(product.productName + "\t" + product.numberOfUnits + "\t" + product.pricePerUnit + "\t");
+            token = page.nextToken;
+         } while (showNextPage(token));
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -603,22 +1092,11 @@ public class Amazon {
 
    public static void placeOrder(Amazon esql) {
       try {
-         // Get the Store's longitude and latitude
-         String store_id = getStoreID(esql);
-         String store_query = String.format("SELECT latitude, longitude FROM Store WHERE storeid = %s", store_id);
-         List<List<String>> store = esql.executeQueryAndReturnResult(store_query);
-         double store_latitude = Double.parseDouble(store.get(0).get(0));
-         double store_longitude = Double.parseDouble(store.get(0).get(1));
-
-         // Get the current user's longitude and latitude
-         String user_query = String.format("SELECT latitude, longitude FROM Users WHERE userid = %s", esql.currentUser);
-         List<List<String>> user = esql.executeQueryAndReturnResult(user_query);
-         double user_latitude = Double.parseDouble(user.get(0).get(0));
-         double user_longitude = Double.parseDouble(user.get(0).get(1));
-
-         // Check if the store is in the valid range of the user
-         if (30.0 > calculateDistance(user_latitude, user_longitude, store_latitude, store_longitude)) {
-            System.out.println("Store not within 30 mile raidus of your location.");
+         // Get the Store ID; its existence is checked by place_order()
+         System.out.print("\tEnter store id: ");
+         String store_id = in.readLine();
+         if (!isInteger(store_id)) {
+            System.out.println("Invalid input. Try again!");
             return;
          }
 
@@ -626,53 +1104,22 @@ public class Amazon {
          System.out.print("\tEnter product name: ");
          String product_name = in.readLine();
 
-         // Get product record from DB
-         String product_query = String.format("SELECT * FROM Product WHERE storeid = %s AND productname = '%s'",
-               store_id,
-               product_name);
-
-         List<List<String>> product = esql.executeQueryAndReturnResult(product_query);
-
-         // Check if the product exists in the store
-         if (product.size() == 0) {
-            System.out.println("Product does not exist in the store.");
-            return;
-         }
-
-         // Get available number of units of product
-         String available_product_units = product.get(0).get(2);
-
          // Get user input for order amount of product
          System.out.print("\tEnter number of units: ");
          String number_of_units = in.readLine();
 
          // Check for valid entry of number of units
-         if (!isInteger(number_of_units)) {
+         if (!isInteger(number_of_units) || Integer.parseInt(number_of_units) <= 0) {
             System.out.println("Invalid input. Try again!");
             return;
          }
 
-         // Check if enough units of products exist to satisfy order
-         if (Integer.parseInt(number_of_units) > Integer.parseInt(available_product_units)) {
-            System.out.println(String.format("Not enough units of %s to complete your order.", product_name));
-            return;
-         }
-
-         // Update Product table for the new units amount based of the current order -- TRIGGER
-         //Integer new_quantity = Integer.parseInt(available_product_units) - Integer.parseInt(number_of_units);
-
-         //String update_query = String.format(
-         //      "UPDATE Product SET numberofunits = %s WHERE storeid = %s AND productname = '%s'",
-         //      Integer.toString(new_quantity), store_id, product_name);
-         //esql.executeUpdate(update_query);
-
-         // Insert new order into DB
-         String insert_query = String.format(
-               "INSERT INTO Orders (customerid, storeid, productname, unitsOrdered, orderTime) VALUES (%s, %s, '%s', %s, CURRENT_DATE)",
-               esql.currentUser, store_id, product_name, Integer.parseInt(number_of_units));
-         esql.executeUpdate(insert_query);
-
+         // Range check, stock reservation and the order insert all happen in one transaction on the server
+         esql._service.placeOrder(esql.currentUser, Integer.parseInt(store_id), product_name,
+               Integer.parseInt(number_of_units));
          System.out.println("Order placed successfully!");
+      } catch (ServiceException e) {
+         System.out.println(e.getMessage());
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -680,11 +1127,15 @@ public class Amazon {
 
    public static void viewRecentOrders(Amazon esql) {
       try {
-         // Get the five most recent orders for the current user
-         String orders_query = String.format(
-               "SELECT productName, unitsOrdered, orderTime FROM Orders WHERE customerID = %s ORDER BY orderTime DESC LIMIT 5",
-               esql.currentUser);
-         esql.executeQueryAndPrintResult(orders_query);
+         // Get the five most recent orders for the current user, then older ones on request
+         System.out.println("productname\tunitsordered\tordertime\t");
+         String token = null;
+         do {
+            Page<Order> page = esql._service.viewOrders(esql.currentUser, token, AmazonService.REPORT_LIMIT);
+            for (Order order : page.items)
+               System.out.println(order.productName + "\t" + order.unitsOrdered + "\t" + order.orderTime + "\t");
+            token = page.nextToken;
+         } while (showNextPage(token));
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -693,33 +1144,12 @@ public class Amazon {
    public static void updateProduct(Amazon esql) {
       try {
          // Get Store ID from the user
-         String store_id = getStoreID(esql);
+         int store_id = getStoreID(esql);
 
-         String ifManager = String.format("SELECT type FROM Users WHERE userid = %s", esql.currentUser);
-         List<List<String>> user_result = esql.executeQueryAndReturnResult(ifManager);
-         if (user_result.get(0).get(0).trim().equals("Manager")) {
-
-            // Check if the user is the manager of the store
-            String storeID_query = String.format("SELECT managerid FROM Store WHERE storeid = %s", store_id);
-            List<List<String>> result = esql.executeQueryAndReturnResult(storeID_query);
-            if (!result.get(0).get(0).equals(esql.currentUser)) {
-               System.out.println("You are not the manager of this store. Try again!");
-               return;
-            }
-         }
          // Get product name from the user
          System.out.print("\tEnter product name: ");
          String product_name = in.readLine();
 
-         // Check if the product exists in the store
-         String product_query = String.format("SELECT * FROM Product WHERE storeid = %s AND productname = '%s'",
-               store_id,
-               product_name);
-         if (esql.executeQuery(product_query) == 0) {
-            System.out.println("Product does not exist in the store.");
-            return;
-         }
-
          // Get new price
          System.out.print("\tEnter new price: ");
          String new_price = in.readLine();
@@ -736,21 +1166,13 @@ public class Amazon {
             return;
          }
 
-         // Update the product
-         String update_query = String.format(
-               "UPDATE Product SET priceperunit = %s, numberofunits = %s WHERE storeid = %s AND productname = '%s'",
-               new_price,
-               new_quantity, store_id, product_name);
-         esql.executeUpdate(update_query);
+         // Managers may only update their own stores; the ProductUpdates row is added by a trigger
+         esql._service.updateProduct(esql.currentUser, store_id, product_name, Double.parseDouble(new_price),
+               Integer.parseInt(new_quantity));
          System.out.println("Product successfully updated!");
 
-         // Insert into ProductUpdates -- TRIGGER
-         // String insert_query = String.format(
-         // "INSERT INTO ProductUpdates (managerID, storeid, productname, updatedOn)
-         // VALUES (%s, %s, '%s', CURRENT_DATE)",
-         // esql.currentUser, store_id, product_name);
-         // esql.executeUpdate(insert_query);
-
+      } catch (ServiceException e) {
+         System.out.println(e.getMessage());
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -759,19 +1181,21 @@ public class Amazon {
    public static void viewRecentUpdates(Amazon esql) {
       try {
          // Get Store ID from the user
-         String store_id = getStoreID(esql);
-
-         String valid_manager = String.format("SELECT managerid FROM Store WHERE storeid = %s", store_id);
-         List<List<String>> result = esql.executeQueryAndReturnResult(valid_manager);
-         if (!result.get(0).get(0).equals(esql.currentUser)) {
-            System.out.println("You are not the manager of this store. Try again!");
-            return;
-         }
-
-         String query = String.format(
-               "SELECT * FROM ProductUpdates WHERE storeid = %s ORDER BY updatedOn DESC LIMIT 5",
-               store_id);
-         esql.executeQueryAndPrintResult(query);
+         int store_id = getStoreID(esql);
+
+         // The five most recent updates, then older ones on request
+         System.out.println("updatenumber\tmanagerid\tstoreid\tproductname\tupdatedon\t");
+         String token = null;
+         do {
+            Page<ProductUpdate> page = esql._service.viewUpdates(esql.currentUser, store_id, token,
+                  AmazonService.REPORT_LIMIT);
+            for (ProductUpdate update : page.items)
+               System.out.println(update.updateNumber + "\t" + update.managerId + "\t" + update.storeId + "\t"
+                     + update.productName + "\t" + update.updatedOn + "\t");
+            token = page.nextToken;
+         } while (showNextPage(token));
+      } catch (ServiceException e) {
+         System.out.println(e.getMessage());
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -780,19 +1204,14 @@ public class Amazon {
    public static void viewPopularProducts(Amazon esql) {
       try {
          // Get Store ID from the user
-         String store_id = getStoreID(esql);
-
-         String valid_manager = String.format("SELECT managerid FROM Store WHERE storeid = %s", store_id);
-         List<List<String>> result = esql.executeQueryAndReturnResult(valid_manager);
-         if (!result.get(0).get(0).equals(esql.currentUser)) {
-            System.out.println("You are not the manager of this store. Try again!");
-            return;
-         }
-
-         String query = String.format(
-               "SELECT productname, SUM(unitsordered) AS total_units_sold FROM Orders WHERE storeid = %s GROUP BY productname ORDER BY total_units_sold DESC LIMIT 5",
-               store_id);
-         esql.executeQueryAndPrintResult(query);
+         int store_id = getStoreID(esql);
+
+         List<StoreProductSales> products = esql._service.viewPopularProducts(esql.currentUser, store_id);
+         System.out.println("productname\ttotal_units_sold\t");
+         for (StoreProductSales sales : products)
+            System.out.println(sales.productName + "\t" + sales.unitsSold + "\t");
+      } catch (ServiceException e) {
+         System.out.println(e.getMessage());
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -801,19 +1220,14 @@ public class Amazon {
    public static void viewPopularCustomers(Amazon esql) {
       try {
          // Get Store ID from the user
-         String store_id = getStoreID(esql);
-
-         String valid_manager = String.format("SELECT managerid FROM Store WHERE storeid = %s", store_id);
-         List<List<String>> result = esql.executeQueryAndReturnResult(valid_manager);
-         if (!result.get(0).get(0).equals(esql.currentUser)) {
-            System.out.println("You are not the manager of this store. Try again!");
-            return;
-         }
-
-         String query = String.format(
-               "SELECT customerid, COUNT(*) AS total_orders FROM Orders WHERE storeid = %s GROUP BY customerid ORDER BY total_orders DESC LIMIT 5",
-               store_id);
-         esql.executeQueryAndPrintResult(query);
+         int store_id = getStoreID(esql);
+
+         List<StoreCustomerOrders> customers = esql._service.viewPopularCustomers(esql.currentUser, store_id);
+         System.out.println("customerid\ttotal_orders\t");
+         for (StoreCustomerOrders orders : customers)
+            System.out.println(orders.customerId + "\t" + orders.orderCount + "\t");
+      } catch (ServiceException e) {
+         System.out.println(e.getMessage());
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -822,28 +1236,12 @@ public class Amazon {
    public static void placeProductSupplyRequests(Amazon esql) {
       try {
          // Get Store ID from the user
-         String store_id = getStoreID(esql);
-
-         String valid_manager = String.format("SELECT managerid FROM Store WHERE storeid = %s", store_id);
-         List<List<String>> result = esql.executeQueryAndReturnResult(valid_manager);
-         if (!result.get(0).get(0).equals(esql.currentUser)) {
-            System.out.println("You are not the manager of this store. Try again!");
-            return;
-         }
+         int store_id = getStoreID(esql);
 
          // Get product name from the user
          System.out.print("\tEnter product name: ");
          String product_name = in.readLine();
 
-         // Check if the product exists in the store
-         String product_query = String.format("SELECT * FROM Product WHERE storeid = %s AND productname = '%s'",
-               store_id,
-               product_name);
-         if (esql.executeQuery(product_query) == 0) {
-            System.out.println("Product does not exist in the store.");
-            return;
-         }
-
          // Get quantity
          System.out.print("\tEnter quantity: ");
          String quantity = in.readLine();
@@ -852,34 +1250,32 @@ public class Amazon {
             return;
          }
 
-         // Get the warehouse id
-         System.out.print("\tEnter warehouse id: ");
+         // Show the cheapest warehouses, then get the warehouse id
+         List<WarehouseRouter.Candidate> candidates = esql._service.rankWarehouses(esql.currentUser, store_id,
+               Integer.parseInt(quantity));
+         System.out.println("warehouseid\tdistance\tcapacityleft\t");
+         for (WarehouseRouter.Candidate candidate : candidates)
+            System.out.println(candidate.warehouseId + "\t" + String.format("%.2f", candidate.distance) + "\t"
+                  + candidate.remaining + "\t");
+         System.out.print("\tEnter warehouse id (blank for the nearest with capacity): ");
          String warehouse_id = in.readLine();
-         if (!isInteger(warehouse_id)) {
-            System.out.println("Invalid input. Try again!");
+         if (warehouse_id == null || warehouse_id.trim().isEmpty()) {
+            SupplyRequest request = esql._service.routeSupplyRequest(esql.currentUser, store_id, product_name,
+                  Integer.parseInt(quantity));
+            System.out.println("Product supply request successfully placed with warehouse " + request.warehouseId + "!");
             return;
          }
-
-         // Check if the warehouse exists
-         String warehouse_query = String.format("SELECT * FROM Warehouse WHERE warehouseid = %s", warehouse_id);
-         if (esql.executeQuery(warehouse_query) == 0) {
-            System.out.println("Warehouse does not exist. Try again!");
+         if (!isInteger(warehouse_id)) {
+            System.out.println("Invalid input. Try again!");
             return;
          }
 
-         // Insert into ProductSupplyRequest
-         String insert_query = String.format(
-               "INSERT INTO ProductSupplyRequests (managerid, storeid, productname, unitsrequested, warehouseid) VALUES (%s, %s, '%s', %s, %s)",
-               esql.currentUser, store_id, product_name, quantity, warehouse_id);
-         esql.executeUpdate(insert_query);
+         esql._service.placeProductSupplyRequest(esql.currentUser, store_id, product_name,
+               Integer.parseInt(quantity), Integer.parseInt(warehouse_id));
          System.out.println("Product supply request successfully placed!");
 
-         // Update the product
-         String update_query = String.format(
-               "UPDATE Product SET numberofunits = numberofunits + %s WHERE storeid = %s AND productname = '%s'",
-               quantity, store_id, product_name);
-         esql.executeUpdate(update_query);
-
+      } catch (ServiceException e) {
+         System.out.println(e.getMessage());
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -890,12 +1286,20 @@ public class Amazon {
          System.out.print("\tEnter user name: ");
          String user_name = in.readLine();
 
-         String query = String.format("SELECT * FROM Users WHERE name = '%s'", user_name);
-         if (esql.executeQuery(query) == 0) {
+         Page<User> page = esql._service.searchUserByName(user_name, null, PAGE_SIZE);
+         if (page.items.isEmpty()) {
             System.out.println("User does not exist.");
             return;
          }
-         esql.executeQueryAndPrintResult(query);
+         System.out.println("userid\tname\tpassword\tlatitude\tlongitude\ttype\t");
+         while (true) {
+            for (User user : page.items)
+               System.out.println(user.userId + "\t" + user.name + "\t" + user.password + "\t" + user.latitude + "\t"
+                     + user.longitude + "\t" + user.type + "\t");
+            if (!showNextPage(page.nextToken))
+               break;
+            page = esql._service.searchUserByName(user_name, page.nextToken, PAGE_SIZE);
+         }
 
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -911,8 +1315,7 @@ public class Amazon {
             return;
          }
 
-         String query = String.format("SELECT * FROM Users WHERE userid = %s", user_id);
-         if (esql.executeQuery(query) == 0) {
+         if (!esql._service.userExists(Integer.parseInt(user_id))) {
             System.out.println("User does not exist.");
             return;
          }
@@ -925,6 +1328,10 @@ public class Amazon {
          String new_latitude = in.readLine();
          System.out.print("\tEnter new longitude: ");
          String new_longitude = in.readLine();
+         if (!isDouble(new_latitude) || !isDouble(new_longitude)) {
+            System.out.println("Invalid input. Try again!");
+            return;
+         }
 
          String new_type = null;
          System.out.println("Choose user type:");
@@ -946,12 +1353,12 @@ public class Amazon {
                return;
          }
 
-         String update_query = String.format(
-               "UPDATE Users SET name = '%s', password = '%s', latitude = %s, longitude = %s, type = '%s' WHERE userid = %s",
-               new_name, new_password, new_latitude, new_longitude, new_type, user_id);
-         esql.executeUpdate(update_query);
+         esql._service.updateUser(Integer.parseInt(user_id), new_name, new_password,
+               Double.parseDouble(new_latitude), Double.parseDouble(new_longitude), new_type);
          System.out.println("User successfully updated!");
 
+      } catch (ServiceException e) {
+         System.out.println(e.getMessage());
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -0,0 +1,477 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Benchmarks the AmazonService call behind each menu operation against
+ * a running database, typically one built by create_db.sh or DataGenerator.
+ * Every operation is run by a number of threads for a warmup period and
+ * then a measurement period, and reported with its throughput, p50/p99
+ * latency and the bytes allocated per operation.
+ *
+ * Results can be saved (amazon.bench.out) and compared against a saved
+ * baseline (amazon.bench.baseline); the run exits with status 1 when an
+ * operation lost more than amazon.bench.tolerance of its throughput or p99.
+ *
+ * The write operations place orders, update products and file supply
+ * requests, so run it against a scratch database.
+ *
+ */
+public class AmazonBenchmark {
+
+   /**
+    * One benchmarked operation, run with inputs drawn from the workload.
+    */
+   interface Operation {
+      void run(Amazon esql, Workload workload, Random random) throws Exception;
+   }
+
+   // a product of a store, with the store's manager
+   static final class Target {
+      final int storeId;
+      final int managerId;
+      final String productName;
+
+      Target(int storeId, int managerId, String productName) {
+         this.storeId = storeId;
+         this.managerId = managerId;
+         this.productName = productName;
+      }
+   }
+
+   // an order a customer can place: the product is carried by one of its nearest stores
+   static final class OrderTarget {
+      final int customerId;
+      final int storeId;
+      final String productName;
+
+      OrderTarget(int customerId, int storeId, String productName) {
+         this.customerId = customerId;
+         this.storeId = storeId;
+         this.productName = productName;
+      }
+   }
+
+   /**
+    * Random samples of the database the operations draw their inputs from.
+    */
+   static final class Workload {
+      final List<User> users;
+      final List<User> customers = new ArrayList<User>();
+      final List<Target> targets;
+      final List<OrderTarget> orders = new ArrayList<OrderTarget>();
+      final List<Integer> warehouses;
+
+      Workload(Amazon esql, int sampleSize) throws SQLException {
+         this.users = esql.executeQueryForList("SELECT " + User.COLUMNS + " FROM Users ORDER BY random() LIMIT ?",
+               User.MAPPER, sampleSize);
+         for (User user : this.users) {
+            if (user.type.equalsIgnoreCase("customer"))
+               this.customers.add(user);
+         }
+         this.targets = esql.executeQueryForList(
+               "SELECT p.storeID, s.managerID, p.productName FROM Product p, Store s WHERE p.storeID = s.storeID ORDER BY random() LIMIT ?",
+               new RowMapper<Target>() {
+                  public Target map(ResultSet rs) throws SQLException {
+                     return new Target(rs.getInt(1), rs.getInt(2), User.trim(rs.getString(3)));
+                  }
+               }, sampleSize);
+         this.warehouses = esql.executeQueryForList("SELECT warehouseID FROM Warehouse ORDER BY random() LIMIT ?",
+               new RowMapper<Integer>() {
+                  public Integer map(ResultSet rs) throws SQLException {
+                     return Integer.valueOf(rs.getInt(1));
+                  }
+               }, sampleSize);
+
+         Random random = new Random(1);
+         for (int i = 0; i < this.customers.size() && this.orders.size() < 1000; i++) {
+            User customer = this.customers.get(i);
+            int[] stores = esql.getStoreIndex().nearest(customer.latitude, customer.longitude, 1);
+            if (stores.length == 0)
+               continue;
+            List<Product> products = esql.getCatalog().getProducts(stores[0]);
+            if (products.isEmpty())
+               continue;
+            Product product = products.get(random.nextInt(products.size()));
+            this.orders.add(new OrderTarget(customer.userId, stores[0], product.productName));
+         }
+         if (this.users.isEmpty() || this.customers.isEmpty() || this.targets.isEmpty()
+               || this.warehouses.isEmpty() || this.orders.isEmpty())
+            throw new IllegalStateException("The database has no data to benchmark, load data/ first");
+      }// end Workload
+
+      static <T> T pick(List<T> list, Random random) {
+         return list.get(random.nextInt(list.size()));
+      }
+   }// end Workload
+
+   // the service call behind each menu operation
+   static final Map<String, Operation> OPERATIONS = new LinkedHashMap<String, Operation>();
+   static {
+      OPERATIONS.put("LogIn", new Operation() {
+         public void run(Amazon esql, Workload workload, Random random) throws Exception {
+            User user = Workload.pick(workload.users, random);
+            esql.getService().logIn(user.name, user.password);
+         }
+      });
+      OPERATIONS.put("viewStores", new Operation() {
+         public void run(Amazon esql, Workload workload, Random random) throws Exception {
+            esql.getService().viewStores(Workload.pick(workload.customers, random).userId);
+         }
+      });
+      OPERATIONS.put("viewProducts", new Operation() {
+         public void run(Amazon esql, Workload workload, Random random) throws Exception {
+            esql.getService().viewProducts(Workload.pick(workload.targets, random).storeId);
+         }
+      });
+      OPERATIONS.put("placeOrder", new Operation() {
+         public void run(Amazon esql, Workload workload, Random random) throws Exception {
+            OrderTarget order = Workload.pick(workload.orders, random);
+            try {
+               esql.getService().placeOrder(order.customerId, order.storeId, order.productName, 1);
+            } catch (ServiceException e) {
+               // running out of stock is part of the workload
+               if (e.getReason() != ServiceException.Reason.INSUFFICIENT_STOCK)
+                  throw e;
+            }
+         }
+      });
+      OPERATIONS.put("placeOrders", new Operation() {
+         public void run(Amazon esql, Workload workload, Random random) throws Exception {
+            // one batch of 100 lines counts as one operation
+            List<OrderLine> lines = new ArrayList<OrderLine>(100);
+            for (int i = 0; i < 100; i++) {
+               OrderTarget order = Workload.pick(workload.orders, random);
+               lines.add(new OrderLine(order.customerId, order.storeId, order.productName, 1));
+            }
+            esql.getService().placeOrders(lines);
+         }
+      });
+      OPERATIONS.put("viewRecentOrders", new Operation() {
+         public void run(Amazon esql, Workload workload, Random random) throws Exception {
+            esql.getService().viewRecentOrders(Workload.pick(workload.customers, random).userId);
+         }
+      });
+      OPERATIONS.put("updateProduct", new Operation() {
+         public void run(Amazon esql, Workload workload, Random random) throws Exception {
+            Target target = Workload.pick(workload.targets, random);
+            // restock while updating so placeOrder keeps finding units
+            esql.getService().updateProduct(target.managerId, target.storeId, target.productName,
+                  1 + random.nextInt(10), 1000);
+         }
+      });
+      OPERATIONS.put("viewPopularProducts", new Operation() {
+         public void run(Amazon esql, Workload workload, Random random) throws Exception {
+            Target target = Workload.pick(workload.targets, random);
+            esql.getService().viewPopularProducts(target.managerId, target.storeId);
+         }
+      });
+      OPERATIONS.put("viewPopularCustomers", new Operation() {
+         public void run(Amazon esql, Workload workload, Random random) throws Exception {
+            Target target = Workload.pick(workload.targets, random);
+            esql.getService().viewPopularCustomers(target.managerId, target.storeId);
+         }
+      });
+      OPERATIONS.put("placeProductSupplyRequests", new Operation() {
+         public void run(Amazon esql, Workload workload, Random random) throws Exception {
+            Target target = Workload.pick(workload.targets, random);
+            esql.getService().placeProductSupplyRequest(target.managerId, target.storeId, target.productName,
+                  1 + random.nextInt(10), Workload.pick(workload.warehouses, random).intValue());
+         }
+      });
+      OPERATIONS.put("searchUserByName", new Operation() {
+         public void run(Amazon esql, Workload workload, Random random) throws Exception {
+            esql.getService().searchUserByName(Workload.pick(workload.users, random).name);
+         }
+      });
+   }
+
+   /**
+    * The measurements of one operation.
+    */
+   static final class Result {
+      final String name;
+      final int threads;
+      final long ops;
+      final long errors;
+      final double opsPerSecond;
+      final double p50Micros;
+      final double p99Micros;
+      // -1 when the JVM cannot measure allocations
+      final double bytesPerOp;
+
+      Result(String name, int threads, long ops, long errors, double opsPerSecond, double p50Micros,
+            double p99Micros, double bytesPerOp) {
+         this.name = name;
+         this.threads = threads;
+         this.ops = ops;
+         this.errors = errors;
+         this.opsPerSecond = opsPerSecond;
+         this.p50Micros = p50Micros;
+         this.p99Micros = p99Micros;
+         this.bytesPerOp = bytesPerOp;
+      }
+   }
+
+   // what each thread measured
+   private static final class Sample {
+      long[] latencies = new long[1 << 16];
+      int count = 0;
+      long errors = 0;
+      long allocated = 0;
+
+      void add(long nanos) {
+         if (count == latencies.length)
+            latencies = Arrays.copyOf(latencies, count * 2);
+         latencies[count++] = nanos;
+      }
+   }
+
+   private final Amazon esql;
+   private final Workload workload;
+   private final int threads;
+   private final long warmupNanos;
+   private final long measureNanos;
+
+   /**
+    * @param esql          the session the benchmark threads share the pool and caches with
+    * @param workload      the samples the operations draw their inputs from
+    * @param threads       the number of threads running each operation
+    * @param warmupMillis  how long each operation runs before measuring
+    * @param measureMillis how long each operation is measured
+    */
+   public AmazonBenchmark(Amazon esql, Workload workload, int threads, long warmupMillis, long measureMillis) {
+      this.esql = esql;
+      this.workload = workload;
+      this.threads = threads;
+      this.warmupNanos = warmupMillis * 1000000L;
+      this.measureNanos = measureMillis * 1000000L;
+   }
+
+   /**
+    * Runs one operation on all threads and collects the measurements.
+    *
+    * @param name      the operation name
+    * @param operation the operation
+    * @return the measurements
+    * @throws InterruptedException when interrupted while waiting for the threads
+    */
+   public Result run(final String name, final Operation operation) throws InterruptedException {
+      final CountDownLatch ready = new CountDownLatch(this.threads);
+      final CountDownLatch go = new CountDownLatch(1);
+      final Sample[] samples = new Sample[this.threads];
+      final long[] window = new long[2];
+      Thread[] workers = new Thread[this.threads];
+      for (int t = 0; t < this.threads; t++) {
+         final int index = t;
+         final Sample sample = new Sample();
+         samples[t] = sample;
+         workers[t] = new Thread(new Runnable() {
+            public void run() {
+               Amazon session = new Amazon(esql);
+               Random random = new Random(index);
+               ready.countDown();
+               try {
+                  go.await();
+               } catch (InterruptedException e) {
+                  return;
+               }
+               // warm up, then measure
+               while (System.nanoTime() < window[0])
+                  runOnce(operation, session, random, null);
+               long before = allocatedBytes();
+               while (System.nanoTime() < window[1])
+                  runOnce(operation, session, random, sample);
+               long after = allocatedBytes();
+               sample.allocated = before < 0 || after < 0 ? -1 : after - before;
+            }
+         }, "bench-" + name + "-" + t);
+         workers[t].start();
+      }
+      ready.await();
+      long start = System.nanoTime();
+      window[0] = start + this.warmupNanos;
+      window[1] = window[0] + this.measureNanos;
+      go.countDown();
+      for (Thread worker : workers)
+         worker.join();
+
+      long ops = 0;
+      long errors = 0;
+      long allocated = 0;
+      for (Sample sample : samples) {
+         ops += sample.count;
+         errors += sample.errors;
+         allocated = allocated < 0 || sample.allocated < 0 ? -1 : allocated + sample.allocated;
+      }
+      long[] latencies = new long[(int) ops];
+      int offset = 0;
+      for (Sample sample : samples) {
+         System.arraycopy(sample.latencies, 0, latencies, offset, sample.count);
+         offset += sample.count;
+      }
+      Arrays.sort(latencies);
+      return new Result(name, this.threads, ops, errors, ops / (this.measureNanos / 1e9),
+            percentile(latencies, 0.50) / 1e3, percentile(latencies, 0.99) / 1e3,
+            allocated < 0 || ops == 0 ? -1 : (double) allocated / ops);
+   }// end run
+
+   private void runOnce(Operation operation, Amazon session, Random random, Sample sample) {
+      long start = System.nanoTime();
+      try {
+         operation.run(session, this.workload, random);
+      } catch (Exception e) {
+         if (sample != null)
+            sample.errors++;
+         return;
+      }
+      if (sample != null)
+         sample.add(System.nanoTime() - start);
+   }
+
+   private static long percentile(long[] sorted, double p) {
+      if (sorted.length == 0)
+         return 0;
+      return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+   }
+
+   // bytes allocated so far by the current thread, or -1 when the JVM does not tell
+   private static long allocatedBytes() {
+      java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (!(bean instanceof com.sun.management.ThreadMXBean))
+         return -1;
+      com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+      if (!sun.isThreadAllocatedMemorySupported() || !sun.isThreadAllocatedMemoryEnabled())
+         return -1;
+      return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+   }
+
+   static String format(Result r) {
+      return String.format("%-28s %7d %10d %12.1f %10.1f %10.1f %10.0f %7d", r.name, r.threads, r.ops,
+            r.opsPerSecond, r.p50Micros, r.p99Micros, r.bytesPerOp, r.errors);
+   }
+
+   static void save(List<Result> results, File file) throws IOException {
+      PrintWriter out = new PrintWriter(new FileWriter(file));
+      try {
+         out.println("name,threads,ops,errors,opsPerSecond,p50Micros,p99Micros,bytesPerOp");
+         for (Result r : results) {
+            out.println(r.name + "," + r.threads + "," + r.ops + "," + r.errors + "," + r.opsPerSecond + ","
+                  + r.p50Micros + "," + r.p99Micros + "," + r.bytesPerOp);
+         }
+      } finally {
+         out.close();
+      }
+   }
+
+   static Map<String, Result> load(File file) throws IOException {
+      Map<String, Result> results = new HashMap<String, Result>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         reader.readLine(); // header
+         String line;
+         while ((line = reader.readLine()) != null) {
+            String[] f = line.split(",");
+            if (f.length < 8)
+               continue;
+            results.put(f[0], new Result(f[0], Integer.parseInt(f[1]), Long.parseLong(f[2]), Long.parseLong(f[3]),
+                  Double.parseDouble(f[4]), Double.parseDouble(f[5]), Double.parseDouble(f[6]),
+                  Double.parseDouble(f[7])));
+         }
+      } finally {
+         reader.close();
+      }
+      return results;
+   }
+
+   /**
+    * Benchmarks the given operations, or all of them.
+    *
+    * @param args the database settings followed by optional operation names
+    */
+   public static void main(String[] args) {
+      if (args.length < 3) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     AmazonBenchmark.class.getName() +
+                     " <dbname> <port> <user> [operation ...]");
+         System.err.println("Operations: " + OPERATIONS.keySet());
+         return;
+      } // end if
+
+      List<String> names = new ArrayList<String>();
+      for (int i = 3; i < args.length; i++) {
+         if (!OPERATIONS.containsKey(args[i])) {
+            System.err.println("Unknown operation " + args[i] + ", expected one of " + OPERATIONS.keySet());
+            return;
+         }
+         names.add(args[i]);
+      }
+      if (names.isEmpty())
+         names.addAll(OPERATIONS.keySet());
+
+      Amazon esql = null;
+      int status = 0;
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+         esql = new Amazon(args[0], args[1], args[2], "");
+         Workload workload = new Workload(esql, Integer.getInteger("amazon.bench.sampleSize", 10000));
+         AmazonBenchmark bench = new AmazonBenchmark(esql, workload, Integer.getInteger("amazon.bench.threads", 1),
+               Long.getLong("amazon.bench.warmupMillis", 5000L), Long.getLong("amazon.bench.measureMillis", 10000L));
+
+         System.out.println(String.format("%-28s %7s %10s %12s %10s %10s %10s %7s", "Benchmark", "Threads", "Ops",
+               "Ops/s", "p50 (us)", "p99 (us)", "B/op", "Errors"));
+         List<Result> results = new ArrayList<Result>();
+         for (String name : names) {
+            Result result = bench.run(name, OPERATIONS.get(name));
+            results.add(result);
+            System.out.println(format(result));
+         }
+
+         String out = System.getProperty("amazon.bench.out");
+         if (out != null)
+            save(results, new File(out));
+
+         String baseline = System.getProperty("amazon.bench.baseline");
+         if (baseline != null) {
+            double tolerance = Double.parseDouble(System.getProperty("amazon.bench.tolerance", "0.2"));
+            Map<String, Result> previous = load(new File(baseline));
+            for (Result result : results) {
+               Result before = previous.get(result.name);
+               if (before == null)
+                  continue;
+               if (result.opsPerSecond < before.opsPerSecond * (1 - tolerance)
+                     || result.p99Micros > before.p99Micros * (1 + tolerance)) {
+                  System.out.println(String.format("REGRESSION %s: %.1f -> %.1f ops/s, p99 %.1f -> %.1f us",
+                        result.name, before.opsPerSecond, result.opsPerSecond, before.p99Micros, result.p99Micros));
+                  status = 1;
+               }
+            }
+         }
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         status = -1;
+      } finally {
+         if (esql != null)
+            esql.cleanup();
+      } // end try
+      if (status != 0)
+         System.exit(status);
+   }// end main
+}// end AmazonBenchmark
@@ -0,0 +1,672 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP/JSON front end to AmazonService, built on the JDK's embedded HTTP
+ * server. Connections are HTTP/1.1 keep-alive, and requests sent back to
+ * back on one connection are answered in order.
+ *
+ * Each request runs on its own virtual thread when the JVM has them (JDK
+ * 21+), otherwise on a fixed pool of amazon.http.threads threads. At most
+ * amazon.http.maxInFlight requests (by default the connection pool size)
+ * are served at once; a request that cannot get a slot within
+ * amazon.http.queueMillis is answered 503 with Retry-After, so overload
+ * sheds requests instead of piling them onto the connection pool.
+ *
+ * POST /login answers an opaque token, and every other request except
+ * creating a customer acts as the user of the token it carries in an
+ * "Authorization: Bearer &lt;token&gt;" header; without a valid one it is
+ * answered 401. Request bodies over amazon.http.maxBodyBytes are answered
+ * 413, and database failures 500 without their details, which go to the
+ * server log.
+ *
+ * Endpoints, all under /api:
+ *   POST /users                          create a customer {name, password, latitude, longitude}
+ *   POST /login                          {name, password}, answers {token, userId, type}
+ *   POST /logout                         revoke the token of the request
+ *   GET  /stores                         stores within 30 miles
+ *   GET  /stores/{id}/products           product list, paged with pageSize/pageToken
+ *   POST /orders                         {storeId, product, units}
+ *   POST /orders/batch                   {lines: [{storeId, product, units}, ...]}, a result per line
+ *   GET  /orders                         recent orders, 5 unless pageSize is given
+ *   POST /stores/{id}/products           update a product {product, price, units}
+ *   GET  /stores/{id}/updates            recent product updates, 5 unless pageSize is given
+ *   GET  /stores/{id}/popular-products
+ *   GET  /stores/{id}/popular-customers
+ *   POST /supply-requests                {storeId, product, units[, warehouseId]}, routed when warehouseId is missing
+ *   POST /supply-requests/batch          {storeId, lines: [{product, units}, ...]}, one shipment per warehouse
+ *   GET  /stores/{id}/warehouses?units=  nearest warehouses with capacity, cheapest first
+ *   GET  /users?name=                    search users by name, admins only, paged
+ *   POST /users/{id}                     update a user {name, password, latitude, longitude, type}, admins only
+ *   GET  /stats                          pool, cache and front end statistics
+ *
+ * GET /metrics, outside /api, serves the query metrics as Prometheus text.
+ *
+ * Paged endpoints take pageSize and pageToken; when there are more rows the
+ * response carries the token of the next page in the X-Next-Page-Token header.
+ *
+ */
+public class AmazonServer {
+
+   // the parsed parts of a request
+   static final class Request {
+      final String method;
+      // path segments after /api
+      final String[] path;
+      final Map<String, String> query;
+      final Map<String, Object> body;
+      // the bearer token, null when none was sent
+      final String token;
+
+      Request(String method, String[] path, Map<String, String> query, Map<String, Object> body, String token) {
+         this.method = method;
+         this.path = path;
+         this.query = query;
+         this.body = body;
+         this.token = token;
+      }
+
+      // body members win over query parameters
+      private Object raw(String name) {
+         Object value = this.body.get(name);
+         if (value == null)
+            value = this.query.get(name);
+         if (value == null)
+            throw new IllegalArgumentException("Missing parameter " + name);
+         return value;
+      }
+
+      // null when the parameter is missing
+      String optional(String name) {
+         Object value = this.body.get(name);
+         if (value == null)
+            value = this.query.get(name);
+         return value == null ? null : value.toString();
+      }
+
+      int integer(String name, int missing) {
+         return optional(name) == null ? missing : integer(name);
+      }
+
+      String string(String name) {
+         return raw(name).toString();
+      }
+
+      double number(String name) {
+         Object value = raw(name);
+         try {
+            return value instanceof Double ? ((Double) value).doubleValue() : Double.parseDouble(value.toString());
+         } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter " + name + " must be a number");
+         }
+      }
+
+      int integer(String name) {
+         double value = number(name);
+         if (value != Math.rint(value) || Math.abs(value) > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Parameter " + name + " must be an integer");
+         return (int) value;
+      }
+   }
+
+   // a response status and JSON body
+   static final class Response {
+      final int status;
+      final String body;
+      // token of the next page of a paged result, null on the last page
+      final String nextPageToken;
+
+      Response(int status, String body) {
+         this(status, body, null);
+      }
+
+      Response(int status, String body, String nextPageToken) {
+         this.status = status;
+         this.body = body;
+         this.nextPageToken = nextPageToken;
+      }
+   }
+
+   // a request answered with an HTTP status rather than by the service
+   static final class HttpError extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      final int status;
+
+      HttpError(int status, String message) {
+         super(message);
+         this.status = status;
+      }
+   }
+
+   private final Amazon esql;
+   private final AmazonService service;
+   private final HttpServer server;
+   private final ExecutorService executor;
+   private final Semaphore slots;
+   private final int maxInFlight;
+   private final long queueMillis;
+   private final int maxBodyBytes;
+
+   // metrics
+   private final AtomicLong served = new AtomicLong();
+   private final AtomicLong rejected = new AtomicLong();
+
+   /**
+    * @param esql         the session whose pool and caches serve the requests
+    * @param port         the HTTP port
+    * @param maxInFlight  the maximum number of requests served at once
+    * @param queueMillis  how long a request may wait for a slot before 503
+    * @param threads      the worker pool size when virtual threads are not available
+    * @param maxBodyBytes the largest request body read
+    * @throws java.io.IOException when the port could not be bound
+    */
+   public AmazonServer(Amazon esql, int port, int maxInFlight, long queueMillis, int threads, int maxBodyBytes)
+         throws IOException {
+      this.esql = esql;
+      this.service = esql.getService();
+      this.slots = new Semaphore(maxInFlight, true);
+      this.maxInFlight = maxInFlight;
+      this.queueMillis = queueMillis;
+      this.maxBodyBytes = maxBodyBytes;
+      this.executor = newExecutor(threads);
+      this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+      this.server.setExecutor(this.executor);
+      this.server.createContext("/api/", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            serve(exchange);
+         }
+      });
+      this.server.createContext("/metrics", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            byte[] bytes = AmazonServer.this.esql.getMetrics().dump().getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+               out.write(bytes);
+            } finally {
+               out.close();
+            }
+         }
+      });
+   }// end AmazonServer
+
+   // a virtual thread per request when the JVM supports it, looked up reflectively to build on older JDKs
+   static ExecutorService newExecutor(int threads) {
+      try {
+         Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) factory.invoke(null);
+      } catch (Exception e) {
+         return Executors.newFixedThreadPool(threads);
+      }
+   }
+
+   public void start() {
+      this.server.start();
+   }
+
+   /**
+    * Stops accepting requests, waiting up to a second for running ones.
+    */
+   public void stop() {
+      this.server.stop(1);
+      this.executor.shutdown();
+   }
+
+   private void serve(HttpExchange exchange) throws IOException {
+      Response response;
+      try {
+         // the body is read before taking a slot, so a slow upload does not hold one
+         Request request = parse(exchange);
+         boolean acquired = false;
+         try {
+            acquired = this.slots.tryAcquire(this.queueMillis, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         if (!acquired) {
+            this.rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, error(503, "Server busy, retry later."));
+            return;
+         }
+         try {
+            response = dispatch(request);
+         } finally {
+            this.slots.release();
+         }
+      } catch (HttpError e) {
+         if (e.status == 401)
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+         response = error(e.status, e.getMessage());
+      } catch (ServiceException e) {
+         response = error(status(e.getReason()), e.getMessage());
+      } catch (IllegalArgumentException e) {
+         response = error(400, e.getMessage());
+      } catch (SQLException e) {
+         // the details stay in the log, they may show the schema or the data
+         System.err.println("Request " + exchange.getRequestURI().getPath() + " failed: " + e.getMessage());
+         response = error(500, "Internal error, please retry later.");
+      } catch (RuntimeException e) {
+         System.err.println("Request " + exchange.getRequestURI().getPath() + " failed: " + e);
+         response = error(500, "Internal error, please retry later.");
+      }
+      this.served.incrementAndGet();
+      send(exchange, response);
+   }// end serve
+
+   static int status(ServiceException.Reason reason) {
+      switch (reason) {
+         case INVALID_INPUT:
+            return 400;
+         case FORBIDDEN:
+            return 403;
+         case NOT_FOUND:
+            return 404;
+         case INSUFFICIENT_STOCK:
+            return 409;
+         case OUT_OF_RANGE:
+            return 422;
+         default:
+            return 400;
+      }
+   }
+
+   private Request parse(HttpExchange exchange) throws IOException, HttpError {
+      String path = exchange.getRequestURI().getRawPath().substring("/api".length());
+      String[] segments = path.replaceAll("^/+|/+$", "").split("/");
+      for (int i = 0; i < segments.length; i++)
+         segments[i] = decode(segments[i]);
+
+      Map<String, String> query = new HashMap<String, String>();
+      String rawQuery = exchange.getRequestURI().getRawQuery();
+      if (rawQuery != null) {
+         for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+               query.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+         }
+      }
+
+      String length = exchange.getRequestHeaders().getFirst("Content-Length");
+      try {
+         if (length != null && Long.parseLong(length.trim()) > this.maxBodyBytes)
+            throw new HttpError(413, "The request body is larger than " + this.maxBodyBytes + " bytes");
+      } catch (NumberFormatException e) {
+         throw new HttpError(400, "Invalid Content-Length");
+      }
+      // read the whole body so the connection can be reused, but no more than the limit
+      InputStream in = exchange.getRequestBody();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+         if (bytes.size() + n > this.maxBodyBytes)
+            throw new HttpError(413, "The request body is larger than " + this.maxBodyBytes + " bytes");
+         bytes.write(buffer, 0, n);
+      }
+      in.close();
+      Map<String, Object> body = new HashMap<String, Object>();
+      if (bytes.size() > 0) {
+         Object json = Json.parse(bytes.toString("UTF-8"));
+         if (!(json instanceof Map))
+            throw new IllegalArgumentException("The request body must be a JSON object");
+         @SuppressWarnings("unchecked")
+         Map<String, Object> members = (Map<String, Object>) json;
+         body = members;
+      }
+      String token = null;
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      if (authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7))
+         token = authorization.substring(7).trim();
+      return new Request(exchange.getRequestMethod(), segments, query, body, token);
+   }// end parse
+
+   private static String decode(String s) throws UnsupportedEncodingException {
+      return URLDecoder.decode(s, "UTF-8");
+   }
+
+   private Response dispatch(Request r) throws SQLException, ServiceException, HttpError {
+      String[] p = r.path;
+      boolean get = r.method.equals("GET");
+      boolean post = r.method.equals("POST");
+
+      if (p.length == 1 && p[0].equals("users") && post)
+         return created("userId", this.service.createUser(r.string("name"), r.string("password"),
+               r.number("latitude"), r.number("longitude")));
+      if (p.length == 1 && p[0].equals("login") && post) {
+         Session session = this.service.logIn(r.string("name"), r.string("password"));
+         if (session == null)
+            return error(401, "Invalid name or password.");
+         StringBuilder out = new StringBuilder("{\"token\":");
+         Json.quote(out, this.service.openToken(session)).append(",\"userId\":").append(session.userId)
+               .append(",\"type\":");
+         return ok(Json.quote(out, session.type).append('}').toString());
+      }
+
+      // everything else acts as the user of the token
+      Session user = r.token == null ? null : this.service.authenticate(r.token);
+      if (user == null)
+         throw new HttpError(401, "Log in first and send the token as Authorization: Bearer <token>.");
+      int userId = user.userId;
+
+      if (p.length == 1 && p[0].equals("logout") && post) {
+         this.service.logOut(r.token);
+         return ok("{\"loggedOut\":true}");
+      }
+      if (p.length == 1 && p[0].equals("users") && get) {
+         requireAdmin(user);
+         Page<User> page = this.service.searchUserByName(r.string("name"), r.optional("pageToken"),
+               r.integer("pageSize", AmazonService.MAX_PAGE_SIZE));
+         return new Response(200, users(page.items), page.nextToken);
+      }
+      if (p.length == 2 && p[0].equals("users") && post) {
+         requireAdmin(user);
+         this.service.updateUser(parseId(p[1]), r.string("name"), r.string("password"), r.number("latitude"),
+               r.number("longitude"), r.string("type"));
+         return ok("{\"updated\":true}");
+      }
+      if (p.length == 1 && p[0].equals("stores") && get) {
+         int[] stores = this.service.viewStores(userId);
+         StringBuilder out = new StringBuilder("[");
+         for (int i = 0; i < stores.length; i++)
+            out.append(i == 0 ? "" : ",").append(stores[i]);
+         return ok(out.append(']').toString());
+      }
+      if (p.length == 3 && p[0].equals("stores") && p[2].equals("products") && get) {
+         // the whole list is served from the catalog cache, pages from the database
+         if (r.optional("pageSize") == null && r.optional("pageToken") == null)
+            return ok(products(this.service.viewProducts(parseId(p[1]))));
+         Page<Product> page = this.service.viewProducts(parseId(p[1]), r.optional("pageToken"),
+               r.integer("pageSize", AmazonService.MAX_PAGE_SIZE));
+         return new Response(200, products(page.items), page.nextToken);
+      }
+      if (p.length == 3 && p[0].equals("stores") && p[2].equals("products") && post) {
+         this.service.updateProduct(userId, parseId(p[1]), r.string("product"), r.number("price"),
+               r.integer("units"));
+         return ok("{\"updated\":true}");
+      }
+      if (p.length == 3 && p[0].equals("stores") && p[2].equals("updates") && get) {
+         Page<ProductUpdate> page = this.service.viewUpdates(userId, parseId(p[1]), r.optional("pageToken"),
+               r.integer("pageSize", AmazonService.REPORT_LIMIT));
+         return new Response(200, updates(page.items), page.nextToken);
+      }
+      if (p.length == 3 && p[0].equals("stores") && p[2].equals("popular-products") && get)
+         return ok(sales(this.service.viewPopularProducts(userId, parseId(p[1]))));
+      if (p.length == 3 && p[0].equals("stores") && p[2].equals("popular-customers") && get)
+         return ok(customers(this.service.viewPopularCustomers(userId, parseId(p[1]))));
+      if (p.length == 1 && p[0].equals("orders") && post)
+         return created("orderNumber", this.service.placeOrder(userId, r.integer("storeId"), r.string("product"),
+               r.integer("units")));
+      if (p.length == 2 && p[0].equals("orders") && p[1].equals("batch") && post)
+         return ok(batch(r, userId));
+      if (p.length == 1 && p[0].equals("orders") && get) {
+         Page<Order> page = this.service.viewOrders(userId, r.optional("pageToken"),
+               r.integer("pageSize", AmazonService.REPORT_LIMIT));
+         return new Response(200, orders(page.items), page.nextToken);
+      }
+      if (p.length == 1 && p[0].equals("supply-requests") && post) {
+         if (r.optional("warehouseId") != null)
+            return created("requestNumber", this.service.placeProductSupplyRequest(userId, r.integer("storeId"),
+                  r.string("product"), r.integer("units"), r.integer("warehouseId")));
+         SupplyRequest request = this.service.routeSupplyRequest(userId, r.integer("storeId"), r.string("product"),
+               r.integer("units"));
+         return new Response(201, supplyRequests(Collections.singletonList(request)));
+      }
+      if (p.length == 2 && p[0].equals("supply-requests") && p[1].equals("batch") && post)
+         return new Response(201, supplyBatch(r, userId));
+      if (p.length == 3 && p[0].equals("stores") && p[2].equals("warehouses") && get)
+         return ok(candidates(this.service.rankWarehouses(userId, parseId(p[1]), r.integer("units"))));
+      if (p.length == 1 && p[0].equals("stats") && get)
+         return ok(stats());
+      return error(404, "No such endpoint: " + r.method + " /api/" + join(p));
+   }// end dispatch
+
+   // one result per line: the order number, or the error the line was refused with
+   private String batch(Request r, int userId) throws SQLException, ServiceException {
+      Object raw = r.body.get("lines");
+      if (!(raw instanceof List))
+         throw new IllegalArgumentException("Missing parameter lines");
+      List<OrderLine> lines = new ArrayList<OrderLine>();
+      for (Object item : (List<?>) raw) {
+         if (!(item instanceof Map))
+            throw new IllegalArgumentException("Every line must be a JSON object");
+         @SuppressWarnings("unchecked")
+         Request line = new Request(r.method, r.path, r.query, (Map<String, Object>) item, r.token);
+         lines.add(new OrderLine(userId, line.integer("storeId"), line.string("product"), line.integer("units")));
+      }
+      int[] results = this.service.placeOrders(lines);
+      StringBuilder out = new StringBuilder("{\"results\":[");
+      for (int i = 0; i < results.length; i++) {
+         out.append(i == 0 ? "" : ",");
+         try {
+            AmazonService.checkOrder(results[i], lines.get(i).productName);
+            out.append("{\"orderNumber\":").append(results[i]).append('}');
+         } catch (ServiceException e) {
+            out.append("{\"status\":").append(status(e.getReason())).append(",\"error\":");
+            Json.quote(out, e.getMessage()).append('}');
+         }
+      }
+      return out.append("]}").toString();
+   }
+
+   private String supplyBatch(Request r, int userId) throws SQLException, ServiceException {
+      Object raw = r.body.get("lines");
+      if (!(raw instanceof List))
+         throw new IllegalArgumentException("Missing parameter lines");
+      List<SupplyLine> lines = new ArrayList<SupplyLine>();
+      for (Object item : (List<?>) raw) {
+         if (!(item instanceof Map))
+            throw new IllegalArgumentException("Every line must be a JSON object");
+         @SuppressWarnings("unchecked")
+         Request line = new Request(r.method, r.path, r.query, (Map<String, Object>) item, r.token);
+         lines.add(new SupplyLine(line.string("product"), line.integer("units")));
+      }
+      return supplyRequests(this.service.placeSupplyBatch(userId, r.integer("storeId"), lines));
+   }
+
+   private static void requireAdmin(Session session) throws ServiceException {
+      if (!session.isAdmin())
+         throw new ServiceException(ServiceException.Reason.FORBIDDEN, "Only admins can manage users.");
+   }
+
+   private static int parseId(String segment) {
+      try {
+         return Integer.parseInt(segment);
+      } catch (NumberFormatException e) {
+         throw new IllegalArgumentException("Invalid id " + segment);
+      }
+   }
+
+   private static String join(String[] path) {
+      StringBuilder out = new StringBuilder();
+      for (int i = 0; i < path.length; i++)
+         out.append(i == 0 ? "" : "/").append(path[i]);
+      return out.toString();
+   }
+
+   private String stats() {
+      StringBuilder out = new StringBuilder("{\"served\":").append(this.served.get()).append(",\"rejected\":")
+            .append(this.rejected.get()).append(",\"inFlight\":");
+      // approximate, requests come and go while this is read
+      out.append(this.maxInFlight - this.slots.availablePermits());
+      out.append(",\"pool\":");
+      Json.quote(out, this.esql.getPool().getStats()).append(",\"catalog\":");
+      Json.quote(out, this.esql.getCatalog().getStats()).append(",\"sessions\":");
+      Json.quote(out, this.esql.getSessions().getStats()).append(",\"queries\":");
+      Json.quote(out, this.esql.getMetrics().getStats());
+      if (this.esql.getInventory() != null)
+         Json.quote(out.append(",\"inventory\":"), this.esql.getInventory().getStats());
+      if (this.esql.getReplenisher() != null)
+         Json.quote(out.append(",\"replenishment\":"), this.esql.getReplenisher().getStats());
+      return out.append('}').toString();
+   }
+
+   private static String users(List<User> users) {
+      StringBuilder out = new StringBuilder("[");
+      for (User u : users) {
+         out.append(out.length() > 1 ? "," : "").append("{\"userId\":").append(u.userId).append(",\"name\":");
+         Json.quote(out, u.name).append(",\"latitude\":").append(u.latitude).append(",\"longitude\":")
+               .append(u.longitude).append(",\"type\":");
+         Json.quote(out, u.type).append('}');
+      }
+      return out.append(']').toString();
+   }
+
+   private static String products(List<Product> products) {
+      StringBuilder out = new StringBuilder("[");
+      for (Product p : products) {
+         out.append(out.length() > 1 ? "," : "").append("{\"productName\":");
+         Json.quote(out, p.productName).append(",\"numberOfUnits\":").append(p.numberOfUnits)
+               .append(",\"pricePerUnit\":").append(p.pricePerUnit).append('}');
+      }
+      return out.append(']').toString();
+   }
+
+   private static String orders(List<Order> orders) {
+      StringBuilder out = new StringBuilder("[");
+      for (Order o : orders) {
+         out.append(out.length() > 1 ? "," : "").append("{\"orderNumber\":").append(o.orderNumber)
+               .append(",\"storeId\":").append(o.storeId).append(",\"productName\":");
+         Json.quote(out, o.productName).append(",\"unitsOrdered\":").append(o.unitsOrdered)
+               .append(",\"orderTime\":");
+         Json.quote(out, String.valueOf(o.orderTime)).append('}');
+      }
+      return out.append(']').toString();
+   }
+
+   private static String updates(List<ProductUpdate> updates) {
+      StringBuilder out = new StringBuilder("[");
+      for (ProductUpdate u : updates) {
+         out.append(out.length() > 1 ? "," : "").append("{\"updateNumber\":").append(u.updateNumber)
+               .append(",\"managerId\":").append(u.managerId).append(",\"productName\":");
+         Json.quote(out, u.productName).append(",\"updatedOn\":");
+         Json.quote(out, String.valueOf(u.updatedOn)).append('}');
+      }
+      return out.append(']').toString();
+   }
+
+   private static String supplyRequests(List<SupplyRequest> requests) {
+      StringBuilder out = new StringBuilder("[");
+      for (SupplyRequest q : requests) {
+         out.append(out.length() > 1 ? "," : "").append("{\"requestNumber\":").append(q.requestNumber)
+               .append(",\"warehouseId\":").append(q.warehouseId).append(",\"shipmentId\":").append(q.shipmentId)
+               .append(",\"productName\":");
+         Json.quote(out, q.productName).append(",\"unitsRequested\":").append(q.unitsRequested).append('}');
+      }
+      return out.append(']').toString();
+   }
+
+   private static String candidates(List<WarehouseRouter.Candidate> candidates) {
+      StringBuilder out = new StringBuilder("[");
+      for (WarehouseRouter.Candidate c : candidates) {
+         out.append(out.length() > 1 ? "," : "").append("{\"warehouseId\":").append(c.warehouseId)
+               .append(",\"distance\":").append(c.distance).append(",\"remaining\":").append(c.remaining)
+               .append(",\"cost\":").append(c.cost).append('}');
+      }
+      return out.append(']').toString();
+   }
+
+   private static String sales(List<StoreProductSales> sales) {
+      StringBuilder out = new StringBuilder("[");
+      for (StoreProductSales s : sales) {
+         out.append(out.length() > 1 ? "," : "").append("{\"productName\":");
+         Json.quote(out, s.productName).append(",\"unitsSold\":").append(s.unitsSold).append('}');
+      }
+      return out.append(']').toString();
+   }
+
+   private static String customers(List<StoreCustomerOrders> customers) {
+      StringBuilder out = new StringBuilder("[");
+      for (StoreCustomerOrders c : customers) {
+         out.append(out.length() > 1 ? "," : "").append("{\"customerId\":").append(c.customerId)
+               .append(",\"orderCount\":").append(c.orderCount).append('}');
+      }
+      return out.append(']').toString();
+   }
+
+   private static Response ok(String body) {
+      return new Response(200, body);
+   }
+
+   private static Response created(String key, int id) {
+      return new Response(201, "{\"" + key + "\":" + id + "}");
+   }
+
+   private static Response error(int status, String message) {
+      return new Response(status, Json.quote(new StringBuilder("{\"error\":"), message).append('}').toString());
+   }
+
+   private static void send(HttpExchange exchange, Response response) throws IOException {
+      byte[] bytes = response.body.getBytes("UTF-8");
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      if (response.nextPageToken != null)
+         exchange.getResponseHeaders().set("X-Next-Page-Token", response.nextPageToken);
+      exchange.sendResponseHeaders(response.status, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+         out.write(bytes);
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Serves the API until the JVM is stopped.
+    *
+    * @param args the database settings and the HTTP port
+    */
+   public static void main(String[] args) {
+      if (args.length != 4) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     AmazonServer.class.getName() +
+                     " <dbname> <port> <user> <http port>");
+         return;
+      } // end if
+
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+         final Amazon esql = new Amazon(args[0], args[1], args[2], "");
+         final AmazonServer server = new AmazonServer(esql, Integer.parseInt(args[3]),
+               Integer.getInteger("amazon.http.maxInFlight", esql.getPool().getMaxSize()),
+               Long.getLong("amazon.http.queueMillis", 100L), Integer.getInteger("amazon.http.threads", 200),
+               Integer.getInteger("amazon.http.maxBodyBytes", 4 << 20));
+         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+               server.stop();
+               esql.cleanup();
+            }
+         }));
+         server.start();
+         System.out.println("Serving on port " + args[3]);
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         System.exit(-1);
+      } // end try
+   }// end main
+}// end AmazonServer
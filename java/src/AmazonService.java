@@ -0,0 +1,652 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The store operations behind the menus, with typed arguments and results
+ * and no console I/O. The acting user is passed explicitly, so one service
+ * can be shared by any number of threads and clients; the CLI in Amazon is
+ * one of them.
+ *
+ * Requests that are refused (unknown store, not the store's manager, not
+ * enough stock, ...) throw ServiceException with a message for the user;
+ * database failures throw SQLException.
+ *
+ */
+public class AmazonService {
+
+   // rows returned by the "recent" and "popular" reports
+   public static final int REPORT_LIMIT = 5;
+
+   // the most lines accepted by one placeOrders call
+   public static final int MAX_BATCH_LINES = Integer.getInteger("amazon.batch.maxLines", 10000);
+
+   // the most rows returned by one page of the paginated operations
+   public static final int MAX_PAGE_SIZE = Integer.getInteger("amazon.page.maxSize", 1000);
+
+   // sort keys of the paginated results
+   private static final Page.KeyOf<Order> ORDER_KEY = new Page.KeyOf<Order>() {
+      public String[] key(Order o) {
+         return new String[] { String.valueOf(o.orderNumber), o.orderTime.toString() };
+      }
+   };
+   private static final Page.KeyOf<Product> PRODUCT_KEY = new Page.KeyOf<Product>() {
+      public String[] key(Product p) {
+         return new String[] { p.productName };
+      }
+   };
+   private static final Page.KeyOf<ProductUpdate> UPDATE_KEY = new Page.KeyOf<ProductUpdate>() {
+      public String[] key(ProductUpdate u) {
+         return new String[] { String.valueOf(u.updateNumber), u.updatedOn.toString() };
+      }
+   };
+   private static final Page.KeyOf<User> USER_KEY = new Page.KeyOf<User>() {
+      public String[] key(User u) {
+         return new String[] { String.valueOf(u.userId) };
+      }
+   };
+
+   private final Amazon esql;
+   private final OrderBatch orderBatch;
+   private final SupplyBatch supplyBatch;
+
+   /**
+    * @param esql the session used to reach the database and the caches
+    */
+   public AmazonService(Amazon esql) {
+      this.esql = esql;
+      this.orderBatch = new OrderBatch(esql.getPool(), Amazon.STORE_RADIUS);
+      this.supplyBatch = new SupplyBatch(esql.getPool());
+   }
+
+   /**
+    * Registers a new customer.
+    *
+    * @return the new user id
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int createUser(String name, String password, double latitude, double longitude) throws SQLException {
+      return this.esql.executeQueryForInt(
+            "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?) RETURNING userID",
+            -1, name, password, latitude, longitude, "Customer");
+   }
+
+   /**
+    * Checks log in credentials and opens a session for the user.
+    *
+    * @return the session, or null when the name and password do not match
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Session logIn(String name, String password) throws SQLException {
+      return this.esql.getSessions().logIn(name, password);
+   }
+
+   /**
+    * @return the session of the user, or null when the user does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Session getSession(int userId) throws SQLException {
+      return this.esql.getSessions().get(userId);
+   }
+
+   /**
+    * @return a new opaque token standing for the user of a session
+    */
+   public String openToken(Session session) {
+      return this.esql.getSessions().openToken(session);
+   }
+
+   /**
+    * @return the session of the user a token stands for, or null when it is unknown or expired
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Session authenticate(String token) throws SQLException {
+      return this.esql.getSessions().resolve(token);
+   }
+
+   /**
+    * Revokes a token handed out by openToken.
+    */
+   public void logOut(String token) {
+      this.esql.getSessions().closeToken(token);
+   }
+
+   /**
+    * @return the user, or null when it does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public User getUser(int userId) throws SQLException {
+      return this.esql.executeQueryForObject("SELECT " + User.COLUMNS + " FROM Users WHERE userid = ?", User.MAPPER,
+            userId);
+   }
+
+   /**
+    * @return true when the user exists
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean userExists(int userId) throws SQLException {
+      return this.esql.executeExists("SELECT 1 FROM Users WHERE userid = ? LIMIT 1", userId);
+   }
+
+   /**
+    * @return the store, or null when it does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Store getStore(int storeId) throws SQLException {
+      return this.esql.executeQueryForObject("SELECT " + Store.COLUMNS + " FROM Store WHERE storeid = ?",
+            Store.MAPPER, storeId);
+   }
+
+   /**
+    * @return true when the store exists
+    * @throws java.sql.SQLException when the store directory fell back to a failed query
+    */
+   public boolean storeExists(int storeId) throws SQLException {
+      return this.esql.getStoreDirectory().contains(storeId);
+   }
+
+   /**
+    * Finds the stores within Amazon.STORE_RADIUS of a user.
+    *
+    * @return the store ids in ascending order
+    * @throws ServiceException      when the user does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int[] viewStores(int userId) throws SQLException, ServiceException {
+      Session session = requireUser(userId);
+      int[] stores = this.esql.getStoreIndex().withinRadius(session.latitude, session.longitude, Amazon.STORE_RADIUS);
+      Arrays.sort(stores);
+      return stores;
+   }
+
+   /**
+    * Lists the products of a store.
+    *
+    * @return the products ordered by name
+    * @throws ServiceException      when the store does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<Product> viewProducts(int storeId) throws SQLException, ServiceException {
+      List<Product> products = this.esql.getCatalog().getProducts(storeId);
+      // only an empty catalog needs telling apart from an unknown store
+      if (products.isEmpty() && !storeExists(storeId))
+         throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Store does not exist.");
+      return products;
+   }
+
+   /**
+    * Lists the products of a store one page at a time.
+    *
+    * @param pageToken the nextToken of the previous page, null for the first page
+    * @param pageSize  the most products returned
+    * @return the products ordered by name
+    * @throws ServiceException      when the store does not exist or the page is invalid
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Page<Product> viewProducts(int storeId, String pageToken, int pageSize)
+         throws SQLException, ServiceException {
+      checkPageSize(pageSize);
+      if (!storeExists(storeId))
+         throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Store does not exist.");
+      // seeks the (storeID, productName) primary key
+      List<Product> rows = pageToken == null
+            ? this.esql.executeQueryForList(
+                  "SELECT " + Product.COLUMNS + " FROM Product WHERE storeID = ? ORDER BY productName LIMIT ?",
+                  Product.MAPPER, storeId, pageSize + 1)
+            : this.esql.executeQueryForList(
+                  "SELECT " + Product.COLUMNS + " FROM Product WHERE storeID = ? AND productName > CAST(? AS char(30)) ORDER BY productName LIMIT ?",
+                  Product.MAPPER, storeId, Page.key(pageToken, 1)[0], pageSize + 1);
+      return Page.of(rows, pageSize, PRODUCT_KEY);
+   }// end viewProducts
+
+   /**
+    * Places an order if the store is in range and has enough units.
+    *
+    * @return the new order number
+    * @throws ServiceException      when the order was refused
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int placeOrder(int userId, int storeId, String product, int units) throws SQLException, ServiceException {
+      InventoryEngine inventory = this.esql.getInventory();
+      if (inventory != null) {
+         // audited when the engine writes the order
+         int result = inventory.placeOrder(userId, storeId, product, units);
+         checkOrder(result, product);
+         return result;
+      }
+      int result = this.esql.submitOrder(userId, storeId, product, units);
+      checkOrder(result, product);
+      audit(storeId, product);
+      return result;
+   }
+
+   /**
+    * Places many orders at once, e.g. a marketplace feed or a replayed cart.
+    * Each line is checked like placeOrder, but stock is decremented once per
+    * (store, product) and the orders are inserted in one batch. A rejected
+    * line does not affect the others.
+    *
+    * @param lines the order lines
+    * @return for each line its new order number, or one of the negative
+    *         Amazon.ORDER_* codes; checkOrder turns a code into its message
+    * @throws ServiceException      when there are more than MAX_BATCH_LINES lines
+    * @throws java.sql.SQLException when failed to execute the batch, no order was placed then
+    */
+   public int[] placeOrders(List<OrderLine> lines) throws SQLException, ServiceException {
+      if (lines.size() > MAX_BATCH_LINES)
+         throw new ServiceException(ServiceException.Reason.INVALID_INPUT,
+               "At most " + MAX_BATCH_LINES + " lines per batch.");
+      InventoryEngine inventory = this.esql.getInventory();
+      if (inventory != null) {
+         // the engine takes stock line by line in memory, there is no row lock to share
+         int[] results = new int[lines.size()];
+         for (int i = 0; i < results.length; i++) {
+            OrderLine line = lines.get(i);
+            results[i] = inventory.placeOrder(line.customerId, line.storeId, line.productName, line.units);
+         }
+         return results;
+      }
+      int[] results = this.orderBatch.place(lines);
+      if (this.esql.getAuditWriter() != null) {
+         // the stock of each (store, product) was updated once
+         Set<String> updated = new HashSet<String>();
+         for (int i = 0; i < results.length; i++) {
+            OrderLine line = lines.get(i);
+            if (results[i] > 0 && updated.add(line.storeId + "/" + User.trim(line.productName)))
+               audit(line.storeId, line.productName);
+         }
+      }
+      return results;
+   }
+
+   /**
+    * Turns the negative codes of place_order() into a ServiceException.
+    *
+    * @param result  the result of Amazon.submitOrder
+    * @param product the ordered product, for the message
+    * @throws ServiceException when the result is one of the ORDER_* codes
+    */
+   static void checkOrder(int result, String product) throws ServiceException {
+      switch (result) {
+         case Amazon.ORDER_STORE_NOT_FOUND:
+            throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Store does not exist.");
+         case Amazon.ORDER_OUT_OF_RANGE:
+            throw new ServiceException(ServiceException.Reason.OUT_OF_RANGE,
+                  "Store not within 30 mile raidus of your location.");
+         case Amazon.ORDER_NO_SUCH_PRODUCT:
+            throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Product does not exist in the store.");
+         case Amazon.ORDER_INSUFFICIENT_STOCK:
+            throw new ServiceException(ServiceException.Reason.INSUFFICIENT_STOCK,
+                  String.format("Not enough units of %s to complete your order.", product));
+         case Amazon.ORDER_INVALID_UNITS:
+            throw new ServiceException(ServiceException.Reason.INVALID_INPUT, "Invalid number of units.");
+         default:
+            break;
+      }
+   }
+
+   /**
+    * @return the five most recent orders of a customer, newest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<Order> viewRecentOrders(int userId) throws SQLException {
+      return readOrders(userId, null, 0, REPORT_LIMIT);
+   }
+
+   /**
+    * Lists the orders of a customer one page at a time.
+    *
+    * @param pageToken the nextToken of the previous page, null for the first page
+    * @param pageSize  the most orders returned
+    * @return the orders, newest first
+    * @throws ServiceException      when the page is invalid
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Page<Order> viewOrders(int userId, String pageToken, int pageSize) throws SQLException, ServiceException {
+      checkPageSize(pageSize);
+      if (pageToken == null)
+         return Page.of(readOrders(userId, null, 0, pageSize + 1), pageSize, ORDER_KEY);
+      String[] key = Page.key(pageToken, 2);
+      return Page.of(readOrders(userId, key[1], keyInt(key[0]), pageSize + 1), pageSize, ORDER_KEY);
+   }
+
+   // seeks the customerID_on_orders index past the given (orderTime, orderNumber), if any
+   private List<Order> readOrders(int userId, String afterTime, int afterNumber, int limit) throws SQLException {
+      if (afterTime == null)
+         return this.esql.executeQueryForList("SELECT " + Order.COLUMNS
+               + " FROM Orders WHERE customerID = ? ORDER BY orderTime DESC, orderNumber DESC LIMIT ?", Order.MAPPER,
+               userId, limit);
+      return this.esql.executeQueryForList("SELECT " + Order.COLUMNS
+            + " FROM Orders WHERE customerID = ? AND (orderTime, orderNumber) < (CAST(? AS timestamp), ?) ORDER BY orderTime DESC, orderNumber DESC LIMIT ?",
+            Order.MAPPER, userId, afterTime, afterNumber, limit);
+   }// end readOrders
+
+   /**
+    * Sets the price and number of units of a product. Managers may only
+    * update their own stores, admins any store.
+    *
+    * @throws ServiceException      when the update was refused
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public void updateProduct(int userId, int storeId, String product, double price, int units)
+         throws SQLException, ServiceException {
+      Session session = requireUser(userId);
+      if (session.isManager())
+         requireManager(userId, storeId);
+      else if (!session.isAdmin())
+         throw new ServiceException(ServiceException.Reason.FORBIDDEN, "Only managers and admins can update products.");
+      if (price < 0 || units < 0)
+         throw new ServiceException(ServiceException.Reason.INVALID_INPUT, "Price and quantity cannot be negative.");
+
+      // the row count tells whether the product exists; the ProductUpdates row is added by the
+      // trg_product_update trigger, or by audit() below when the audit writer replaces it
+      InventoryEngine inventory = this.esql.getInventory();
+      if (inventory != null) {
+         // the engine needs the change, not the new value, since it may hold orders not written yet
+         int before = this.esql.executeQueryForInt(
+               "UPDATE Product SET priceperunit = ?, numberofunits = ? FROM (SELECT numberofunits FROM Product WHERE storeid = ? AND productname = ? FOR UPDATE) old WHERE storeid = ? AND productname = ? RETURNING old.numberofunits",
+               -1, price, units, storeId, product, storeId, product);
+         if (before == -1)
+            throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Product does not exist in the store.");
+         inventory.adjust(storeId, product, units - before);
+      } else {
+         int updated = this.esql.executeUpdate(
+               "UPDATE Product SET priceperunit = ?, numberofunits = ? WHERE storeid = ? AND productname = ?", price,
+               units, storeId, product);
+         if (updated == 0)
+            throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Product does not exist in the store.");
+      }
+      this.esql.getCatalog().invalidate(storeId);
+      audit(storeId, product);
+   }// end updateProduct
+
+   /**
+    * @return the five most recent product updates of a store managed by the user, newest first
+    * @throws ServiceException      when the user does not manage the store
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<ProductUpdate> viewRecentUpdates(int userId, int storeId) throws SQLException, ServiceException {
+      return viewUpdates(userId, storeId, null, REPORT_LIMIT).items;
+   }
+
+   /**
+    * Lists the product updates of a store managed by the user one page at a time.
+    *
+    * @param pageToken the nextToken of the previous page, null for the first page
+    * @param pageSize  the most updates returned
+    * @return the updates, newest first
+    * @throws ServiceException      when the user does not manage the store or the page is invalid
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Page<ProductUpdate> viewUpdates(int userId, int storeId, String pageToken, int pageSize)
+         throws SQLException, ServiceException {
+      requireManager(userId, storeId);
+      checkPageSize(pageSize);
+      // seeks the storeID_on_productupdates index past the last (updatedOn, updateNumber) seen
+      List<ProductUpdate> rows;
+      if (pageToken == null) {
+         rows = this.esql.executeQueryForList("SELECT " + ProductUpdate.COLUMNS
+               + " FROM ProductUpdates WHERE storeid = ? ORDER BY updatedOn DESC, updateNumber DESC LIMIT ?",
+               ProductUpdate.MAPPER, storeId, pageSize + 1);
+      } else {
+         String[] key = Page.key(pageToken, 2);
+         rows = this.esql.executeQueryForList("SELECT " + ProductUpdate.COLUMNS
+               + " FROM ProductUpdates WHERE storeid = ? AND (updatedOn, updateNumber) < (CAST(? AS timestamp), ?) ORDER BY updatedOn DESC, updateNumber DESC LIMIT ?",
+               ProductUpdate.MAPPER, storeId, key[1], keyInt(key[0]), pageSize + 1);
+      }
+      return Page.of(rows, pageSize, UPDATE_KEY);
+   }// end viewUpdates
+
+   /**
+    * @return the five best selling products of a store managed by the user
+    * @throws ServiceException      when the user does not manage the store
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<StoreProductSales> viewPopularProducts(int userId, int storeId)
+         throws SQLException, ServiceException {
+      requireManager(userId, storeId);
+      // read from the aggregate maintained by trg_order_aggregates instead of scanning Orders
+      return this.esql.executeQueryForList(
+            "SELECT " + StoreProductSales.COLUMNS + " FROM StoreProductSales WHERE storeid = ? ORDER BY unitssold DESC LIMIT ?",
+            StoreProductSales.MAPPER, storeId, REPORT_LIMIT);
+   }
+
+   /**
+    * @return the five customers with the most orders at a store managed by the user
+    * @throws ServiceException      when the user does not manage the store
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<StoreCustomerOrders> viewPopularCustomers(int userId, int storeId)
+         throws SQLException, ServiceException {
+      requireManager(userId, storeId);
+      // read from the aggregate maintained by trg_order_aggregates instead of scanning Orders
+      return this.esql.executeQueryForList(
+            "SELECT " + StoreCustomerOrders.COLUMNS + " FROM StoreCustomerOrders WHERE storeid = ? ORDER BY ordercount DESC LIMIT ?",
+            StoreCustomerOrders.MAPPER, storeId, REPORT_LIMIT);
+   }
+
+   /**
+    * Requests units of a product from a warehouse and adds them to the
+    * store's stock.
+    *
+    * @return the new request number
+    * @throws ServiceException      when the request was refused
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int placeProductSupplyRequest(int userId, int storeId, String product, int units, int warehouseId)
+         throws SQLException, ServiceException {
+      requireManager(userId, storeId);
+      requireProduct(storeId, product);
+      if (units <= 0)
+         throw new ServiceException(ServiceException.Reason.INVALID_INPUT, "Quantity must be positive.");
+
+      // inserts nothing, and returns no request number, when the warehouse does not exist
+      int request = this.esql.executeQueryForInt(
+            "INSERT INTO ProductSupplyRequests (managerid, storeid, productname, unitsrequested, warehouseid) SELECT ?, ?, ?, ?, warehouseid FROM Warehouse WHERE warehouseid = ? RETURNING requestNumber",
+            -1, userId, storeId, product, units, warehouseId);
+      if (request == -1)
+         throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Warehouse does not exist.");
+      this.esql.executeUpdate(
+            "UPDATE Product SET numberofunits = numberofunits + ? WHERE storeid = ? AND productname = ?", units,
+            storeId, product);
+      if (this.esql.getInventory() != null)
+         this.esql.getInventory().adjust(storeId, product, units);
+      this.esql.getCatalog().invalidate(storeId);
+      this.esql.getWarehouseRouter().charge(warehouseId, units);
+      audit(storeId, product);
+      return request;
+   }// end placeProductSupplyRequest
+
+   /**
+    * Requests units of a product from the nearest warehouse that has the
+    * capacity, and adds them to the store's stock.
+    *
+    * @return the placed request
+    * @throws ServiceException      when the request was refused
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public SupplyRequest routeSupplyRequest(int userId, int storeId, String product, int units)
+         throws SQLException, ServiceException {
+      List<SupplyLine> lines = new ArrayList<SupplyLine>(1);
+      lines.add(new SupplyLine(product, units));
+      return placeSupplyBatch(userId, storeId, lines).get(0);
+   }
+
+   /**
+    * Requests many products for a store at once. Every line goes to the
+    * nearest warehouse with the capacity, and the lines going to the same
+    * warehouse ship as one SupplyShipments row. All lines are placed in one
+    * transaction, or none is.
+    *
+    * @return the placed requests, in line order
+    * @throws ServiceException      when a line was refused, in which case none is placed
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<SupplyRequest> placeSupplyBatch(int userId, int storeId, List<SupplyLine> lines)
+         throws SQLException, ServiceException {
+      requireManager(userId, storeId);
+      if (lines.size() > MAX_BATCH_LINES)
+         throw new ServiceException(ServiceException.Reason.INVALID_INPUT,
+               "At most " + MAX_BATCH_LINES + " lines per batch.");
+      for (SupplyLine line : lines) {
+         if (line.productName == null || line.units <= 0)
+            throw new ServiceException(ServiceException.Reason.INVALID_INPUT, "Quantity must be positive.");
+         requireProduct(storeId, line.productName);
+      }
+      return supply(userId, storeId, lines, null);
+   }// end placeSupplyBatch
+
+   /**
+    * Routes and places checked supply lines for a store, on the given
+    * connection or on one borrowed from the pool when it is null.
+    *
+    * @return the placed requests, in line order
+    * @throws ServiceException      when no warehouse can ship a line, in which case none is placed
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   List<SupplyRequest> supply(int managerId, int storeId, List<SupplyLine> lines, PooledConnection conn)
+         throws SQLException, ServiceException {
+      double[] location = this.esql.getStoreDirectory().locationOf(storeId);
+
+      WarehouseRouter router = this.esql.getWarehouseRouter();
+      int[] warehouses = new int[lines.size()];
+      int routed = 0;
+      try {
+         for (; routed < lines.size(); routed++) {
+            SupplyLine line = lines.get(routed);
+            warehouses[routed] = router.route(location[0], location[1], line.units);
+            if (warehouses[routed] == -1)
+               throw new ServiceException(ServiceException.Reason.INSUFFICIENT_STOCK,
+                     String.format("No warehouse can supply %d units of %s right now.", line.units, line.productName));
+         }
+         List<SupplyRequest> placed = conn == null
+               ? this.supplyBatch.place(managerId, storeId, lines, warehouses)
+               : this.supplyBatch.place(conn, managerId, storeId, lines, warehouses);
+         routed = 0;
+         InventoryEngine inventory = this.esql.getInventory();
+         if (inventory != null) {
+            for (SupplyRequest request : placed)
+               inventory.adjust(storeId, request.productName, request.unitsRequested);
+         }
+         this.esql.getCatalog().invalidate(storeId);
+         Set<String> updated = new HashSet<String>();
+         for (SupplyRequest request : placed) {
+            if (updated.add(request.productName))
+               audit(storeId, request.productName);
+         }
+         return placed;
+      } finally {
+         // give back the capacity of requests that were not placed
+         for (int i = 0; i < routed; i++)
+            router.release(warehouses[i], lines.get(i).units);
+      }
+   }// end placeSupplyBatch
+
+   /**
+    * Ranks the warehouses near a store managed by the user that can ship
+    * the units, by distance weighted by how busy they are.
+    *
+    * @return up to five candidates, cheapest first
+    * @throws ServiceException      when the user does not manage the store
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<WarehouseRouter.Candidate> rankWarehouses(int userId, int storeId, int units)
+         throws SQLException, ServiceException {
+      requireManager(userId, storeId);
+      double[] location = this.esql.getStoreDirectory().locationOf(storeId);
+      return this.esql.getWarehouseRouter().rank(location[0], location[1], units, REPORT_LIMIT);
+   }
+
+   /**
+    * @return the users with the given name
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<User> searchUserByName(String name) throws SQLException {
+      return this.esql.executeQueryForList("SELECT " + User.COLUMNS + " FROM Users WHERE name = ?", User.MAPPER,
+            name);
+   }
+
+   /**
+    * Lists the users with the given name one page at a time.
+    *
+    * @param pageToken the nextToken of the previous page, null for the first page
+    * @param pageSize  the most users returned
+    * @return the users ordered by id
+    * @throws ServiceException      when the page is invalid
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Page<User> searchUserByName(String name, String pageToken, int pageSize)
+         throws SQLException, ServiceException {
+      checkPageSize(pageSize);
+      // seeks the name_on_users index past the last userID seen
+      int after = pageToken == null ? Integer.MIN_VALUE : keyInt(Page.key(pageToken, 1)[0]);
+      List<User> rows = this.esql.executeQueryForList(
+            "SELECT " + User.COLUMNS + " FROM Users WHERE name = ? AND userID > ? ORDER BY userID LIMIT ?",
+            User.MAPPER, name, after, pageSize + 1);
+      return Page.of(rows, pageSize, USER_KEY);
+   }
+
+   /**
+    * Replaces the details of a user.
+    *
+    * @param type 'Customer', 'Manager' or 'Admin'
+    * @throws ServiceException      when the user does not exist or the type is unknown
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public void updateUser(int userId, String name, String password, double latitude, double longitude,
+         String type) throws SQLException, ServiceException {
+      if (!type.equalsIgnoreCase("Customer") && !type.equalsIgnoreCase("Manager") && !type.equalsIgnoreCase("Admin"))
+         throw new ServiceException(ServiceException.Reason.INVALID_INPUT, "Unknown user type " + type + ".");
+      int updated = this.esql.executeUpdate(
+            "UPDATE Users SET name = ?, password = ?, latitude = ?, longitude = ?, type = ? WHERE userid = ?", name,
+            password, latitude, longitude, type, userId);
+      if (updated == 0)
+         throw new ServiceException(ServiceException.Reason.NOT_FOUND, "User does not exist.");
+      this.esql.getSessions().invalidate(userId);
+   }// end updateUser
+
+   private static void checkPageSize(int pageSize) throws ServiceException {
+      if (pageSize < 1 || pageSize > MAX_PAGE_SIZE)
+         throw new ServiceException(ServiceException.Reason.INVALID_INPUT,
+               "Page size must be between 1 and " + MAX_PAGE_SIZE + ".");
+   }
+
+   private static int keyInt(String part) throws ServiceException {
+      try {
+         return Integer.parseInt(part);
+      } catch (NumberFormatException e) {
+         throw new ServiceException(ServiceException.Reason.INVALID_INPUT, "Invalid page token.");
+      }
+   }
+
+   // writes the ProductUpdates row when the audit writer replaces the trigger
+   private void audit(int storeId, String product) throws SQLException {
+      AuditWriter audit = this.esql.getAuditWriter();
+      if (audit != null)
+         audit.record(storeId, product);
+   }
+
+   private Session requireUser(int userId) throws SQLException, ServiceException {
+      Session session = getSession(userId);
+      if (session == null)
+         throw new ServiceException(ServiceException.Reason.NOT_FOUND, "User does not exist.");
+      return session;
+   }
+
+   // answered by the store directory, without a query
+   private void requireManager(int userId, int storeId) throws SQLException, ServiceException {
+      int manager = this.esql.getStoreDirectory().managerOf(storeId);
+      if (manager == StoreDirectory.NO_STORE)
+         throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Store does not exist.");
+      if (manager != userId)
+         throw new ServiceException(ServiceException.Reason.FORBIDDEN, "You are not the manager of this store.");
+   }
+
+   private void requireProduct(int storeId, String product) throws SQLException, ServiceException {
+      if (this.esql.getCatalog().getProduct(storeId, product) == null)
+         throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Product does not exist in the store.");
+   }
+}// end AmazonService
@@ -0,0 +1,258 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Writes the ProductUpdates audit trail off the request path. Product
+ * changes are put on a bounded queue and a background thread inserts them
+ * in batches, one multi-row INSERT per batch that also looks up the
+ * store's manager. Connections of a pool with an AuditWriter set
+ * amazon.audit_mode to 'app', which makes the trg_product_update trigger
+ * skip its own per-row insert.
+ *
+ * In ASYNC mode record() returns as soon as the change is queued; changes
+ * still queued are lost if the process dies. In GROUP_COMMIT mode record()
+ * waits until the batch holding the change is committed, and batches are
+ * flushed as soon as the writer is free, so concurrent callers share a
+ * commit. A full queue blocks callers in both modes.
+ *
+ * The audit row is committed by the writer in its own transaction, after
+ * the product change it records was committed by the caller; a crash in
+ * between loses the row in both modes. A batch that still fails after
+ * ATTEMPTS tries is dropped and counted as such: ASYNC callers are not
+ * told, GROUP_COMMIT callers get the failure from record(). Changes
+ * recorded before close() are all written or failed; later ones are refused.
+ *
+ */
+public class AuditWriter {
+
+   // value of amazon.audit_mode that turns off the trigger's audit insert
+   public static final String SESSION_SETTING = "SET amazon.audit_mode = 'app'";
+
+   /**
+    * How long record() waits.
+    */
+   public enum Mode {
+      // until the change is queued
+      ASYNC,
+      // until the change is committed
+      GROUP_COMMIT
+   }
+
+   // a product change waiting to be written
+   private static final class Entry {
+      final int storeId;
+      final String productName;
+      final Timestamp updatedOn;
+      // only in GROUP_COMMIT mode
+      final CountDownLatch committed;
+      volatile SQLException failure;
+
+      Entry(int storeId, String productName, Timestamp updatedOn, boolean wait) {
+         this.storeId = storeId;
+         this.productName = productName;
+         this.updatedOn = updatedOn;
+         this.committed = wait ? new CountDownLatch(1) : null;
+      }
+   }
+
+   // attempts per batch before it is given up
+   private static final int ATTEMPTS = 3;
+
+   private final ConnectionPool pool;
+   private final Mode mode;
+   private final int batchSize;
+   private final long flushMillis;
+   private final ArrayBlockingQueue<Entry> queue;
+   private final Thread writer;
+   // held shared while queueing and exclusively by close(), so nothing is queued after the writer saw closed
+   private final ReentrantReadWriteLock closing = new ReentrantReadWriteLock();
+   private volatile boolean closed = false;
+
+   // metrics
+   private final AtomicLong written = new AtomicLong();
+   private final AtomicLong batches = new AtomicLong();
+   private final AtomicLong dropped = new AtomicLong();
+
+   /**
+    * @param pool        the pool the writer borrows connections from
+    * @param mode        whether record() waits for the commit
+    * @param queueSize   the most changes held in memory
+    * @param batchSize   the most changes written per INSERT
+    * @param flushMillis in ASYNC mode, how long a change may wait for its batch to fill up
+    */
+   public AuditWriter(ConnectionPool pool, Mode mode, int queueSize, int batchSize, long flushMillis) {
+      this.pool = pool;
+      this.mode = mode;
+      this.batchSize = batchSize;
+      this.flushMillis = flushMillis;
+      this.queue = new ArrayBlockingQueue<Entry>(queueSize);
+      this.writer = new Thread(new Runnable() {
+         public void run() {
+            writeLoop();
+         }
+      }, "amazon-audit-writer");
+      this.writer.setDaemon(true);
+      this.writer.start();
+   }// end AuditWriter
+
+   /**
+    * Records that a product of a store was updated now.
+    *
+    * @param storeId     the store
+    * @param productName the product
+    * @throws java.sql.SQLException in GROUP_COMMIT mode when the change could
+    *                               not be written, in any mode when interrupted
+    *                               or closed
+    */
+   public void record(int storeId, String productName) throws SQLException {
+      Entry entry = new Entry(storeId, productName, new Timestamp(System.currentTimeMillis()),
+            this.mode == Mode.GROUP_COMMIT);
+      try {
+         this.closing.readLock().lock();
+         try {
+            if (closed)
+               throw new SQLException("The audit writer is closed");
+            this.queue.put(entry);
+         } finally {
+            this.closing.readLock().unlock();
+         }
+         if (entry.committed != null)
+            entry.committed.await();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while recording a product update");
+      }
+      if (entry.failure != null)
+         throw entry.failure;
+   }// end record
+
+   private void writeLoop() {
+      List<Entry> batch = new ArrayList<Entry>(this.batchSize);
+      while (!closed || !this.queue.isEmpty()) {
+         try {
+            Entry first = this.queue.poll(this.flushMillis, TimeUnit.MILLISECONDS);
+            if (first == null)
+               continue;
+            batch.add(first);
+            if (this.mode == Mode.ASYNC) {
+               // wait a little for the batch to fill up
+               long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.flushMillis);
+               while (batch.size() < this.batchSize && !closed) {
+                  this.queue.drainTo(batch, this.batchSize - batch.size());
+                  long left = deadline - System.nanoTime();
+                  if (batch.size() >= this.batchSize || left <= 0)
+                     break;
+                  Entry next = this.queue.poll(left, TimeUnit.NANOSECONDS);
+                  if (next == null)
+                     break;
+                  batch.add(next);
+               }
+            } else {
+               // whatever queued up while the previous batch was written shares this commit
+               this.queue.drainTo(batch, this.batchSize - 1);
+            }
+         } catch (InterruptedException e) {
+            // closing, write what is left
+         }
+         if (!batch.isEmpty()) {
+            flush(batch);
+            batch.clear();
+         }
+      } // end while
+      // changes queued while closing
+      this.queue.drainTo(batch);
+      if (!batch.isEmpty())
+         flush(batch);
+   }// end writeLoop
+
+   private void flush(List<Entry> batch) {
+      SQLException failure = null;
+      for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+         try {
+            insert(batch);
+            failure = null;
+            break;
+         } catch (SQLException e) {
+            failure = e;
+            try {
+               Thread.sleep(100L * attempt);
+            } catch (InterruptedException ie) {
+               // retry right away, the writer is closing
+            }
+         }
+      }
+      if (failure == null) {
+         this.written.addAndGet(batch.size());
+         this.batches.incrementAndGet();
+      } else {
+         this.dropped.addAndGet(batch.size());
+         System.err.println("Unable to write " + batch.size() + " product updates: " + failure.getMessage());
+      }
+      for (Entry entry : batch) {
+         if (entry.committed != null) {
+            entry.failure = failure;
+            entry.committed.countDown();
+         }
+      }
+   }// end flush
+
+   private void insert(List<Entry> batch) throws SQLException {
+      StringBuilder sql = new StringBuilder(
+            "INSERT INTO ProductUpdates (storeid, productname, updatedon, managerid) SELECT v.storeid, v.productname, v.updatedon, s.managerid FROM (VALUES ");
+      for (int i = 0; i < batch.size(); i++)
+         sql.append(i == 0 ? "" : ", ").append("(CAST(? AS integer), CAST(? AS char(30)), CAST(? AS timestamp))");
+      sql.append(") AS v (storeid, productname, updatedon) JOIN Store s ON s.storeid = v.storeid");
+
+      PooledConnection conn = this.pool.borrow();
+      try {
+         PreparedStatement stmt = conn.getConnection().prepareStatement(sql.toString());
+         try {
+            int param = 1;
+            for (Entry entry : batch) {
+               stmt.setInt(param++, entry.storeId);
+               stmt.setString(param++, entry.productName);
+               stmt.setTimestamp(param++, entry.updatedOn);
+            }
+            stmt.executeUpdate();
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         this.pool.release(conn);
+      }
+   }// end insert
+
+   /**
+    * Stops accepting changes, writes the queued ones and stops the writer.
+    */
+   public void close() {
+      // waits for callers still queueing, the writer drains what they queued
+      this.closing.writeLock().lock();
+      try {
+         closed = true;
+      } finally {
+         this.closing.writeLock().unlock();
+      }
+      try {
+         this.writer.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * @return a one-line summary of the queue and write statistics
+    */
+   public String getStats() {
+      return String.format("mode=%s queued=%d written=%d batches=%d dropped=%d", this.mode, this.queue.size(),
+            this.written.get(), this.batches.get(), this.dropped.get());
+   }
+}// end AuditWriter
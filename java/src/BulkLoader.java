@@ -0,0 +1,454 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Loads the data/*.csv files into an empty database through the JDBC driver,
+ * so the CSVs do not have to sit on the database host as with the
+ * server-side COPY in load_data.sql. Tables are loaded in dependency stages
+ * (Users/Warehouse, Store, Product, then Orders/ProductSupplyRequests/
+ * ProductUpdates); the tables of a stage are read concurrently and their
+ * rows are inserted by a pool of workers as multi-row INSERT statements,
+ * one transaction per batch. Foreign keys and indexes are created after the
+ * data is in, and the serial sequences are moved past the loaded keys.
+ *
+ * The bundled 7.3 driver has no CopyManager, so multi-row INSERTs are the
+ * fastest path it offers.
+ *
+ */
+public class BulkLoader {
+
+   /**
+    * A table loaded from one CSV file. Column types are 'i' (integer),
+    * 'd' (double), 's' (text), 'D' (date) and 'T' (timestamp).
+    */
+   static final class Table {
+      final String name;
+      final String file;
+      final String[] columns;
+      final String types;
+      // serial key column whose sequence must be reset, or null
+      final String serialColumn;
+
+      Table(String name, String file, String[] columns, String types, String serialColumn) {
+         this.name = name;
+         this.file = file;
+         this.columns = columns;
+         this.types = types;
+         this.serialColumn = serialColumn;
+      }
+   }
+
+   static final Table USERS = new Table("Users", "users.csv",
+         new String[] { "userID", "name", "password", "latitude", "longitude", "type" }, "issdds", "userID");
+   static final Table WAREHOUSE = new Table("Warehouse", "warehouse.csv",
+         new String[] { "warehouseID", "area", "latitude", "longitude" }, "iidd", null);
+   static final Table STORE = new Table("Store", "stores.csv",
+         new String[] { "storeID", "latitude", "longitude", "managerID", "dateEstablished" }, "iddiD", null);
+   static final Table PRODUCT = new Table("Product", "products.csv",
+         new String[] { "storeID", "productName", "numberOfUnits", "pricePerUnit" }, "isid", null);
+   static final Table ORDERS = new Table("Orders", "orders.csv",
+         new String[] { "orderNumber", "customerID", "storeID", "productName", "unitsOrdered", "orderTime" },
+         "iiisiT", "orderNumber");
+   static final Table SUPPLY_REQUESTS = new Table("ProductSupplyRequests", "productSupplyRequests.csv",
+         new String[] { "requestNumber", "managerID", "warehouseID", "storeID", "productName", "unitsRequested" },
+         "iiiisi", "requestNumber");
+   static final Table PRODUCT_UPDATES = new Table("ProductUpdates", "productUpdates.csv",
+         new String[] { "updateNumber", "managerID", "storeID", "productName", "updatedOn" }, "iiisT",
+         "updateNumber");
+
+   // tables of a stage only reference tables of earlier stages
+   static final Table[][] STAGES = new Table[][] {
+         { USERS, WAREHOUSE },
+         { STORE },
+         { PRODUCT },
+         { ORDERS, SUPPLY_REQUESTS, PRODUCT_UPDATES } };
+
+   private final ConnectionPool pool;
+   private final ExecutorService workers;
+   private final int rowsPerStatement;
+
+   // bounds the batches parsed but not yet inserted, so memory stays flat
+   private final Semaphore inFlight;
+
+   /**
+    * @param pool             the pool the workers borrow connections from
+    * @param threads          the number of insert workers
+    * @param rowsPerStatement the number of rows per multi-row INSERT
+    */
+   public BulkLoader(ConnectionPool pool, int threads, int rowsPerStatement) {
+      this.pool = pool;
+      this.workers = Executors.newFixedThreadPool(threads);
+      this.rowsPerStatement = rowsPerStatement;
+      this.inFlight = new Semaphore(threads * 2);
+   }
+
+   /**
+    * Loads every table stage by stage.
+    *
+    * @param dataDir the directory holding the CSV files
+    * @throws Exception when a file could not be read or a batch failed
+    */
+   public void loadAll(final File dataDir) throws Exception {
+      for (Table[] stage : STAGES) {
+         // one reader per table of the stage, all feeding the same workers
+         ExecutorService readers = Executors.newFixedThreadPool(stage.length);
+         List<Future<Long>> results = new ArrayList<Future<Long>>();
+         for (final Table table : stage) {
+            results.add(readers.submit(new Callable<Long>() {
+               public Long call() throws Exception {
+                  return Long.valueOf(loadTable(table, new File(dataDir, table.file)));
+               }
+            }));
+         }
+         readers.shutdown();
+         for (Future<Long> result : results)
+            result.get();
+      }
+   }// end loadAll
+
+   /**
+    * Loads every table, then adds the foreign keys and indexes and moves the
+    * serial sequences past the loaded ids.
+    *
+    * @param dataDir the directory holding the CSV files
+    * @param sqlDir  the directory holding create_foreign_keys.sql and create_indexes.sql
+    * @throws Exception when the data or a script could not be loaded
+    */
+   public void loadDatabase(File dataDir, File sqlDir) throws Exception {
+      loadAll(dataDir);
+      // constraints and indexes are built once over the loaded data instead of row by row
+      runScript(new File(sqlDir, "create_foreign_keys.sql"));
+      runScript(new File(sqlDir, "create_indexes.sql"));
+      resetSequences();
+   }// end loadDatabase
+
+   /**
+    * Loads one CSV file, skipping its header line.
+    *
+    * @param table the target table
+    * @param file  the CSV file
+    * @return the number of rows loaded
+    * @throws Exception when the file could not be read or a batch failed
+    */
+   public long loadTable(final Table table, File file) throws Exception {
+      long start = System.nanoTime();
+      long rows = 0;
+      List<Future<?>> batches = new ArrayList<Future<?>>();
+      BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16);
+      try {
+         reader.readLine(); // header
+         List<String[]> batch = new ArrayList<String[]>(this.rowsPerStatement);
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.isEmpty())
+               continue;
+            batch.add(splitCsv(line, table.columns.length));
+            rows++;
+            if (batch.size() == this.rowsPerStatement) {
+               batches.add(submit(table, batch));
+               batch = new ArrayList<String[]>(this.rowsPerStatement);
+            }
+         }
+         if (!batch.isEmpty())
+            batches.add(submit(table, batch));
+      } finally {
+         reader.close();
+      }
+      for (Future<?> batch : batches)
+         batch.get();
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("Loaded %d rows into %s in %.2f s (%.0f rows/s)", rows, table.name, seconds,
+            seconds > 0 ? rows / seconds : 0.0));
+      return rows;
+   }// end loadTable
+
+   private Future<?> submit(final Table table, final List<String[]> batch) throws InterruptedException {
+      this.inFlight.acquire();
+      return this.workers.submit(new Callable<Void>() {
+         public Void call() throws Exception {
+            try {
+               insertRows(table, batch);
+               return null;
+            } finally {
+               inFlight.release();
+            }
+         }
+      });
+   }
+
+   /**
+    * Inserts a batch of rows with one multi-row INSERT in its own transaction.
+    */
+   void insertRows(Table table, List<String[]> batch) throws SQLException {
+      PooledConnection conn = this.pool.borrow();
+      try {
+         conn.getConnection().setAutoCommit(false);
+         PreparedStatement stmt = conn.prepare(insertSql(table, batch.size()));
+         int n = table.columns.length;
+         int param = 1;
+         for (String[] row : batch) {
+            for (int c = 0; c < n; c++)
+               bindValue(stmt, param++, table.types.charAt(c), row[c]);
+         }
+         stmt.executeUpdate();
+         conn.getConnection().commit();
+      } finally {
+         this.pool.release(conn);
+      }
+   }// end insertRows
+
+   static String insertSql(Table table, int rows) {
+      StringBuilder sql = new StringBuilder("INSERT INTO ").append(table.name).append(" (");
+      for (int c = 0; c < table.columns.length; c++) {
+         if (c > 0)
+            sql.append(", ");
+         sql.append(table.columns[c]);
+      }
+      sql.append(") VALUES ");
+      for (int r = 0; r < rows; r++) {
+         sql.append(r == 0 ? "(" : ", (");
+         for (int c = 0; c < table.columns.length; c++)
+            sql.append(c == 0 ? "?" : ", ?");
+         sql.append(')');
+      }
+      return sql.toString();
+   }
+
+   static void bindValue(PreparedStatement stmt, int index, char type, String value) throws SQLException {
+      if (value == null || value.isEmpty()) {
+         stmt.setNull(index, type == 'i' ? Types.INTEGER : Types.VARCHAR);
+         return;
+      }
+      switch (type) {
+         case 'i':
+            stmt.setInt(index, Integer.parseInt(value));
+            break;
+         case 'd':
+            stmt.setDouble(index, Double.parseDouble(value));
+            break;
+         case 'D':
+            stmt.setDate(index, parseDate(value));
+            break;
+         case 'T':
+            stmt.setTimestamp(index, Timestamp.valueOf(value));
+            break;
+         default:
+            stmt.setString(index, value);
+            break;
+      }
+   }
+
+   // accepts ISO dates and the M/d/yyyy dates used in stores.csv
+   static Date parseDate(String value) {
+      if (value.indexOf('/') < 0)
+         return Date.valueOf(value);
+      String[] parts = value.split("/");
+      return Date.valueOf(parts[2] + "-" + parts[0] + "-" + parts[1]);
+   }
+
+   /**
+    * Splits one CSV line, honouring double-quoted fields.
+    */
+   static String[] splitCsv(String line, int columns) {
+      String[] fields = new String[columns];
+      int field = 0;
+      StringBuilder current = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+         char ch = line.charAt(i);
+         if (quoted) {
+            if (ch == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+               current.append('"');
+               i++;
+            } else if (ch == '"') {
+               quoted = false;
+            } else {
+               current.append(ch);
+            }
+         } else if (ch == '"') {
+            quoted = true;
+         } else if (ch == ',') {
+            if (field < columns)
+               fields[field] = current.toString();
+            field++;
+            current.setLength(0);
+         } else {
+            current.append(ch);
+         }
+      }
+      if (field < columns)
+         fields[field] = current.toString();
+      return fields;
+   }// end splitCsv
+
+   /**
+    * Moves every serial sequence past the largest loaded key.
+    *
+    * @throws java.sql.SQLException when a sequence could not be reset
+    */
+   public void resetSequences() throws SQLException {
+      for (Table[] stage : STAGES) {
+         for (Table table : stage) {
+            if (table.serialColumn == null)
+               continue;
+            execute(String.format(
+                  "SELECT setval(pg_get_serial_sequence('%s', '%s'), COALESCE(MAX(%s), 0) + 1, false) FROM %s",
+                  table.name.toLowerCase(), table.serialColumn.toLowerCase(), table.serialColumn, table.name));
+         }
+      }
+   }// end resetSequences
+
+   /**
+    * Installs the functions and triggers of triggers.sql and rebuilds the
+    * sales aggregates from the loaded orders, as create_db.sh does after
+    * the load.
+    *
+    * @param sqlDir the directory holding triggers.sql
+    * @throws Exception when the script or the rebuild failed
+    */
+   public void installTriggers(File sqlDir) throws Exception {
+      runScript(new File(sqlDir, "triggers.sql"));
+      long start = System.nanoTime();
+      execute("SELECT rebuild_sales_aggregates()");
+      System.out.println(String.format("Rebuilt sales aggregates in %.2f s", (System.nanoTime() - start) / 1e9));
+   }// end installTriggers
+
+   /**
+    * Runs a SQL script of ';'-terminated statements, such as
+    * create_indexes.sql. A ';' inside a dollar-quoted function body, e.g.
+    * $BODY$ ... $BODY$, does not end the statement.
+    *
+    * @param script the script file
+    * @throws Exception when the file could not be read or a statement failed
+    */
+   public void runScript(File script) throws Exception {
+      long start = System.nanoTime();
+      StringBuilder text = new StringBuilder();
+      BufferedReader reader = new BufferedReader(new FileReader(script));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (!line.trim().startsWith("--"))
+               text.append(line).append('\n');
+         }
+      } finally {
+         reader.close();
+      }
+      for (String sql : statements(text.toString())) {
+         if (!sql.trim().isEmpty())
+            execute(sql.trim());
+      }
+      System.out.println(String.format("Ran %s in %.2f s", script.getName(), (System.nanoTime() - start) / 1e9));
+   }// end runScript
+
+   // splits on ';' outside of dollar quotes
+   static List<String> statements(String script) {
+      List<String> statements = new ArrayList<String>();
+      String quote = null;
+      int start = 0;
+      int i = 0;
+      while (i < script.length()) {
+         char ch = script.charAt(i);
+         if (ch == '$') {
+            int end = script.indexOf('$', i + 1);
+            if (end > 0 && script.substring(i + 1, end).matches("[A-Za-z_]*")) {
+               String tag = script.substring(i, end + 1);
+               if (quote == null)
+                  quote = tag;
+               else if (quote.equals(tag))
+                  quote = null;
+               i = end + 1;
+               continue;
+            }
+         } else if (ch == ';' && quote == null) {
+            statements.add(script.substring(start, i));
+            start = i + 1;
+         }
+         i++;
+      }
+      statements.add(script.substring(start));
+      return statements;
+   }// end statements
+
+   private void execute(String sql) throws SQLException {
+      PooledConnection conn = this.pool.borrow();
+      try {
+         Connection c = conn.getConnection();
+         Statement stmt = c.createStatement();
+         try {
+            stmt.execute(sql);
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         this.pool.release(conn);
+      }
+   }
+
+   /**
+    * Stops the insert workers.
+    */
+   public void shutdown() {
+      this.workers.shutdown();
+   }
+
+   /**
+    * Loads the CSV files into a database created with create_tables.sql,
+    * then creates the foreign keys and indexes and resets the sequences.
+    *
+    * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;data dir&gt;
+    *             &lt;sql dir&gt; [threads]
+    */
+   public static void main(String[] args) {
+      if (args.length < 5) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     BulkLoader.class.getName() +
+                     " <dbname> <port> <user> <data dir> <sql dir> [threads]");
+         return;
+      } // end if
+
+      int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+      ConnectionPool pool = null;
+      BulkLoader loader = null;
+      boolean failed = false;
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+         pool = new ConnectionPool(url, args[2], "", threads, 600000L, 600000L, 0L, 16);
+         loader = new BulkLoader(pool, threads, Integer.getInteger("amazon.load.rowsPerStatement", 1000));
+
+         long start = System.nanoTime();
+         loader.loadDatabase(new File(args[3]), new File(args[4]));
+         System.out.println(String.format("Bulk load finished in %.2f s", (System.nanoTime() - start) / 1e9));
+      } catch (Exception e) {
+         System.err.println("Bulk load failed: " + e.getMessage());
+         failed = true;
+      } finally {
+         if (loader != null)
+            loader.shutdown();
+         if (pool != null)
+            pool.close();
+      } // end try
+      if (failed)
+         System.exit(-1);
+   }// end main
+}// end BulkLoader
@@ -0,0 +1,202 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Delivers PostgreSQL NOTIFY events to in-memory caches. A dedicated
+ * connection outside the pool LISTENs on the registered channels and is
+ * polled by a background thread, since the driver only surfaces
+ * notifications after a query. When the connection is lost it is reopened
+ * and every listener is notified, because changes may have been missed.
+ *
+ */
+public class ChangeNotifier {
+
+   /**
+    * Callback invoked from the polling thread when a channel is notified.
+    */
+   public interface Listener {
+      void onNotify(String channel);
+   }
+
+   private final ConnectionPool pool;
+   private final long pollMillis;
+   private final Map<String, List<Listener>> listeners = new ConcurrentHashMap<String, List<Listener>>();
+   private final Thread poller;
+
+   // guarded by this
+   private Connection connection;
+   private volatile boolean closed = false;
+
+   /**
+    * Opens the listening connection and starts the polling thread.
+    *
+    * @param pool       the pool whose settings are used to open the connection
+    * @param pollMillis how often to check for notifications
+    * @throws java.sql.SQLException when the connection could not be opened
+    */
+   public ChangeNotifier(ConnectionPool pool, long pollMillis) throws SQLException {
+      this.pool = pool;
+      this.pollMillis = pollMillis;
+      this.connection = pool.openConnection();
+      this.poller = new Thread(new Runnable() {
+         public void run() {
+            pollLoop();
+         }
+      }, "amazon-change-notifier");
+      this.poller.setDaemon(true);
+      this.poller.start();
+   }// end ChangeNotifier
+
+   /**
+    * Subscribes a listener to a channel, issuing LISTEN the first time the
+    * channel is used. Subscribing the same listener twice has no effect.
+    *
+    * @param channel  the channel name, a plain SQL identifier
+    * @param listener the callback to invoke
+    * @throws java.sql.SQLException when LISTEN failed
+    */
+   public void listen(String channel, Listener listener) throws SQLException {
+      checkChannel(channel);
+      synchronized (this) {
+         List<Listener> list = this.listeners.get(channel);
+         if (list == null) {
+            list = new CopyOnWriteArrayList<Listener>();
+            this.listeners.put(channel, list);
+            execute("LISTEN " + channel);
+         }
+         if (!list.contains(listener))
+            list.add(listener);
+      }
+   }// end listen
+
+   /**
+    * Removes a listener, issuing UNLISTEN once a channel has no listeners left.
+    *
+    * @param channel  the channel name
+    * @param listener the callback to remove
+    */
+   public void unlisten(String channel, Listener listener) {
+      synchronized (this) {
+         List<Listener> list = this.listeners.get(channel);
+         if (list == null)
+            return;
+         list.remove(listener);
+         if (list.isEmpty()) {
+            this.listeners.remove(channel);
+            try {
+               execute("UNLISTEN " + channel);
+            } catch (SQLException e) {
+               // ignored, the channel is reset when the connection is reopened.
+            }
+         }
+      }
+   }// end unlisten
+
+   private void execute(String sql) throws SQLException {
+      Statement stmt = this.connection.createStatement();
+      try {
+         stmt.executeUpdate(sql);
+      } finally {
+         stmt.close();
+      }
+   }
+
+   private static void checkChannel(String channel) {
+      if (!channel.matches("[A-Za-z_][A-Za-z0-9_]*"))
+         throw new IllegalArgumentException("Invalid channel name: " + channel);
+   }
+
+   private void pollLoop() {
+      while (!closed) {
+         try {
+            Thread.sleep(this.pollMillis);
+         } catch (InterruptedException e) {
+            return;
+         }
+         PGNotification[] notifications;
+         try {
+            synchronized (this) {
+               // any round trip makes the driver pick up pending notifications
+               Statement stmt = this.connection.createStatement();
+               try {
+                  ResultSet rs = stmt.executeQuery("SELECT 1");
+                  rs.close();
+               } finally {
+                  stmt.close();
+               }
+               notifications = ((PGConnection) this.connection).getNotifications();
+            }
+         } catch (SQLException e) {
+            if (!closed)
+               reconnect();
+            continue;
+         }
+         if (notifications == null)
+            continue;
+         for (int i = 0; i < notifications.length; i++)
+            dispatch(notifications[i].getName());
+      } // end while
+   }// end pollLoop
+
+   private void dispatch(String channel) {
+      List<Listener> list = this.listeners.get(channel);
+      if (list == null) {
+         // the server may report the channel name folded to lower case
+         list = this.listeners.get(channel.toLowerCase());
+      }
+      if (list == null)
+         return;
+      for (Listener listener : list) {
+         try {
+            listener.onNotify(channel);
+         } catch (RuntimeException e) {
+            System.err.println("Change listener failed on " + channel + ": " + e.getMessage());
+         }
+      }
+   }
+
+   private void reconnect() {
+      synchronized (this) {
+         try {
+            this.connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+         try {
+            this.connection = this.pool.openConnection();
+            for (String channel : this.listeners.keySet())
+               execute("LISTEN " + channel);
+         } catch (SQLException e) {
+            System.err.println("Unable to reopen the change notification connection: " + e.getMessage());
+            return;
+         }
+      }
+      // anything may have changed while we were not listening
+      for (String channel : this.listeners.keySet())
+         dispatch(channel);
+   }// end reconnect
+
+   /**
+    * Stops the polling thread and closes the listening connection.
+    */
+   public void close() {
+      closed = true;
+      this.poller.interrupt();
+      synchronized (this) {
+         try {
+            this.connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }// end close
+}// end ChangeNotifier
@@ -0,0 +1,418 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of physical PostgreSQL connections shared by many Amazon
+ * sessions. Connections are validated when borrowed after sitting idle,
+ * evicted when idle for too long and recycled once they reach their maximum
+ * lifetime. Callers that find the pool exhausted wait in a fair FIFO queue.
+ *
+ */
+public class ConnectionPool {
+
+   // connection settings
+   private final String url;
+   private final String user;
+   private final String passwd;
+
+   // pool settings, all times in milliseconds
+   private final int maxSize;
+   private final long maxWaitMillis;
+   private final long idleTimeoutMillis;
+   private final long maxLifetimeMillis;
+   private final long validationIntervalMillis;
+   private final int statementCacheSize;
+
+   // idle connections, most recently returned first
+   private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+
+   // fair lock so waiting callers are served in arrival order
+   private final ReentrantLock lock = new ReentrantLock(true);
+   private final Condition available = lock.newCondition();
+
+   // number of physical connections currently open (idle + borrowed)
+   private int open = 0;
+   private boolean closed = false;
+
+   // metrics, guarded by lock
+   private long borrowCount = 0;
+   private long waitCount = 0;
+   private long timeoutCount = 0;
+   private long totalWaitNanos = 0;
+   private long maxWaitNanos = 0;
+   private long createdCount = 0;
+   private long evictedCount = 0;
+   private long validationFailures = 0;
+   private int waiting = 0;
+   private final AtomicLong statementCacheHits = new AtomicLong();
+   private final AtomicLong statementCacheMisses = new AtomicLong();
+
+   // statement run on every new physical connection, e.g. to SET session variables
+   private volatile String initSql = null;
+
+   private final Thread evictor;
+
+   /**
+    * Creates a new pool. No connection is opened until the first borrow.
+    *
+    * @param url                 the JDBC connection URL
+    * @param user                the user name used to login to the database
+    * @param passwd              the user login password
+    * @param maxSize             the maximum number of physical connections
+    * @param maxWaitMillis       how long a borrow may wait before failing
+    * @param idleTimeoutMillis   how long a connection may sit idle before it is closed
+    * @param maxLifetimeMillis   how long a connection may live before it is recycled
+    * @param statementCacheSize  how many prepared statements each connection keeps
+    */
+   public ConnectionPool(String url, String user, String passwd, int maxSize, long maxWaitMillis,
+         long idleTimeoutMillis, long maxLifetimeMillis, int statementCacheSize) {
+      if (maxSize < 1)
+         throw new IllegalArgumentException("maxSize must be at least 1");
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.maxSize = maxSize;
+      this.maxWaitMillis = maxWaitMillis;
+      this.idleTimeoutMillis = idleTimeoutMillis;
+      this.maxLifetimeMillis = maxLifetimeMillis;
+      this.statementCacheSize = statementCacheSize;
+      // a connection that was used a moment ago is trusted without a round trip
+      this.validationIntervalMillis = 5000;
+
+      this.evictor = new Thread(new Runnable() {
+         public void run() {
+            evictLoop();
+         }
+      }, "amazon-pool-evictor");
+      this.evictor.setDaemon(true);
+      this.evictor.start();
+   }// end ConnectionPool
+
+   /**
+    * Borrows a connection from the pool, opening a new one if the pool is
+    * below its maximum size, otherwise waiting for one to be returned.
+    *
+    * @return a validated connection that must be handed back with release()
+    * @throws java.sql.SQLException when no connection became available in time
+    *                               or a new connection could not be opened
+    */
+   public PooledConnection borrow() throws SQLException {
+      return borrow(this.maxWaitMillis);
+   }
+
+   /**
+    * Same as borrow() with an explicit wait limit. A limit of zero fails
+    * immediately when the pool is exhausted.
+    *
+    * @param waitMillis how long to wait for a connection
+    * @return a validated connection that must be handed back with release()
+    * @throws java.sql.SQLException when no connection became available in time
+    */
+   public PooledConnection borrow(long waitMillis) throws SQLException {
+      long start = System.nanoTime();
+      long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+      boolean waited = false;
+
+      while (true) {
+         PooledConnection candidate = null;
+         boolean create = false;
+
+         lock.lock();
+         try {
+            while (true) {
+               if (closed)
+                  throw new SQLException("Connection pool is closed");
+               if (!idle.isEmpty()) {
+                  candidate = idle.pollFirst();
+                  break;
+               }
+               if (open < maxSize) {
+                  // reserve the slot before leaving the lock
+                  open++;
+                  create = true;
+                  break;
+               }
+               if (remaining <= 0) {
+                  timeoutCount++;
+                  throw new SQLException("Timed out after " + waitMillis
+                        + " ms waiting for a database connection (pool size " + maxSize + ")");
+               }
+               if (!waited) {
+                  waited = true;
+                  waitCount++;
+               }
+               waiting++;
+               try {
+                  remaining = available.awaitNanos(remaining);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new SQLException("Interrupted while waiting for a database connection");
+               } finally {
+                  waiting--;
+               }
+            } // end while
+         } finally {
+            lock.unlock();
+         }
+
+         if (create) {
+            try {
+               candidate = new PooledConnection(newConnection(), statementCacheSize, statementCacheHits,
+                     statementCacheMisses);
+            } catch (SQLException e) {
+               lock.lock();
+               try {
+                  open--;
+                  available.signal();
+               } finally {
+                  lock.unlock();
+               }
+               throw e;
+            }
+            lock.lock();
+            try {
+               createdCount++;
+            } finally {
+               lock.unlock();
+            }
+         } else {
+            long now = System.currentTimeMillis();
+            boolean expired = isExpired(candidate, now);
+            if (expired || (now - candidate.getLastReturned() > validationIntervalMillis && !candidate.validate())) {
+               // stale or broken, drop it and try again; discard() counts it as evicted
+               if (!expired) {
+                  lock.lock();
+                  try {
+                     validationFailures++;
+                  } finally {
+                     lock.unlock();
+                  }
+               }
+               discard(candidate);
+               remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis) - (System.nanoTime() - start);
+               continue;
+            }
+         }
+
+         long waitedNanos = System.nanoTime() - start;
+         lock.lock();
+         try {
+            borrowCount++;
+            totalWaitNanos += waitedNanos;
+            if (waitedNanos > maxWaitNanos)
+               maxWaitNanos = waitedNanos;
+         } finally {
+            lock.unlock();
+         }
+         return candidate;
+      } // end while
+   }// end borrow
+
+   private Connection newConnection() throws SQLException {
+      Connection conn = DriverManager.getConnection(url, user, passwd);
+      String sql = this.initSql;
+      if (sql != null) {
+         try {
+            Statement stmt = conn.createStatement();
+            try {
+               stmt.executeUpdate(sql);
+            } finally {
+               stmt.close();
+            }
+         } catch (SQLException e) {
+            conn.close();
+            throw e;
+         }
+      }
+      return conn;
+   }
+
+   /**
+    * Sets a statement to run on every physical connection the pool opens
+    * from now on. Call it before the first borrow so that every pooled
+    * connection runs it.
+    *
+    * @param sql the statement, or null for none
+    */
+   public void setInitSql(String sql) {
+      this.initSql = sql;
+   }
+
+   /**
+    * Opens a physical connection with the pool's settings that is not
+    * managed by the pool, for long-lived uses such as LISTEN. The caller
+    * is responsible for closing it.
+    *
+    * @return a new connection
+    * @throws java.sql.SQLException when the connection could not be opened
+    */
+   public Connection openConnection() throws SQLException {
+      return DriverManager.getConnection(url, user, passwd);
+   }
+
+   /**
+    * Hands a borrowed connection back to the pool. Connections that were
+    * closed or reached their maximum lifetime are discarded instead.
+    *
+    * @param conn the connection returned by borrow(), may be null
+    */
+   public void release(PooledConnection conn) {
+      if (conn == null)
+         return;
+      boolean broken;
+      try {
+         broken = conn.getConnection().isClosed();
+         if (!broken && !conn.getConnection().getAutoCommit()) {
+            // never hand out a connection with a transaction left open
+            conn.getConnection().rollback();
+            conn.getConnection().setAutoCommit(true);
+         }
+      } catch (SQLException e) {
+         broken = true;
+      }
+      if (broken || isExpired(conn, System.currentTimeMillis())) {
+         discard(conn);
+         return;
+      }
+      conn.markReturned();
+      lock.lock();
+      try {
+         if (closed) {
+            open--;
+            conn.close();
+            return;
+         }
+         idle.offerFirst(conn);
+         available.signal();
+      } finally {
+         lock.unlock();
+      }
+   }// end release
+
+   /**
+    * Closes a connection and frees its slot in the pool.
+    */
+   private void discard(PooledConnection conn) {
+      conn.close();
+      lock.lock();
+      try {
+         open--;
+         evictedCount++;
+         available.signal();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   private boolean isExpired(PooledConnection conn, long now) {
+      return maxLifetimeMillis > 0 && now - conn.getCreatedAt() > maxLifetimeMillis;
+   }
+
+   /**
+    * Background loop closing idle connections that exceeded the idle timeout
+    * or the maximum lifetime.
+    */
+   private void evictLoop() {
+      long period = Math.max(1000, Math.min(idleTimeoutMillis, 30000) / 2);
+      while (true) {
+         try {
+            Thread.sleep(period);
+         } catch (InterruptedException e) {
+            return;
+         }
+         List<PooledConnection> expired = new ArrayList<PooledConnection>();
+         long now = System.currentTimeMillis();
+         lock.lock();
+         try {
+            if (closed)
+               return;
+            Iterator<PooledConnection> it = idle.iterator();
+            while (it.hasNext()) {
+               PooledConnection conn = it.next();
+               if ((idleTimeoutMillis > 0 && now - conn.getLastReturned() > idleTimeoutMillis)
+                     || isExpired(conn, now)) {
+                  it.remove();
+                  expired.add(conn);
+               }
+            }
+         } finally {
+            lock.unlock();
+         }
+         for (PooledConnection conn : expired)
+            discard(conn);
+      } // end while
+   }// end evictLoop
+
+   /**
+    * Closes every idle connection and refuses further borrows. Borrowed
+    * connections are closed as they are released.
+    */
+   public void close() {
+      List<PooledConnection> toClose;
+      lock.lock();
+      try {
+         closed = true;
+         toClose = new ArrayList<PooledConnection>(idle);
+         idle.clear();
+         open -= toClose.size();
+         available.signalAll();
+      } finally {
+         lock.unlock();
+      }
+      for (PooledConnection conn : toClose)
+         conn.close();
+      this.evictor.interrupt();
+   }// end close
+
+   /**
+    * @return the maximum number of physical connections
+    */
+   public int getMaxSize() {
+      return this.maxSize;
+   }
+
+   /**
+    * Tells background work whether it can take a connection without
+    * making a request wait for one.
+    *
+    * @param reserve connections to leave for requests
+    * @return true when nobody is waiting and more than reserve connections
+    *         are idle or can still be opened
+    */
+   public boolean hasSpare(int reserve) {
+      lock.lock();
+      try {
+         return !closed && waiting == 0 && idle.size() + (maxSize - open) > reserve;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return a one-line summary of the pool state and wait-queue metrics
+    */
+   public String getStats() {
+      lock.lock();
+      try {
+         double avgWaitMs = borrowCount == 0 ? 0.0 : totalWaitNanos / 1e6 / borrowCount;
+         return String.format(
+               "open=%d idle=%d waiting=%d borrows=%d waits=%d timeouts=%d avgWaitMs=%.3f maxWaitMs=%.3f created=%d evicted=%d validationFailures=%d stmtCacheHits=%d stmtCacheMisses=%d",
+               open, idle.size(), waiting, borrowCount, waitCount, timeoutCount, avgWaitMs, maxWaitNanos / 1e6,
+               createdCount, evictedCount, validationFailures, statementCacheHits.get(),
+               statementCacheMisses.get());
+      } finally {
+         lock.unlock();
+      }
+   }// end getStats
+}// end ConnectionPool
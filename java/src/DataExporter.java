@@ -0,0 +1,548 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports Orders, ProductUpdates and ProductSupplyRequests to gzipped CSV
+ * files for analytics, so reports run on the files instead of on the live
+ * tables. Each table goes to its own directory, split into one directory
+ * per day:
+ *
+ *   out/Orders/date=2016-09-10/part-1.csv.gz
+ *
+ * Exports are incremental. The _highwater file of every table holds the
+ * last key exported and the run number, and a run exports the rows past
+ * that key in key order on a single connection. The rows are read with an
+ * explicit DECLARE ... CURSOR and FETCH fetchSize at a time, since the
+ * bundled 7.3 driver has neither CopyManager nor setFetchSize. The part
+ * files of a run are named after its number and written under a temporary
+ * name; the state moves only once all of them are in place, and a run that
+ * failed is redone over the same part names.
+ *
+ * Keys are drawn from a sequence before their row commits, and write-behind
+ * orders can commit long after larger order numbers did, so a key missing
+ * below the high-water mark may still show up. Every key a run skips is
+ * kept in _highwater as a gap and looked up again by the following runs,
+ * until its row is exported or the gap is older than gapMillis; a rolled
+ * back insert or an order number never used leaves a gap that never fills.
+ * At most maxGaps are kept, the smallest keys are given up first.
+ *
+ */
+public class DataExporter {
+
+   /**
+    * A table exported by key. Column types are 'i' (number) and 's' (text,
+    * trimmed); the first column is the key and the last column is the time
+    * the row is partitioned by.
+    */
+   static final class Source {
+      final String name;
+      final String header;
+      final String types;
+      final String select;
+      final String keyColumn;
+      // the largest key
+      final String bound;
+
+      Source(String name, String header, String types, String select, String keyColumn, String bound) {
+         this.name = name;
+         this.header = header;
+         this.types = types;
+         this.select = select;
+         this.keyColumn = keyColumn;
+         this.bound = bound;
+      }
+   }
+
+   static final Source ORDERS = new Source("Orders",
+         "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime", "iiisis",
+         "SELECT orderNumber, customerID, storeID, productName, unitsOrdered, orderTime FROM Orders",
+         "orderNumber", "SELECT max(orderNumber) FROM Orders");
+   static final Source PRODUCT_UPDATES = new Source("ProductUpdates",
+         "updateNumber,managerID,storeID,productName,updatedOn", "iiiss",
+         "SELECT updateNumber, managerID, storeID, productName, updatedOn FROM ProductUpdates", "updateNumber",
+         "SELECT max(updateNumber) FROM ProductUpdates");
+   // requests of a consolidated shipment are dated by it, the others by the day they were exported
+   static final Source SUPPLY_REQUESTS = new Source("ProductSupplyRequests",
+         "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested,shipmentID,createdOn",
+         "iiiisiis",
+         "SELECT r.requestNumber, r.managerID, r.warehouseID, r.storeID, r.productName, r.unitsRequested,"
+               + " r.shipmentID, s.createdOn FROM ProductSupplyRequests r"
+               + " LEFT JOIN SupplyShipments s ON s.shipmentID = r.shipmentID",
+         "r.requestNumber", "SELECT max(requestNumber) FROM ProductSupplyRequests");
+
+   static final Source[] SOURCES = new Source[] { ORDERS, PRODUCT_UPDATES, SUPPLY_REQUESTS };
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final String HIGH_WATER = "_highwater";
+   private static final String SUFFIX = ".csv.gz";
+   private static final String TEMP = ".tmp";
+   private static final String CURSOR = "amazon_export";
+   // gap keys looked up per statement
+   private static final int GAPS_PER_QUERY = 1000;
+
+   // one part file being written
+   private static final class Part {
+      final File temp;
+      final File file;
+      final Writer out;
+
+      Part(File temp, File file) throws IOException {
+         this.temp = temp;
+         this.file = file;
+         this.out = new BufferedWriter(new OutputStreamWriter(
+               new GZIPOutputStream(new FileOutputStream(temp), 1 << 16), UTF8), 1 << 16);
+      }
+   }
+
+   /**
+    * What _highwater holds for a table.
+    */
+   static final class State {
+      // number of the next run
+      long run = 1;
+      // last key exported
+      long highWater = 0;
+      // key below highWater not exported yet -> when it was first missed
+      final TreeMap<Long, Long> gaps = new TreeMap<Long, Long>();
+   }
+
+   // the part files of one run, one per day at a time
+   private final class Run {
+      final File dir;
+      final Source source;
+      final String first;
+      final String today = new SimpleDateFormat("yyyy-MM-dd").format(new java.util.Date());
+      // least recently written first, so the oldest day is closed when too many are open
+      final LinkedHashMap<String, Part> open = new LinkedHashMap<String, Part>(16, 0.75f, true);
+      final Map<String, Integer> parts = new LinkedHashMap<String, Integer>();
+      final List<Part> written = new ArrayList<Part>();
+      final StringBuilder line = new StringBuilder(128);
+      long rows = 0;
+
+      Run(File dir, Source source, String first) {
+         this.dir = dir;
+         this.source = source;
+         this.first = first;
+      }
+
+      void write(ResultSet rs) throws SQLException, IOException {
+         int columns = this.source.types.length();
+         String time = rs.getString(columns);
+         String day = time == null || time.length() < 10 ? this.today : time.substring(0, 10);
+         Part part = this.open.get(day);
+         if (part == null) {
+            Integer count = this.parts.get(day);
+            int n = count == null ? 0 : count.intValue();
+            this.parts.put(day, Integer.valueOf(n + 1));
+            String name = n == 0 ? this.first : this.first + "-" + n;
+            File dayDir = new File(this.dir, "date=" + day);
+            if (!dayDir.isDirectory() && !dayDir.mkdirs())
+               throw new IOException("Unable to create " + dayDir);
+            part = new Part(new File(dayDir, name + SUFFIX + TEMP), new File(dayDir, name + SUFFIX));
+            this.written.add(part);
+            part.out.write(this.source.header);
+            part.out.write('\n');
+            this.open.put(day, part);
+            if (this.open.size() > DataExporter.this.maxOpenFiles) {
+               Iterator<Part> eldest = this.open.values().iterator();
+               eldest.next().out.close();
+               eldest.remove();
+            }
+         }
+         this.line.setLength(0);
+         for (int i = 1; i <= columns; i++) {
+            if (i > 1)
+               this.line.append(',');
+            String value = rs.getString(i);
+            if (value != null)
+               appendValue(this.line, this.source.types.charAt(i - 1) == 's' ? value.trim() : value);
+         }
+         this.line.append('\n');
+         part.out.write(this.line.toString());
+         this.rows++;
+      }// end write
+
+      // closes the files and moves them in place
+      void finish() throws IOException {
+         for (Part part : this.open.values())
+            part.out.close();
+         this.open.clear();
+         for (Part part : this.written) {
+            if (!part.temp.renameTo(part.file))
+               throw new IOException("Unable to rename " + part.temp + " to " + part.file);
+         }
+      }
+
+      // deletes the files of a run that failed
+      void abort() {
+         for (Part part : this.open.values()) {
+            try {
+               part.out.close();
+            } catch (IOException e) {
+               // deleted below
+            }
+         }
+         for (Part part : this.written)
+            part.temp.delete();
+      }
+   }// end Run
+
+   private final ConnectionPool pool;
+   private final File outDir;
+   private final int fetchSize;
+   private final long gapMillis;
+   private final int maxGaps;
+   private final int maxOpenFiles;
+
+   /**
+    * @param pool         the pool the export connection is borrowed from
+    * @param outDir       the directory holding one directory per table
+    * @param fetchSize    the number of rows read per FETCH
+    * @param gapMillis    how long a missing key is looked up again
+    * @param maxGaps      the most missing keys kept per table
+    * @param maxOpenFiles the most part files open at once; a day written
+    *                     again after its file was closed gets another part
+    */
+   public DataExporter(ConnectionPool pool, File outDir, int fetchSize, long gapMillis, int maxGaps,
+         int maxOpenFiles) {
+      this.pool = pool;
+      this.outDir = outDir;
+      this.fetchSize = Math.max(1, fetchSize);
+      this.gapMillis = gapMillis;
+      this.maxGaps = maxGaps;
+      this.maxOpenFiles = Math.max(1, maxOpenFiles);
+   }
+
+   /**
+    * Exports the rows of a table past its high-water mark, and the rows of
+    * its gaps that showed up since the last run.
+    *
+    * @return the number of rows exported
+    * @throws java.sql.SQLException when the rows could not be read
+    * @throws java.io.IOException   when the files could not be written
+    */
+   public long export(Source source) throws SQLException, IOException {
+      File dir = new File(this.outDir, source.name);
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Unable to create " + dir);
+      State state = readState(dir);
+      long now = System.currentTimeMillis();
+      int expired = 0;
+      Iterator<Long> since = state.gaps.values().iterator();
+      while (since.hasNext()) {
+         if (now - since.next().longValue() > this.gapMillis) {
+            since.remove();
+            expired++;
+         }
+      }
+      long from = state.highWater;
+      long to = Math.max(from, bound(source));
+      if (to == from && state.gaps.isEmpty()) {
+         if (expired > 0)
+            writeState(dir, state);
+         return 0;
+      }
+
+      Run run = new Run(dir, source, "part-" + state.run);
+      removeParts(dir, run.first);
+      int filled = 0;
+      boolean done = false;
+      PooledConnection conn = this.pool.borrow();
+      try {
+         Connection c = conn.getConnection();
+         // cursors only exist inside a transaction
+         c.setAutoCommit(false);
+         filled = fillGaps(c, run, state.gaps);
+         if (to > from)
+            exportRange(c, run, from, to, state.gaps, now);
+         c.commit();
+         run.finish();
+
+         // the smallest keys are the least likely to still show up
+         while (state.gaps.size() > this.maxGaps) {
+            state.gaps.remove(state.gaps.firstKey());
+            expired++;
+         }
+         state.run++;
+         state.highWater = to;
+         writeState(dir, state);
+         done = true;
+      } finally {
+         // release() rolls back and restores autocommit if the commit was not reached
+         this.pool.release(conn);
+         if (!done)
+            run.abort();
+      }
+      System.out.println(String.format(
+            "Exported %d %s rows (%s %d..%d, %d late) to %d files, %d keys missing, %d given up", run.rows,
+            source.name, source.keyColumn, from + 1, to, filled, run.written.size(), state.gaps.size(), expired));
+      return run.rows;
+   }// end export
+
+   // exports the rows of earlier gaps that were committed since, removing their gaps
+   private int fillGaps(Connection c, Run run, TreeMap<Long, Long> gaps) throws SQLException, IOException {
+      List<Long> keys = new ArrayList<Long>(gaps.keySet());
+      int filled = 0;
+      for (int from = 0; from < keys.size(); from += GAPS_PER_QUERY) {
+         List<Long> chunk = keys.subList(from, Math.min(keys.size(), from + GAPS_PER_QUERY));
+         StringBuilder sql = new StringBuilder(run.source.select).append(" WHERE ").append(run.source.keyColumn)
+               .append(" IN (");
+         for (int i = 0; i < chunk.size(); i++)
+            sql.append(i == 0 ? "?" : ", ?");
+         sql.append(") ORDER BY ").append(run.source.keyColumn);
+         PreparedStatement stmt = c.prepareStatement(sql.toString());
+         try {
+            for (int i = 0; i < chunk.size(); i++)
+               stmt.setInt(i + 1, chunk.get(i).intValue());
+            ResultSet rs = stmt.executeQuery();
+            try {
+               while (rs.next()) {
+                  gaps.remove(Long.valueOf(rs.getLong(1)));
+                  run.write(rs);
+                  filled++;
+               }
+            } finally {
+               rs.close();
+            }
+         } finally {
+            stmt.close();
+         }
+      }
+      return filled;
+   }// end fillGaps
+
+   // exports the keys in (from, to] through a cursor, keeping the ones not found as gaps
+   private void exportRange(Connection c, Run run, long from, long to, TreeMap<Long, Long> gaps, long now)
+         throws SQLException, IOException {
+      Source source = run.source;
+      PreparedStatement declare = c.prepareStatement("DECLARE " + CURSOR + " NO SCROLL CURSOR FOR " + source.select
+            + " WHERE " + source.keyColumn + " > ? AND " + source.keyColumn + " <= ? ORDER BY " + source.keyColumn);
+      try {
+         declare.setInt(1, (int) from);
+         declare.setInt(2, (int) to);
+         declare.execute();
+      } finally {
+         declare.close();
+      }
+      long expected = from + 1;
+      Statement fetch = c.createStatement();
+      try {
+         String sql = "FETCH " + this.fetchSize + " FROM " + CURSOR;
+         while (true) {
+            int fetched = 0;
+            ResultSet rs = fetch.executeQuery(sql);
+            try {
+               while (rs.next()) {
+                  fetched++;
+                  long key = rs.getLong(1);
+                  addGaps(gaps, expected, key - 1, now);
+                  expected = key + 1;
+                  run.write(rs);
+               }
+            } finally {
+               rs.close();
+            }
+            if (fetched < this.fetchSize)
+               break; // the last, partial batch
+         }
+      } finally {
+         fetch.close();
+      }
+      addGaps(gaps, expected, to, now);
+      Statement close = c.createStatement();
+      try {
+         close.execute("CLOSE " + CURSOR);
+      } finally {
+         close.close();
+      }
+   }// end exportRange
+
+   // keeps the keys in [low, high] as gaps, at most the maxGaps largest of them
+   private void addGaps(TreeMap<Long, Long> gaps, long low, long high, long now) {
+      Long since = Long.valueOf(now);
+      for (long key = Math.max(low, high - this.maxGaps + 1); key <= high; key++)
+         gaps.put(Long.valueOf(key), since);
+   }
+
+   // the largest key
+   private long bound(Source source) throws SQLException {
+      PooledConnection conn = this.pool.borrow();
+      try {
+         PreparedStatement stmt = conn.prepare(source.bound);
+         ResultSet rs = stmt.executeQuery();
+         try {
+            return rs.next() ? rs.getLong(1) : 0L;
+         } finally {
+            rs.close();
+         }
+      } finally {
+         this.pool.release(conn);
+      }
+   }// end bound
+
+   // quotes text holding a separator, quote or line break
+   static void appendValue(StringBuilder line, String value) {
+      boolean quote = false;
+      for (int i = 0; i < value.length() && !quote; i++) {
+         char ch = value.charAt(i);
+         quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+      }
+      if (!quote) {
+         line.append(value);
+         return;
+      }
+      line.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char ch = value.charAt(i);
+         if (ch == '"')
+            line.append('"');
+         line.append(ch);
+      }
+      line.append('"');
+   }// end appendValue
+
+   // deletes what a failed run with the same number left behind
+   private static void removeParts(File dir, String first) throws IOException {
+      File[] days = dir.listFiles();
+      if (days == null)
+         return;
+      for (File day : days) {
+         File[] files = day.isDirectory() ? day.listFiles() : null;
+         if (files == null)
+            continue;
+         for (File file : files) {
+            String name = file.getName();
+            boolean mine = name.equals(first + SUFFIX) || name.equals(first + SUFFIX + TEMP)
+                  || (name.startsWith(first + "-") && (name.endsWith(SUFFIX) || name.endsWith(SUFFIX + TEMP)));
+            if (mine && !file.delete())
+               throw new IOException("Unable to delete " + file);
+         }
+      }
+   }// end removeParts
+
+   /**
+    * Reads the _highwater file of a table, one "name value" pair per line:
+    * run, highWater, and a "gap key firstMissedMillis" line per gap.
+    *
+    * @return the state, empty when the table was never exported
+    * @throws java.io.IOException when the file could not be read
+    */
+   static State readState(File dir) throws IOException {
+      State state = new State();
+      File file = new File(dir, HIGH_WATER);
+      if (!file.exists())
+         return state;
+      BufferedReader in = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            String[] fields = line.trim().split(" ");
+            if (fields[0].equals("run"))
+               state.run = Long.parseLong(fields[1]);
+            else if (fields[0].equals("highWater"))
+               state.highWater = Long.parseLong(fields[1]);
+            else if (fields[0].equals("gap"))
+               state.gaps.put(Long.valueOf(fields[1]), Long.valueOf(fields[2]));
+         }
+      } catch (RuntimeException e) {
+         throw new IOException("Corrupt high-water mark in " + file);
+      } finally {
+         in.close();
+      }
+      return state;
+   }// end readState
+
+   // replaces the file with a rename, so it is never seen half written
+   private static void writeState(File dir, State state) throws IOException {
+      File temp = new File(dir, HIGH_WATER + TEMP);
+      Writer out = new BufferedWriter(new FileWriter(temp));
+      try {
+         out.write("run " + state.run + "\n");
+         out.write("highWater " + state.highWater + "\n");
+         for (Map.Entry<Long, Long> gap : state.gaps.entrySet())
+            out.write("gap " + gap.getKey() + " " + gap.getValue() + "\n");
+      } finally {
+         out.close();
+      }
+      if (!temp.renameTo(new File(dir, HIGH_WATER)))
+         throw new IOException("Unable to move the high-water mark of " + dir);
+   }// end writeState
+
+   public static void main(String[] args) {
+      if (args.length < 4) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     DataExporter.class.getName() +
+                     " <dbname> <port> <user> <out dir> [table ...]");
+         return;
+      } // end if
+
+      List<Source> sources = new ArrayList<Source>();
+      for (int i = 4; i < args.length; i++) {
+         Source found = null;
+         for (Source source : SOURCES) {
+            if (source.name.equalsIgnoreCase(args[i]))
+               found = source;
+         }
+         if (found == null) {
+            System.err.println(
+                  "Unknown table " + args[i] + ", expected Orders, ProductUpdates or ProductSupplyRequests");
+            return;
+         }
+         sources.add(found);
+      }
+      if (sources.isEmpty()) {
+         for (Source source : SOURCES)
+            sources.add(source);
+      }
+
+      ConnectionPool pool = null;
+      boolean failed = false;
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+         pool = new ConnectionPool(url, args[2], "", 1, 600000L, 600000L, 0L, 4);
+         DataExporter exporter = new DataExporter(pool, new File(args[3]),
+               Integer.getInteger("amazon.export.fetchSize", 10000),
+               Long.getLong("amazon.export.gapMillis", 86400000L),
+               Integer.getInteger("amazon.export.maxGaps", 100000),
+               Integer.getInteger("amazon.export.maxOpenFiles", 8));
+
+         long start = System.nanoTime();
+         for (Source source : sources)
+            exporter.export(source);
+         System.out.println(String.format("Export finished in %.2f s", (System.nanoTime() - start) / 1e9));
+      } catch (Exception e) {
+         System.err.println("Export failed: " + e.getMessage());
+         failed = true;
+      } finally {
+         if (pool != null)
+            pool.close();
+      } // end try
+      if (failed)
+         System.exit(-1);
+   }// end main
+}// end DataExporter
@@ -0,0 +1,465 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Random;
+
+/**
+ * Generates a consistent synthetic dataset in the data/*.csv format, sized by
+ * a TPC-style scale factor: scale 1 matches the fixture (100 users, 20
+ * stores, 200 products, 500 orders) and every table grows linearly with it.
+ *
+ * The distributions aim at the shape of real traffic rather than uniform
+ * noise:
+ * - stores sit in Gaussian clusters, and most customers live around the
+ * same clusters, so radius searches return uneven result sizes;
+ * - products follow a Zipf popularity, both in which products stores carry
+ * and in how often they are ordered;
+ * - customer activity is Zipf distributed, so a few customers place most of
+ * the orders, and customers order from one of their nearest stores.
+ *
+ * The output is written as CSV and can be loaded directly with BulkLoader.
+ * Runs are reproducible for a given seed (amazon.gen.seed) and skew
+ * (amazon.gen.zipf).
+ *
+ */
+public class DataGenerator {
+
+   // sizes of the data/ fixture, i.e. scale factor 1
+   static final int USERS = 100;
+   static final int MANAGERS = 6;
+   static final int STORES = 20;
+   static final int WAREHOUSES = 5;
+   static final int ORDERS = 500;
+   static final int SUPPLY_REQUESTS = 10;
+   static final int PRODUCT_UPDATES = 50;
+   static final int PRODUCTS_PER_STORE = 10;
+
+   // the fixture's products come first and are the most popular
+   static final String[] PRODUCT_NAMES = { "Pepsi", "7up", "Lemonade", "Orange Juice", "Brisk", "Egg", "Donuts",
+         "Ice Cream", "Pudding", "Hot and Sour Soup" };
+
+   // a customer orders from one of its nearest stores
+   static final int NEAREST_STORES = 5;
+
+   // coordinates are kept within decimal(8,6)
+   static final double MAX_COORDINATE = 99.99999;
+
+   private final Random random;
+   private final double skew;
+
+   private final int users;
+   private final int managers;
+   private final int stores;
+   private final int warehouses;
+   private final int orders;
+   private final int supplyRequests;
+   private final int productUpdates;
+   private final int catalogSize;
+
+   // cluster centers shared by stores, customers and warehouses
+   private double[] clusterX;
+   private double[] clusterY;
+   private double clusterSpread;
+
+   // generated state later tables refer to, indexed by id - 1
+   private double[] userX;
+   private double[] userY;
+   private double[] storeX;
+   private double[] storeY;
+   private int[] storeManager;
+   // product indexes carried by each store, most popular first
+   private int[] storeProducts;
+
+   /**
+    * @param scale the scale factor, 1 reproduces the fixture sizes
+    * @param seed  the random seed
+    * @param skew  the Zipf exponent of product and customer popularity
+    */
+   public DataGenerator(double scale, long seed, double skew) {
+      this.random = new Random(seed);
+      this.skew = skew;
+      this.users = scaled(USERS, scale);
+      this.managers = Math.min(scaled(MANAGERS, scale), this.users - 1);
+      this.stores = scaled(STORES, scale);
+      this.warehouses = scaled(WAREHOUSES, scale);
+      this.orders = scaled(ORDERS, scale);
+      this.supplyRequests = scaled(SUPPLY_REQUESTS, scale);
+      this.productUpdates = scaled(PRODUCT_UPDATES, scale);
+      // the catalog grows slower than the store count so popular products are shared
+      this.catalogSize = PRODUCTS_PER_STORE * (int) Math.ceil(Math.sqrt(scale));
+      if (this.users < 2 || this.managers < 1)
+         throw new IllegalArgumentException("Scale factor too small: " + scale);
+   }// end DataGenerator
+
+   private static int scaled(int base, double scale) {
+      return (int) Math.max(1, Math.round(base * scale));
+   }
+
+   /**
+    * Writes every CSV file into the given directory.
+    *
+    * @param dir the output directory, created if missing
+    * @throws java.io.IOException when a file could not be written
+    */
+   public void generate(File dir) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Unable to create " + dir);
+      clusters();
+      writeUsers(new File(dir, "users.csv"));
+      writeWarehouses(new File(dir, "warehouse.csv"));
+      writeStores(new File(dir, "stores.csv"));
+      writeProducts(new File(dir, "products.csv"));
+      writeOrders(new File(dir, "orders.csv"));
+      writeSupplyRequests(new File(dir, "productSupplyRequests.csv"));
+      writeProductUpdates(new File(dir, "productUpdates.csv"));
+   }// end generate
+
+   private void clusters() {
+      int count = Math.max(3, (int) Math.sqrt(this.stores));
+      this.clusterX = new double[count];
+      this.clusterY = new double[count];
+      for (int i = 0; i < count; i++) {
+         this.clusterX[i] = this.random.nextDouble() * MAX_COORDINATE;
+         this.clusterY[i] = this.random.nextDouble() * MAX_COORDINATE;
+      }
+      // roughly half the spacing between neighbouring centers
+      this.clusterSpread = MAX_COORDINATE / Math.sqrt(count) / 2;
+   }
+
+   // a point around a random cluster center, spread times the cluster spread
+   private double[] clustered(double spread) {
+      int c = this.random.nextInt(this.clusterX.length);
+      return new double[] {
+            clamp(this.clusterX[c] + this.random.nextGaussian() * this.clusterSpread * spread),
+            clamp(this.clusterY[c] + this.random.nextGaussian() * this.clusterSpread * spread) };
+   }
+
+   private static double clamp(double coordinate) {
+      return Math.max(0.0, Math.min(MAX_COORDINATE, coordinate));
+   }
+
+   // users 1 is the admin, 2..managers+1 are the managers, the rest are customers
+   private void writeUsers(File file) throws IOException {
+      this.userX = new double[this.users];
+      this.userY = new double[this.users];
+      BufferedWriter out = open(file, "userID,name,password,latitude,longitude,type");
+      try {
+         StringBuilder row = new StringBuilder();
+         for (int id = 1; id <= this.users; id++) {
+            double[] location;
+            if (this.random.nextDouble() < 0.8)
+               location = clustered(2.0);
+            else
+               location = new double[] { this.random.nextDouble() * MAX_COORDINATE,
+                     this.random.nextDouble() * MAX_COORDINATE };
+            this.userX[id - 1] = location[0];
+            this.userY[id - 1] = location[1];
+            String type = id == 1 ? "admin" : id <= this.managers + 1 ? "manager" : "customer";
+            row.setLength(0);
+            row.append(id).append(',').append(id == 1 ? "Admin" : "User_" + id).append(",xyz,");
+            coordinate(row, location[0]).append(',');
+            coordinate(row, location[1]).append(',').append(type);
+            line(out, row);
+         }
+      } finally {
+         out.close();
+      }
+   }// end writeUsers
+
+   private void writeWarehouses(File file) throws IOException {
+      BufferedWriter out = open(file, "wareHouseID,area,latitude,longitude");
+      try {
+         StringBuilder row = new StringBuilder();
+         for (int id = 1; id <= this.warehouses; id++) {
+            double[] location = clustered(1.0);
+            row.setLength(0);
+            row.append(id).append(',').append(10000 + this.random.nextInt(70000)).append(',');
+            coordinate(row, location[0]).append(',');
+            coordinate(row, location[1]);
+            line(out, row);
+         }
+      } finally {
+         out.close();
+      }
+   }// end writeWarehouses
+
+   private void writeStores(File file) throws IOException {
+      this.storeX = new double[this.stores];
+      this.storeY = new double[this.stores];
+      this.storeManager = new int[this.stores];
+      BufferedWriter out = open(file, "storeID,latitude,longitude,managerID,dateEstablished");
+      try {
+         StringBuilder row = new StringBuilder();
+         for (int id = 1; id <= this.stores; id++) {
+            double[] location = clustered(1.0);
+            this.storeX[id - 1] = location[0];
+            this.storeY[id - 1] = location[1];
+            this.storeManager[id - 1] = 2 + this.random.nextInt(this.managers);
+            row.setLength(0);
+            row.append(id).append(',');
+            coordinate(row, location[0]).append(',');
+            coordinate(row, location[1]).append(',').append(this.storeManager[id - 1]).append(',');
+            row.append(1 + this.random.nextInt(12)).append('/').append(1 + this.random.nextInt(28)).append('/')
+                  .append(1950 + this.random.nextInt(66));
+            line(out, row);
+         }
+      } finally {
+         out.close();
+      }
+   }// end writeStores
+
+   private void writeProducts(File file) throws IOException {
+      Zipf popularity = new Zipf(this.catalogSize, this.skew);
+      this.storeProducts = new int[this.stores * PRODUCTS_PER_STORE];
+      BufferedWriter out = open(file, "storeID,productName,numberOfUnits,pricePerUnit");
+      try {
+         StringBuilder row = new StringBuilder();
+         int[] picked = new int[PRODUCTS_PER_STORE];
+         for (int id = 1; id <= this.stores; id++) {
+            // popular products are carried by most stores, the long tail by few
+            for (int n = 0; n < PRODUCTS_PER_STORE; n++) {
+               int product;
+               do {
+                  product = popularity.next(this.random);
+               } while (contains(picked, n, product));
+               picked[n] = product;
+            }
+            Arrays.sort(picked);
+            System.arraycopy(picked, 0, this.storeProducts, (id - 1) * PRODUCTS_PER_STORE, PRODUCTS_PER_STORE);
+            for (int n = 0; n < PRODUCTS_PER_STORE; n++) {
+               row.setLength(0);
+               row.append(id).append(',').append(productName(picked[n])).append(',')
+                     .append(1 + this.random.nextInt(100)).append(',').append(1 + this.random.nextInt(10));
+               line(out, row);
+            }
+         }
+      } finally {
+         out.close();
+      }
+   }// end writeProducts
+
+   private static boolean contains(int[] values, int n, int value) {
+      for (int i = 0; i < n; i++) {
+         if (values[i] == value)
+            return true;
+      }
+      return false;
+   }
+
+   static String productName(int product) {
+      return product < PRODUCT_NAMES.length ? PRODUCT_NAMES[product] : "Product " + (product + 1);
+   }
+
+   private void writeOrders(File file) throws IOException {
+      // a random permutation keeps activity rank independent of the user id
+      int customers = this.users - this.managers - 1;
+      int[] byActivity = new int[customers];
+      for (int i = 0; i < customers; i++)
+         byActivity[i] = this.managers + 2 + i;
+      shuffle(byActivity);
+      Zipf activity = new Zipf(customers, this.skew);
+      Zipf popularity = new Zipf(PRODUCTS_PER_STORE, this.skew);
+
+      int[] ids = new int[this.stores];
+      for (int i = 0; i < ids.length; i++)
+         ids[i] = i + 1;
+      KdTree index = new KdTree(ids, this.storeX, this.storeY, this.stores);
+
+      // orders are spread over a year in order number order
+      Calendar time = start();
+      long step = 365L * 24 * 3600 * 1000 / this.orders;
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+      BufferedWriter out = open(file, "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime");
+      try {
+         StringBuilder row = new StringBuilder();
+         for (int number = 1; number <= this.orders; number++) {
+            int customer = byActivity[activity.next(this.random)];
+            int[] nearest = index.nearest(this.userX[customer - 1], this.userY[customer - 1], NEAREST_STORES);
+            int store = nearest[this.random.nextInt(nearest.length)];
+            int product = this.storeProducts[(store - 1) * PRODUCTS_PER_STORE + popularity.next(this.random)];
+            time.setTimeInMillis(time.getTimeInMillis() + 1 + (long) (this.random.nextDouble() * 2 * step));
+            row.setLength(0);
+            row.append(number).append(',').append(customer).append(',').append(store).append(',')
+                  .append(productName(product)).append(',').append(1 + this.random.nextInt(50)).append(',')
+                  .append(format.format(time.getTime()));
+            line(out, row);
+         }
+      } finally {
+         out.close();
+      }
+   }// end writeOrders
+
+   private void writeSupplyRequests(File file) throws IOException {
+      Zipf popularity = new Zipf(PRODUCTS_PER_STORE, this.skew);
+      BufferedWriter out = open(file, "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested");
+      try {
+         StringBuilder row = new StringBuilder();
+         for (int number = 1; number <= this.supplyRequests; number++) {
+            int store = 1 + this.random.nextInt(this.stores);
+            int product = this.storeProducts[(store - 1) * PRODUCTS_PER_STORE + popularity.next(this.random)];
+            row.setLength(0);
+            row.append(number).append(',').append(this.storeManager[store - 1]).append(',')
+                  .append(1 + this.random.nextInt(this.warehouses)).append(',').append(store).append(',')
+                  .append(productName(product)).append(',').append(1 + this.random.nextInt(100));
+            line(out, row);
+         }
+      } finally {
+         out.close();
+      }
+   }// end writeSupplyRequests
+
+   private void writeProductUpdates(File file) throws IOException {
+      Zipf popularity = new Zipf(PRODUCTS_PER_STORE, this.skew);
+      Calendar time = start();
+      long step = 365L * 24 * 3600 * 1000 / this.productUpdates;
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+      BufferedWriter out = open(file, "updateNumber,managerID,storeID,productName,updatedOn");
+      try {
+         StringBuilder row = new StringBuilder();
+         for (int number = 1; number <= this.productUpdates; number++) {
+            int store = 1 + this.random.nextInt(this.stores);
+            int product = this.storeProducts[(store - 1) * PRODUCTS_PER_STORE + popularity.next(this.random)];
+            time.setTimeInMillis(time.getTimeInMillis() + 1 + (long) (this.random.nextDouble() * 2 * step));
+            row.setLength(0);
+            row.append(number).append(',').append(this.storeManager[store - 1]).append(',').append(store)
+                  .append(',').append(productName(product)).append(',').append(format.format(time.getTime()));
+            line(out, row);
+         }
+      } finally {
+         out.close();
+      }
+   }// end writeProductUpdates
+
+   // the fixture's first order time
+   private static Calendar start() {
+      Calendar time = Calendar.getInstance();
+      time.clear();
+      time.set(2016, Calendar.SEPTEMBER, 10, 13, 1, 0);
+      return time;
+   }
+
+   private void shuffle(int[] values) {
+      for (int i = values.length - 1; i > 0; i--) {
+         int j = this.random.nextInt(i + 1);
+         int tmp = values[i];
+         values[i] = values[j];
+         values[j] = tmp;
+      }
+   }
+
+   // five decimals as in the fixture, without String.format on the hot path
+   private static StringBuilder coordinate(StringBuilder row, double value) {
+      long scaled = Math.round(value * 100000);
+      row.append(scaled / 100000).append('.');
+      long fraction = scaled % 100000;
+      for (long digit = 10000; digit > fraction && digit > 1; digit /= 10)
+         row.append('0');
+      return row.append(fraction);
+   }
+
+   private static BufferedWriter open(File file, String header) throws IOException {
+      BufferedWriter out = new BufferedWriter(new FileWriter(file), 1 << 16);
+      out.write(header);
+      out.newLine();
+      return out;
+   }
+
+   private static void line(BufferedWriter out, StringBuilder row) throws IOException {
+      out.append(row);
+      out.newLine();
+   }
+
+   /**
+    * Samples ranks 0..n-1 with probability proportional to 1 / (rank + 1)^s
+    * by binary search over the cumulative distribution.
+    */
+   static final class Zipf {
+      private final double[] cdf;
+
+      Zipf(int n, double s) {
+         this.cdf = new double[n];
+         double sum = 0;
+         for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, s);
+            this.cdf[i] = sum;
+         }
+         for (int i = 0; i < n; i++)
+            this.cdf[i] /= sum;
+      }
+
+      int next(Random random) {
+         double u = random.nextDouble();
+         int lo = 0;
+         int hi = this.cdf.length - 1;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.cdf[mid] < u)
+               lo = mid + 1;
+            else
+               hi = mid;
+         }
+         return lo;
+      }
+   }
+
+   /**
+    * Writes a dataset and optionally loads it into a freshly created database
+    * (create_tables.sql already run), then installs triggers.sql and
+    * rebuilds the sales aggregates like create_db.sh.
+    *
+    * @param args scale factor, output directory and the optional database settings
+    */
+   public static void main(String[] args) {
+      if (args.length != 2 && args.length != 6) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     DataGenerator.class.getName() +
+                     " <scale factor> <out dir> [<dbname> <port> <user> <sql dir>]");
+         return;
+      } // end if
+
+      double scale = Double.parseDouble(args[0]);
+      long seed = Long.getLong("amazon.gen.seed", 42L);
+      double skew = Double.parseDouble(System.getProperty("amazon.gen.zipf", "1.0"));
+      File dir = new File(args[1]);
+      ConnectionPool pool = null;
+      BulkLoader loader = null;
+      boolean failed = false;
+      try {
+         long start = System.nanoTime();
+         DataGenerator generator = new DataGenerator(scale, seed, skew);
+         generator.generate(dir);
+         System.out.println(String.format(
+               "Generated scale %s into %s in %.2f s: %d users, %d stores, %d products, %d warehouses, %d orders",
+               args[0], dir, (System.nanoTime() - start) / 1e9, generator.users, generator.stores,
+               generator.stores * PRODUCTS_PER_STORE, generator.warehouses, generator.orders));
+
+         if (args.length == 6) {
+            // use postgres JDBC driver.
+            Class.forName("org.postgresql.Driver");
+            String url = "jdbc:postgresql://localhost:" + args[3] + "/" + args[2];
+            int threads = Runtime.getRuntime().availableProcessors();
+            pool = new ConnectionPool(url, args[4], "", threads, 600000L, 600000L, 0L, 16);
+            loader = new BulkLoader(pool, threads, Integer.getInteger("amazon.load.rowsPerStatement", 1000));
+            loader.loadDatabase(dir, new File(args[5]));
+            // place_order(), the change notifications and the aggregates the server relies on
+            loader.installTriggers(new File(args[5]));
+         }
+      } catch (Exception e) {
+         System.err.println("Data generation failed: " + e.getMessage());
+         failed = true;
+      } finally {
+         if (loader != null)
+            loader.shutdown();
+         if (pool != null)
+            pool.close();
+      } // end try
+      if (failed)
+         System.exit(-1);
+   }// end main
+}// end DataGenerator
@@ -0,0 +1,292 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accepts orders against in-memory stock and writes them to the database
+ * behind the request, so a product selling thousands of units a second is
+ * not limited by the lock on its Product row, and a slow or unreachable
+ * database does not hold up or lose orders.
+ *
+ * Every (store, product) has a counter of available units, read from
+ * Product the first time the product is ordered. An order takes its units
+ * with a compare-and-set on that counter, gets an order number drawn from
+ * the Orders sequence ahead of time, and is appended to the OrderJournal;
+ * placeOrder() returns once the journal record is on disk. An OrderDrainer
+ * then writes the orders to Orders and Product in groups. After a crash
+ * the journal records past the checkpoint are written again before any
+ * order is taken.
+ *
+ * Order numbers are drawn numberBlock at a time and topped up while a
+ * block is still left, so orders keep being taken through a database
+ * outage until the numbers run out. Products not ordered before the
+ * outage need the database to read their stock.
+ *
+ * Stock changed by anything else must be reported with adjust() once it is
+ * committed, so the counters stay equal to Product minus the orders not
+ * written yet.
+ *
+ */
+public class InventoryEngine {
+
+   // name of this journal in OrderJournalCheckpoint
+   public static final String JOURNAL = "inventory";
+
+   // pause between attempts to draw order numbers while the database is unreachable
+   private static final long NUMBER_RETRY_MILLIS = 1000;
+
+   // available units of one product
+   private static final class Counter {
+      final AtomicLong available = new AtomicLong();
+      // held while reading the stock, so only one caller reads it
+      final Object seedLock = new Object();
+      // guarded by this
+      boolean seeded = false;
+      boolean dirty = false;
+   }
+
+   private final Amazon esql;
+   private final OrderJournal journal;
+   private final OrderDrainer drainer;
+   private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+   private final int numberBlock;
+
+   // order numbers drawn but not handed out yet, a ring of up to two blocks, guarded by numberLock
+   private final Object numberLock = new Object();
+   private final int[] numbers;
+   private int numberHead = 0;
+   private int numberCount = 0;
+   private boolean drawing = false;
+   private long nextDraw = 0;
+
+   // metrics
+   private final AtomicLong accepted = new AtomicLong();
+   private final AtomicLong rejected = new AtomicLong();
+
+   /**
+    * Opens the journal, writes what it holds past the checkpoint and starts
+    * the drainer.
+    *
+    * @param esql         the session whose pool and caches are used
+    * @param journalDir   the directory of the journal segments
+    * @param fsync        whether orders are forced to disk before they are acknowledged
+    * @param syncMillis   how long an fsync waits for more orders to share it
+    * @param segmentBytes the size of a journal segment
+    * @param queueSize    the most orders waiting to be written; placeOrder() blocks beyond
+    * @param batchSize    the most orders written per transaction
+    * @param flushMillis  how long an order may wait for its group to fill up
+    * @param numberBlock  order numbers drawn from the sequence per round trip
+    * @throws java.sql.SQLException when the recovered orders could not be written
+    * @throws java.io.IOException   when the journal could not be opened
+    */
+   public InventoryEngine(Amazon esql, File journalDir, boolean fsync, long syncMillis, int segmentBytes,
+         int queueSize, int batchSize, long flushMillis, int numberBlock) throws SQLException, IOException {
+      this.esql = esql;
+      this.numberBlock = numberBlock;
+      this.numbers = new int[2 * numberBlock];
+      this.journal = new OrderJournal(journalDir, fsync, syncMillis, segmentBytes,
+            OrderDrainer.checkpoint(esql, JOURNAL));
+      this.drainer = new OrderDrainer(esql, this.journal, JOURNAL, queueSize, batchSize, flushMillis,
+            new OrderDrainer.Listener() {
+               public void onDropped(OrderJournal.Entry entry) {
+                  // the order was refused by the database, its units go back on sale
+                  adjust(entry.storeId, entry.productName, entry.units);
+               }
+            });
+   }// end InventoryEngine
+
+   /**
+    * Places an order against the in-memory stock, applying the rules of
+    * place_order() in triggers.sql.
+    *
+    * @return the new order number, or one of the negative Amazon.ORDER_* codes
+    * @throws java.sql.SQLException when the order could not be journaled, in
+    *                               which case it was not placed
+    */
+   public int placeOrder(int customerId, int storeId, String product, int units) throws SQLException {
+      if (units <= 0 || product == null)
+         return reject(Amazon.ORDER_INVALID_UNITS);
+      Session customer = this.esql.getSessions().get(customerId);
+      double[] store = this.esql.getStoreDirectory().locationOf(storeId);
+      if (customer == null || store == null)
+         return reject(Amazon.ORDER_STORE_NOT_FOUND);
+      double dx = customer.latitude - store[0];
+      double dy = customer.longitude - store[1];
+      if (Math.sqrt(dx * dx + dy * dy) > Amazon.STORE_RADIUS)
+         return reject(Amazon.ORDER_OUT_OF_RANGE);
+
+      String name = User.trim(product);
+      Counter counter = counter(storeId, name);
+      if (counter == null)
+         return reject(Amazon.ORDER_NO_SUCH_PRODUCT);
+      while (true) {
+         long available = counter.available.get();
+         if (available < units)
+            return reject(Amazon.ORDER_INSUFFICIENT_STOCK);
+         if (counter.available.compareAndSet(available, available - units))
+            break;
+      }
+
+      OrderJournal.Entry entry;
+      try {
+         entry = this.drainer.append(nextOrderNumber(), customerId, storeId, name, units,
+               System.currentTimeMillis());
+      } catch (SQLException e) {
+         counter.available.addAndGet(units);
+         throw e;
+      } catch (IOException e) {
+         // not journaled, give the units back
+         counter.available.addAndGet(units);
+         throw new SQLException("Unable to journal the order: " + e.getMessage());
+      }
+      this.journal.sync(entry.sequence);
+      this.accepted.incrementAndGet();
+      return entry.orderNumber;
+   }// end placeOrder
+
+   private int reject(int code) {
+      this.rejected.incrementAndGet();
+      return code;
+   }
+
+   // the counter of a product, reading its stock first; null when the store does not carry it
+   private Counter counter(int storeId, String productName) throws SQLException {
+      String key = storeId + "/" + productName;
+      Counter counter = this.counters.get(key);
+      if (counter == null) {
+         Counter created = new Counter();
+         counter = this.counters.putIfAbsent(key, created);
+         if (counter == null)
+            counter = created;
+      }
+      synchronized (counter) {
+         if (counter.seeded)
+            return counter;
+      }
+      synchronized (counter.seedLock) {
+         while (true) {
+            synchronized (counter) {
+               if (counter.seeded)
+                  return counter;
+               counter.dirty = false;
+            }
+            // read without holding the counter, so adjust() can flag a change committed meanwhile
+            int units = this.esql.executeQueryForInt(
+                  "SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ?", Integer.MIN_VALUE,
+                  storeId, productName);
+            if (units == Integer.MIN_VALUE)
+               return null;
+            synchronized (counter) {
+               if (!counter.dirty) {
+                  counter.available.set(units);
+                  counter.seeded = true;
+                  return counter;
+               }
+            }
+         }
+      }
+   }// end counter
+
+   /**
+    * Reports a committed change to the stock of a product made outside the
+    * engine, e.g. a supply request.
+    *
+    * @param delta units added, negative when units were taken
+    */
+   public void adjust(int storeId, String productName, int delta) {
+      Counter counter = this.counters.get(storeId + "/" + User.trim(productName));
+      if (counter == null)
+         return; // read from Product when first ordered
+      synchronized (counter) {
+         if (counter.seeded)
+            counter.available.addAndGet(delta);
+         else
+            counter.dirty = true;
+      }
+   }
+
+   // takes an order number, drawing more while a block is still left
+   private int nextOrderNumber() throws SQLException {
+      boolean draw;
+      synchronized (this.numberLock) {
+         draw = !this.drawing && this.numberCount < this.numberBlock
+               && System.currentTimeMillis() >= this.nextDraw;
+         if (draw)
+            this.drawing = true;
+      }
+      if (draw) {
+         int[] block = null;
+         try {
+            block = drawNumbers();
+         } catch (SQLException e) {
+            System.err.println("Unable to draw order numbers: " + e.getMessage());
+         }
+         synchronized (this.numberLock) {
+            if (block == null) {
+               this.nextDraw = System.currentTimeMillis() + NUMBER_RETRY_MILLIS;
+            } else {
+               for (int number : block)
+                  this.numbers[(this.numberHead + this.numberCount++) % this.numbers.length] = number;
+            }
+            this.drawing = false;
+            this.numberLock.notifyAll();
+         }
+      }
+      synchronized (this.numberLock) {
+         // wait for a draw already under way rather than fail
+         while (this.numberCount == 0 && this.drawing) {
+            try {
+               this.numberLock.wait();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new SQLException("Interrupted while waiting for order numbers");
+            }
+         }
+         if (this.numberCount == 0)
+            throw new SQLException("No order numbers left and none could be drawn from the database");
+         int number = this.numbers[this.numberHead];
+         this.numberHead = (this.numberHead + 1) % this.numbers.length;
+         this.numberCount--;
+         return number;
+      }
+   }// end nextOrderNumber
+
+   private int[] drawNumbers() throws SQLException {
+      final int[] block = new int[this.numberBlock];
+      final int[] count = new int[1];
+      this.esql.executeQueryStreaming(
+            "SELECT nextval(pg_get_serial_sequence('orders', 'ordernumber')) FROM generate_series(1, ?)", 0,
+            new RowHandler() {
+               public boolean handleRow(ResultSet rs) throws SQLException {
+                  block[count[0]++] = rs.getInt(1);
+                  return count[0] < block.length;
+               }
+            }, this.numberBlock);
+      if (count[0] != block.length)
+         throw new SQLException("Expected " + block.length + " order numbers, got " + count[0]);
+      return block;
+   }
+
+   /**
+    * Writes the queued orders and closes the journal.
+    */
+   public void close() {
+      this.drainer.close();
+      this.journal.close();
+   }
+
+   /**
+    * @return a one-line summary of the orders taken and written
+    */
+   public String getStats() {
+      int left;
+      synchronized (this.numberLock) {
+         left = this.numberCount;
+      }
+      return String.format("products=%d accepted=%d rejected=%d numbersLeft=%d %s", this.counters.size(),
+            this.accepted.get(), this.rejected.get(), left, this.drainer.getStats());
+   }
+}// end InventoryEngine
@@ -0,0 +1,234 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON support for the HTTP front end: a parser producing Map, List,
+ * String, Double, Boolean and null values, and string quoting for the
+ * hand-written responses.
+ *
+ */
+public final class Json {
+
+   private final String text;
+   private int pos = 0;
+
+   private Json(String text) {
+      this.text = text;
+   }
+
+   /**
+    * Parses a JSON document.
+    *
+    * @param text the document
+    * @return the parsed value
+    * @throws IllegalArgumentException when the document is malformed
+    */
+   public static Object parse(String text) {
+      Json parser = new Json(text);
+      Object value = parser.value();
+      parser.skipWhitespace();
+      if (parser.pos != text.length())
+         throw parser.error("Unexpected trailing characters");
+      return value;
+   }
+
+   /**
+    * Appends a string as a quoted JSON string.
+    *
+    * @param out   the buffer to append to
+    * @param value the string, null is written as null
+    * @return the buffer
+    */
+   public static StringBuilder quote(StringBuilder out, String value) {
+      if (value == null)
+         return out.append("null");
+      out.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"':
+               out.append("\\\"");
+               break;
+            case '\\':
+               out.append("\\\\");
+               break;
+            case '\n':
+               out.append("\\n");
+               break;
+            case '\r':
+               out.append("\\r");
+               break;
+            case '\t':
+               out.append("\\t");
+               break;
+            default:
+               if (c < 0x20)
+                  out.append(String.format("\\u%04x", (int) c));
+               else
+                  out.append(c);
+               break;
+         }
+      }
+      return out.append('"');
+   }
+
+   private Object value() {
+      skipWhitespace();
+      if (pos >= text.length())
+         throw error("Unexpected end of input");
+      char c = text.charAt(pos);
+      switch (c) {
+         case '{':
+            return object();
+         case '[':
+            return array();
+         case '"':
+            return string();
+         case 't':
+            literal("true");
+            return Boolean.TRUE;
+         case 'f':
+            literal("false");
+            return Boolean.FALSE;
+         case 'n':
+            literal("null");
+            return null;
+         default:
+            return number();
+      }
+   }
+
+   private Map<String, Object> object() {
+      Map<String, Object> object = new LinkedHashMap<String, Object>();
+      pos++; // {
+      skipWhitespace();
+      if (peek() == '}') {
+         pos++;
+         return object;
+      }
+      while (true) {
+         skipWhitespace();
+         if (peek() != '"')
+            throw error("Expected a member name");
+         String name = string();
+         skipWhitespace();
+         expect(':');
+         object.put(name, value());
+         skipWhitespace();
+         if (peek() == ',') {
+            pos++;
+            continue;
+         }
+         expect('}');
+         return object;
+      }
+   }
+
+   private List<Object> array() {
+      List<Object> array = new ArrayList<Object>();
+      pos++; // [
+      skipWhitespace();
+      if (peek() == ']') {
+         pos++;
+         return array;
+      }
+      while (true) {
+         array.add(value());
+         skipWhitespace();
+         if (peek() == ',') {
+            pos++;
+            continue;
+         }
+         expect(']');
+         return array;
+      }
+   }
+
+   private String string() {
+      pos++; // opening quote
+      StringBuilder out = new StringBuilder();
+      while (true) {
+         if (pos >= text.length())
+            throw error("Unterminated string");
+         char c = text.charAt(pos++);
+         if (c == '"')
+            return out.toString();
+         if (c != '\\') {
+            out.append(c);
+            continue;
+         }
+         if (pos >= text.length())
+            throw error("Unterminated string");
+         char e = text.charAt(pos++);
+         switch (e) {
+            case 'b':
+               out.append('\b');
+               break;
+            case 'f':
+               out.append('\f');
+               break;
+            case 'n':
+               out.append('\n');
+               break;
+            case 'r':
+               out.append('\r');
+               break;
+            case 't':
+               out.append('\t');
+               break;
+            case 'u':
+               if (pos + 4 > text.length())
+                  throw error("Bad unicode escape");
+               try {
+                  out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+               } catch (NumberFormatException ex) {
+                  throw error("Bad unicode escape");
+               }
+               pos += 4;
+               break;
+            default:
+               out.append(e);
+               break;
+         }
+      }
+   }
+
+   private Double number() {
+      int start = pos;
+      while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+         pos++;
+      try {
+         return Double.valueOf(text.substring(start, pos));
+      } catch (NumberFormatException e) {
+         pos = start;
+         throw error("Unexpected character");
+      }
+   }
+
+   private void literal(String word) {
+      if (!text.startsWith(word, pos))
+         throw error("Unexpected character");
+      pos += word.length();
+   }
+
+   private void expect(char c) {
+      if (peek() != c)
+         throw error("Expected '" + c + "'");
+      pos++;
+   }
+
+   private char peek() {
+      return pos < text.length() ? text.charAt(pos) : '\0';
+   }
+
+   private void skipWhitespace() {
+      while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+         pos++;
+   }
+
+   private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " at position " + pos);
+   }
+}// end Json
@@ -0,0 +1,241 @@
+/**
+ * An immutable two-dimensional k-d tree over (latitude, longitude) points,
+ * stored in flat primitive arrays. The tree is implicit: the median of every
+ * range [lo, hi) sits at its middle index, with smaller coordinates on the
+ * left, and levels alternate between the two axes. No node objects are
+ * allocated, so a tree of 100k points is three arrays.
+ *
+ */
+public class KdTree {
+
+   private final int[] ids;
+   private final double[] xs;
+   private final double[] ys;
+
+   /**
+    * Builds a tree over the given points. The arrays are copied, so the
+    * caller may reuse them.
+    *
+    * @param ids the identifier of each point
+    * @param xs  the latitude of each point
+    * @param ys  the longitude of each point
+    * @param n   the number of points to use from the arrays
+    */
+   public KdTree(int[] ids, double[] xs, double[] ys, int n) {
+      this.ids = new int[n];
+      this.xs = new double[n];
+      this.ys = new double[n];
+      System.arraycopy(ids, 0, this.ids, 0, n);
+      System.arraycopy(xs, 0, this.xs, 0, n);
+      System.arraycopy(ys, 0, this.ys, 0, n);
+      build(0, n, 0);
+   }// end KdTree
+
+   /**
+    * @return the number of points in the tree
+    */
+   public int size() {
+      return this.ids.length;
+   }
+
+   private void build(int lo, int hi, int axis) {
+      if (hi - lo <= 1)
+         return;
+      int mid = (lo + hi) >>> 1;
+      select(lo, hi - 1, mid, axis);
+      build(lo, mid, axis ^ 1);
+      build(mid + 1, hi, axis ^ 1);
+   }
+
+   // Quickselect: partially orders [left, right] so position k holds its median on the axis.
+   private void select(int left, int right, int k, int axis) {
+      while (right > left) {
+         double pivot = coord((left + right) >>> 1, axis);
+         int i = left;
+         int j = right;
+         while (i <= j) {
+            while (coord(i, axis) < pivot)
+               i++;
+            while (coord(j, axis) > pivot)
+               j--;
+            if (i <= j) {
+               swap(i, j);
+               i++;
+               j--;
+            }
+         }
+         if (k <= j)
+            right = j;
+         else if (k >= i)
+            left = i;
+         else
+            return;
+      }
+   }
+
+   private double coord(int i, int axis) {
+      return axis == 0 ? this.xs[i] : this.ys[i];
+   }
+
+   private void swap(int i, int j) {
+      int id = this.ids[i];
+      this.ids[i] = this.ids[j];
+      this.ids[j] = id;
+      double x = this.xs[i];
+      this.xs[i] = this.xs[j];
+      this.xs[j] = x;
+      double y = this.ys[i];
+      this.ys[i] = this.ys[j];
+      this.ys[j] = y;
+   }
+
+   /**
+    * Finds every point within the given euclidean distance of (x, y).
+    *
+    * @param x      the latitude of the query point
+    * @param y      the longitude of the query point
+    * @param radius the maximum distance, inclusive
+    * @return the identifiers of the matching points, in no particular order
+    */
+   public int[] withinRadius(double x, double y, double radius) {
+      IntBuffer out = new IntBuffer();
+      radius(0, this.ids.length, 0, x, y, radius, radius * radius, out);
+      return out.toArray();
+   }// end withinRadius
+
+   private void radius(int lo, int hi, int axis, double x, double y, double r, double r2, IntBuffer out) {
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         double dx = this.xs[mid] - x;
+         double dy = this.ys[mid] - y;
+         if (dx * dx + dy * dy <= r2)
+            out.add(this.ids[mid]);
+         double delta = axis == 0 ? x - this.xs[mid] : y - this.ys[mid];
+         // descend into the near side, loop on the far side only when the circle crosses the split
+         if (delta <= 0) {
+            if (delta >= -r)
+               radius(mid + 1, hi, axis ^ 1, x, y, r, r2, out);
+            hi = mid;
+         } else {
+            if (delta <= r)
+               radius(lo, mid, axis ^ 1, x, y, r, r2, out);
+            lo = mid + 1;
+         }
+         axis ^= 1;
+      }
+   }
+
+   /**
+    * Finds the k points closest to (x, y).
+    *
+    * @param x the latitude of the query point
+    * @param y the longitude of the query point
+    * @param k the number of points to return
+    * @return the identifiers of up to k points, closest first
+    */
+   public int[] nearest(double x, double y, int k) {
+      k = Math.min(k, this.ids.length);
+      if (k <= 0)
+         return new int[0];
+      // max-heap on distance holding the best k candidates so far
+      int[] heapIds = new int[k];
+      double[] heapDist = new double[k];
+      int[] count = new int[1];
+      nearest(0, this.ids.length, 0, x, y, k, heapIds, heapDist, count);
+
+      // pop the heap into ascending order
+      int n = count[0];
+      int[] result = new int[n];
+      for (int i = n - 1; i >= 0; i--) {
+         result[i] = heapIds[0];
+         heapIds[0] = heapIds[i];
+         heapDist[0] = heapDist[i];
+         siftDown(heapIds, heapDist, 0, i);
+      }
+      return result;
+   }// end nearest
+
+   private void nearest(int lo, int hi, int axis, double x, double y, int k, int[] heapIds, double[] heapDist,
+         int[] count) {
+      if (lo >= hi)
+         return;
+      int mid = (lo + hi) >>> 1;
+      double dx = this.xs[mid] - x;
+      double dy = this.ys[mid] - y;
+      double d2 = dx * dx + dy * dy;
+      if (count[0] < k) {
+         // heap not full yet, sift the new point up
+         int i = count[0]++;
+         heapIds[i] = this.ids[mid];
+         heapDist[i] = d2;
+         while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapDist[parent] >= heapDist[i])
+               break;
+            swap(heapIds, heapDist, i, parent);
+            i = parent;
+         }
+      } else if (d2 < heapDist[0]) {
+         heapIds[0] = this.ids[mid];
+         heapDist[0] = d2;
+         siftDown(heapIds, heapDist, 0, k);
+      }
+
+      double delta = axis == 0 ? x - this.xs[mid] : y - this.ys[mid];
+      int nearLo = delta <= 0 ? lo : mid + 1;
+      int nearHi = delta <= 0 ? mid : hi;
+      int farLo = delta <= 0 ? mid + 1 : lo;
+      int farHi = delta <= 0 ? hi : mid;
+      nearest(nearLo, nearHi, axis ^ 1, x, y, k, heapIds, heapDist, count);
+      if (count[0] < k || delta * delta < heapDist[0])
+         nearest(farLo, farHi, axis ^ 1, x, y, k, heapIds, heapDist, count);
+   }
+
+   private static void siftDown(int[] heapIds, double[] heapDist, int i, int n) {
+      while (true) {
+         int largest = i;
+         int left = 2 * i + 1;
+         int right = left + 1;
+         if (left < n && heapDist[left] > heapDist[largest])
+            largest = left;
+         if (right < n && heapDist[right] > heapDist[largest])
+            largest = right;
+         if (largest == i)
+            return;
+         swap(heapIds, heapDist, i, largest);
+         i = largest;
+      }
+   }
+
+   private static void swap(int[] heapIds, double[] heapDist, int i, int j) {
+      int id = heapIds[i];
+      heapIds[i] = heapIds[j];
+      heapIds[j] = id;
+      double d = heapDist[i];
+      heapDist[i] = heapDist[j];
+      heapDist[j] = d;
+   }
+
+   /**
+    * Growable int array used to collect query results without boxing.
+    */
+   static final class IntBuffer {
+      private int[] data = new int[16];
+      private int size = 0;
+
+      void add(int value) {
+         if (size == data.length) {
+            int[] grown = new int[size * 2];
+            System.arraycopy(data, 0, grown, 0, size);
+            data = grown;
+         }
+         data[size++] = value;
+      }
+
+      int[] toArray() {
+         int[] result = new int[size];
+         System.arraycopy(data, 0, result, 0, size);
+         return result;
+      }
+   }
+}// end KdTree
@@ -0,0 +1,98 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in microseconds, laid out like
+ * HdrHistogram: values below 64 get a bucket each, and every power of two
+ * above is split into 32 linear buckets, so a recorded value is off by at
+ * most 1/32 (about 3%) whatever its size. Values above 2^40 us (about 12
+ * days) are counted in the last bucket. Recording is a few atomic adds and
+ * never allocates.
+ *
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BITS = 5;
+   private static final int SUB_BUCKETS = 1 << SUB_BITS;
+   private static final int LINEAR = 2 * SUB_BUCKETS;
+   private static final int MAX_BITS = 40;
+   private static final int BUCKETS = LINEAR + (MAX_BITS - SUB_BITS) * SUB_BUCKETS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * @param micros the duration to record, negative values count as zero
+    */
+   public void record(long micros) {
+      long value = Math.max(0, micros);
+      this.counts.incrementAndGet(index(value));
+      this.count.incrementAndGet();
+      this.sum.addAndGet(value);
+      long seen = this.max.get();
+      while (value > seen && !this.max.compareAndSet(seen, value))
+         seen = this.max.get();
+   }
+
+   static int index(long value) {
+      if (value < LINEAR)
+         return (int) value;
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+      int index = LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+      return Math.min(index, BUCKETS - 1);
+   }
+
+   // the highest value counted in a bucket
+   static long highestValue(int index) {
+      if (index < LINEAR)
+         return index;
+      int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+      long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+      return ((sub + 1) << shift) - 1;
+   }
+
+   /**
+    * @param quantile between 0 and 1
+    * @return the value at the quantile in microseconds, 0 when nothing was recorded
+    */
+   public long percentile(double quantile) {
+      long total = this.count.get();
+      if (total == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(quantile * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += this.counts.get(i);
+         if (seen >= rank)
+            return Math.min(highestValue(i), this.max.get());
+      }
+      return this.max.get();
+   }
+
+   public long getCount() {
+      return this.count.get();
+   }
+
+   // total of the recorded values in microseconds
+   public long getSum() {
+      return this.sum.get();
+   }
+
+   public long getMax() {
+      return this.max.get();
+   }
+
+   /**
+    * Clears the recorded values. Values recorded concurrently may be kept
+    * in part.
+    */
+   public void reset() {
+      for (int i = 0; i < BUCKETS; i++)
+         this.counts.set(i, 0);
+      this.count.set(0);
+      this.sum.set(0);
+      this.max.set(0);
+   }
+}// end LatencyHistogram
@@ -0,0 +1,37 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * A row of the Orders table.
+ *
+ */
+public final class Order {
+
+   // column list matching MAPPER, for use in SELECT statements
+   public static final String COLUMNS = "orderNumber, customerID, storeID, productName, unitsOrdered, orderTime";
+
+   public static final RowMapper<Order> MAPPER = new RowMapper<Order>() {
+      public Order map(ResultSet rs) throws SQLException {
+         return new Order(rs.getInt(1), rs.getInt(2), rs.getInt(3), User.trim(rs.getString(4)), rs.getInt(5),
+               rs.getTimestamp(6));
+      }
+   };
+
+   public final int orderNumber;
+   public final int customerId;
+   public final int storeId;
+   public final String productName;
+   public final int unitsOrdered;
+   public final Timestamp orderTime;
+
+   public Order(int orderNumber, int customerId, int storeId, String productName, int unitsOrdered,
+         Timestamp orderTime) {
+      this.orderNumber = orderNumber;
+      this.customerId = customerId;
+      this.storeId = storeId;
+      this.productName = productName;
+      this.unitsOrdered = unitsOrdered;
+      this.orderTime = orderTime;
+   }
+}// end Order
@@ -0,0 +1,277 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Places many orders in one transaction with a fixed number of statements,
+ * plus one per ROWS_PER_INSERT accepted orders. It applies the same rules
+ * as place_order() in triggers.sql:
+ * - the customers and stores are read with one query each, for the range check;
+ * - the lines are grouped per (store, product), and every group's Product row
+ *   is locked with one SELECT ... FOR UPDATE in key order;
+ * - stock goes to the lines of a group in input order while it lasts;
+ * - every group is decremented by one set-based UPDATE;
+ * - the accepted orders are inserted with multi-row INSERT statements, under
+ *   order numbers drawn from the Orders sequence up front; the bundled 7.3
+ *   driver runs executeBatch as one statement per row.
+ * Each line gets its own result, so a rejected line does not abort the others.
+ *
+ */
+public class OrderBatch {
+
+   // orders per multi-row INSERT
+   static final int ROWS_PER_INSERT = 1000;
+
+   // the accepted lines of one (store, product)
+   private static final class Group {
+      final int storeId;
+      final String productName;
+      final List<Integer> lines = new ArrayList<Integer>();
+      // units in stock, -1 when the store does not carry the product
+      int stock = -1;
+      int taken = 0;
+
+      Group(int storeId, String productName) {
+         this.storeId = storeId;
+         this.productName = productName;
+      }
+   }
+
+   private final ConnectionPool pool;
+   private final double maxDistance;
+
+   /**
+    * @param pool        the pool to borrow the connection from
+    * @param maxDistance the maximum distance between customer and store
+    */
+   public OrderBatch(ConnectionPool pool, double maxDistance) {
+      this.pool = pool;
+      this.maxDistance = maxDistance;
+   }
+
+   /**
+    * Places the given orders.
+    *
+    * @param lines the order lines
+    * @return for each line its new order number, or one of the negative
+    *         Amazon.ORDER_* codes
+    * @throws java.sql.SQLException when the transaction failed, in which case
+    *                               no order was placed
+    */
+   public int[] place(List<OrderLine> lines) throws SQLException {
+      int n = lines.size();
+      int[] results = new int[n];
+      if (n == 0)
+         return results;
+
+      Map<Integer, double[]> customers = new HashMap<Integer, double[]>();
+      Map<Integer, double[]> stores = new HashMap<Integer, double[]>();
+      for (int i = 0; i < n; i++) {
+         OrderLine line = lines.get(i);
+         if (line.units <= 0 || line.productName == null) {
+            results[i] = Amazon.ORDER_INVALID_UNITS;
+            continue;
+         }
+         customers.put(Integer.valueOf(line.customerId), null);
+         stores.put(Integer.valueOf(line.storeId), null);
+      }
+
+      PooledConnection conn = this.pool.borrow();
+      try {
+         Connection c = conn.getConnection();
+         c.setAutoCommit(false);
+         locations(c, "SELECT userID, latitude, longitude FROM Users WHERE userID IN ", customers);
+         locations(c, "SELECT storeID, latitude, longitude FROM Store WHERE storeID IN ", stores);
+
+         // range check, then group what is left per (store, product) in input order
+         Map<String, Group> groups = new LinkedHashMap<String, Group>();
+         for (int i = 0; i < n; i++) {
+            if (results[i] != 0)
+               continue;
+            OrderLine line = lines.get(i);
+            double[] customer = customers.get(Integer.valueOf(line.customerId));
+            double[] store = stores.get(Integer.valueOf(line.storeId));
+            if (customer == null || store == null) {
+               results[i] = Amazon.ORDER_STORE_NOT_FOUND;
+               continue;
+            }
+            double dx = customer[0] - store[0];
+            double dy = customer[1] - store[1];
+            if (Math.sqrt(dx * dx + dy * dy) > this.maxDistance) {
+               results[i] = Amazon.ORDER_OUT_OF_RANGE;
+               continue;
+            }
+            String name = User.trim(line.productName);
+            String key = line.storeId + "/" + name;
+            Group group = groups.get(key);
+            if (group == null) {
+               group = new Group(line.storeId, name);
+               groups.put(key, group);
+            }
+            group.lines.add(Integer.valueOf(i));
+         }
+         if (groups.isEmpty()) {
+            c.commit();
+            return results;
+         }
+
+         lockStock(c, groups);
+         List<Integer> accepted = new ArrayList<Integer>();
+         for (Group group : groups.values()) {
+            for (Integer index : group.lines) {
+               int i = index.intValue();
+               int units = lines.get(i).units;
+               if (group.stock < 0) {
+                  results[i] = Amazon.ORDER_NO_SUCH_PRODUCT;
+               } else if (group.stock - group.taken < units) {
+                  results[i] = Amazon.ORDER_INSUFFICIENT_STOCK;
+               } else {
+                  group.taken += units;
+                  accepted.add(index);
+               }
+            }
+         }
+         if (accepted.isEmpty()) {
+            c.commit();
+            return results;
+         }
+
+         decrement(c, groups);
+         int[] numbers = orderNumbers(c, accepted.size());
+         for (int from = 0; from < numbers.length; from += ROWS_PER_INSERT) {
+            int rows = Math.min(ROWS_PER_INSERT, numbers.length - from);
+            // full chunks share one cached statement, a shorter last one is prepared on its own
+            PreparedStatement insert = rows == ROWS_PER_INSERT ? conn.prepare(insertSql(rows))
+                  : c.prepareStatement(insertSql(rows));
+            try {
+               int param = 1;
+               for (int k = from; k < from + rows; k++) {
+                  OrderLine line = lines.get(accepted.get(k).intValue());
+                  insert.setInt(param++, numbers[k]);
+                  insert.setInt(param++, line.customerId);
+                  insert.setInt(param++, line.storeId);
+                  insert.setString(param++, line.productName);
+                  insert.setInt(param++, line.units);
+               }
+               insert.executeUpdate();
+            } finally {
+               if (rows != ROWS_PER_INSERT)
+                  insert.close();
+            }
+         }
+         c.commit();
+         for (int k = 0; k < numbers.length; k++)
+            results[accepted.get(k).intValue()] = numbers[k];
+         return results;
+      } finally {
+         // rolls back when the commit was not reached
+         this.pool.release(conn);
+      }
+   }// end place
+
+   static String insertSql(int rows) {
+      StringBuilder sql = new StringBuilder(
+            "INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) VALUES ");
+      for (int r = 0; r < rows; r++)
+         sql.append(r == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, now())");
+      return sql.toString();
+   }
+
+   // fills in the (latitude, longitude) of the given ids, leaving missing ones null
+   private static void locations(Connection c, String query, Map<Integer, double[]> ids) throws SQLException {
+      if (ids.isEmpty())
+         return;
+      StringBuilder sql = new StringBuilder(query).append('(');
+      for (int i = 0; i < ids.size(); i++)
+         sql.append(i == 0 ? "?" : ", ?");
+      PreparedStatement stmt = c.prepareStatement(sql.append(')').toString());
+      try {
+         int param = 1;
+         for (Integer id : ids.keySet())
+            stmt.setInt(param++, id.intValue());
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next())
+            ids.put(Integer.valueOf(rs.getInt(1)), new double[] { rs.getDouble(2), rs.getDouble(3) });
+         rs.close();
+      } finally {
+         stmt.close();
+      }
+   }
+
+   // locks the Product rows in key order, so concurrent batches cannot deadlock, and reads their stock
+   private static void lockStock(Connection c, Map<String, Group> groups) throws SQLException {
+      StringBuilder sql = new StringBuilder(
+            "SELECT storeID, productName, numberOfUnits FROM Product WHERE (storeID, productName) IN (");
+      for (int i = 0; i < groups.size(); i++)
+         sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+      sql.append(") ORDER BY storeID, productName FOR UPDATE");
+      PreparedStatement stmt = c.prepareStatement(sql.toString());
+      try {
+         int param = 1;
+         for (Group group : groups.values()) {
+            stmt.setInt(param++, group.storeId);
+            stmt.setString(param++, group.productName);
+         }
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next()) {
+            Group group = groups.get(rs.getInt(1) + "/" + User.trim(rs.getString(2)));
+            if (group != null)
+               group.stock = rs.getInt(3);
+         }
+         rs.close();
+      } finally {
+         stmt.close();
+      }
+   }
+
+   private static void decrement(Connection c, Map<String, Group> groups) throws SQLException {
+      List<Group> taken = new ArrayList<Group>();
+      for (Group group : groups.values()) {
+         if (group.taken > 0)
+            taken.add(group);
+      }
+      StringBuilder sql = new StringBuilder(
+            "UPDATE Product SET numberOfUnits = numberOfUnits - v.units FROM (VALUES ");
+      for (int i = 0; i < taken.size(); i++)
+         sql.append(i == 0 ? "" : ", ").append("(CAST(? AS integer), CAST(? AS char(30)), CAST(? AS integer))");
+      sql.append(") AS v (storeID, productName, units) WHERE Product.storeID = v.storeID AND Product.productName = v.productName");
+      PreparedStatement stmt = c.prepareStatement(sql.toString());
+      try {
+         int param = 1;
+         for (Group group : taken) {
+            stmt.setInt(param++, group.storeId);
+            stmt.setString(param++, group.productName);
+            stmt.setInt(param++, group.taken);
+         }
+         stmt.executeUpdate();
+      } finally {
+         stmt.close();
+      }
+   }
+
+   // draws count order numbers from the serial sequence in one round trip
+   private static int[] orderNumbers(Connection c, int count) throws SQLException {
+      PreparedStatement stmt = c.prepareStatement(
+            "SELECT nextval(pg_get_serial_sequence('orders', 'ordernumber')) FROM generate_series(1, ?)");
+      try {
+         stmt.setInt(1, count);
+         ResultSet rs = stmt.executeQuery();
+         int[] numbers = new int[count];
+         int k = 0;
+         while (rs.next() && k < count)
+            numbers[k++] = rs.getInt(1);
+         rs.close();
+         if (k != count)
+            throw new SQLException("Expected " + count + " order numbers, got " + k);
+         return numbers;
+      } finally {
+         stmt.close();
+      }
+   }
+}// end OrderBatch
@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays the records of an OrderJournal into Orders behind the request.
+ * Records are queued in journal order as they are appended, and a
+ * background thread commits them in groups. Each group is one transaction
+ * that inserts the orders, takes their units from Product and moves the
+ * journal's row in OrderJournalCheckpoint to the group's last sequence.
+ * The insert skips order numbers already in Orders, and only inserted
+ * orders take units, so a record written twice is applied once.
+ *
+ * While the database is unreachable the group is retried with a growing
+ * pause and the queue fills up, blocking append() when full. A group the
+ * database refuses, e.g. for a deleted product, is written one order at a
+ * time. The refused orders are kept in the journal's refused.csv before
+ * their segment is released, then dropped from the database path.
+ *
+ */
+public class OrderDrainer {
+
+   /**
+    * Told about orders the database refused, from the drainer thread.
+    */
+   public interface Listener {
+      void onDropped(OrderJournal.Entry entry);
+   }
+
+   // shortest and longest wait between attempts to write a group
+   private static final long MIN_BACKOFF_MILLIS = 100;
+   private static final long MAX_BACKOFF_MILLIS = 30000;
+
+   private final Amazon esql;
+   private final OrderJournal journal;
+   private final String name;
+   private final int batchSize;
+   private final long flushMillis;
+   private final Listener listener;
+   private final ArrayBlockingQueue<OrderJournal.Entry> queue;
+   private final Object appendLock = new Object();
+   private final Thread drainer;
+   private volatile boolean closed = false;
+
+   // metrics
+   private final AtomicLong written = new AtomicLong();
+   private final AtomicLong commits = new AtomicLong();
+   private final AtomicLong retries = new AtomicLong();
+   private final AtomicLong dropped = new AtomicLong();
+
+   /**
+    * Writes the records the journal recovered, then starts the drainer thread.
+    *
+    * @param esql        the session whose pool is used
+    * @param journal     the journal to drain
+    * @param name        the journal's name in OrderJournalCheckpoint
+    * @param queueSize   the most records waiting to be written
+    * @param batchSize   the most records written per transaction
+    * @param flushMillis how long a record may wait for its group to fill up
+    * @param listener    told about dropped records, may be null
+    * @throws java.sql.SQLException when the recovered records could not be written
+    */
+   public OrderDrainer(Amazon esql, OrderJournal journal, String name, int queueSize, int batchSize,
+         long flushMillis, Listener listener) throws SQLException {
+      this.esql = esql;
+      this.journal = journal;
+      this.name = name;
+      this.batchSize = batchSize;
+      this.flushMillis = flushMillis;
+      this.listener = listener;
+      this.queue = new ArrayBlockingQueue<OrderJournal.Entry>(queueSize);
+      List<OrderJournal.Entry> recovered = journal.getRecovered();
+      for (int i = 0; i < recovered.size(); i += batchSize) {
+         if (!writeBatch(recovered.subList(i, Math.min(recovered.size(), i + batchSize))))
+            throw new SQLException("Unable to write the journaled orders");
+      }
+      if (!recovered.isEmpty())
+         System.out.println("Wrote " + recovered.size() + " journaled orders to the database");
+      this.drainer = new Thread(new Runnable() {
+         public void run() {
+            drainLoop();
+         }
+      }, "amazon-order-drainer");
+      this.drainer.setDaemon(true);
+      this.drainer.start();
+   }// end OrderDrainer
+
+   /**
+    * @return the last sequence of the journal already in the database, 0 when none
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static long checkpoint(Amazon esql, String name) throws SQLException {
+      Long last = esql.executeQueryForObject("SELECT lastSequence FROM OrderJournalCheckpoint WHERE journal = ?",
+            new RowMapper<Long>() {
+               public Long map(ResultSet rs) throws SQLException {
+                  return Long.valueOf(rs.getLong(1));
+               }
+            }, name);
+      return last == null ? 0L : last.longValue();
+   }
+
+   /**
+    * Appends an order to the journal and queues it for the database. The
+    * caller acknowledges it once journal.sync() returned for its sequence.
+    *
+    * @return the journaled entry
+    * @throws java.io.IOException when the order could not be journaled, in
+    *                             which case it is not written either
+    */
+   public OrderJournal.Entry append(int orderNumber, int customerId, int storeId, String productName, int units,
+         long orderTime) throws IOException {
+      // queued in journal order, so a group's last sequence covers every record before it
+      synchronized (this.appendLock) {
+         OrderJournal.Entry entry = this.journal.append(orderNumber, customerId, storeId, productName, units,
+               orderTime);
+         boolean interrupted = false;
+         while (true) {
+            try {
+               this.queue.put(entry);
+               break;
+            } catch (InterruptedException e) {
+               // a journaled record must reach the drainer
+               interrupted = true;
+            }
+         }
+         if (interrupted)
+            Thread.currentThread().interrupt();
+         return entry;
+      }
+   }// end append
+
+   private void drainLoop() {
+      List<OrderJournal.Entry> batch = new ArrayList<OrderJournal.Entry>(this.batchSize);
+      while (!closed || !this.queue.isEmpty()) {
+         try {
+            OrderJournal.Entry first = this.queue.poll(this.flushMillis, TimeUnit.MILLISECONDS);
+            if (first == null)
+               continue;
+            batch.add(first);
+            this.queue.drainTo(batch, this.batchSize - 1);
+         } catch (InterruptedException e) {
+            if (!closed)
+               continue;
+            this.queue.drainTo(batch, this.batchSize);
+         }
+         if (batch.isEmpty())
+            continue;
+         if (!writeBatch(batch))
+            return; // closed while the database was unreachable, the journal keeps the rest
+         batch.clear();
+      }
+   }// end drainLoop
+
+   /**
+    * Writes a group, retrying while the database is unreachable, and
+    * deletes the journal segments it completes.
+    *
+    * @return false when closed before the group was written
+    */
+   private boolean writeBatch(List<OrderJournal.Entry> batch) {
+      long backoff = Math.max(this.flushMillis, MIN_BACKOFF_MILLIS);
+      while (true) {
+         try {
+            write(batch);
+            break;
+         } catch (SQLException e) {
+            if (refused(e)) {
+               for (OrderJournal.Entry entry : batch) {
+                  if (!writeOne(entry))
+                     return false;
+               }
+               break;
+            }
+            this.retries.incrementAndGet();
+            System.err.println("Unable to write " + batch.size() + " orders, retrying: " + e.getMessage());
+            if (!pause(backoff))
+               return false;
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+         }
+      }
+      this.journal.release(batch.get(batch.size() - 1).sequence);
+      return true;
+   }// end writeBatch
+
+   private boolean writeOne(OrderJournal.Entry entry) {
+      long backoff = Math.max(this.flushMillis, MIN_BACKOFF_MILLIS);
+      while (true) {
+         try {
+            write(Collections.singletonList(entry));
+            return true;
+         } catch (SQLException e) {
+            if (refused(e)) {
+               try {
+                  // kept for reconciliation before the checkpoint of the next group skips it
+                  this.journal.refuse(entry, e.getSQLState() + " " + e.getMessage());
+               } catch (IOException io) {
+                  System.err.println("Unable to keep refused order " + entry.orderNumber + ", retrying: "
+                        + io.getMessage());
+                  if (!pause(backoff))
+                     return false;
+                  backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                  continue;
+               }
+               this.dropped.incrementAndGet();
+               System.err.println("Refused order " + entry.orderNumber + ", kept in refused.csv: " + e.getMessage());
+               if (this.listener != null)
+                  this.listener.onDropped(entry);
+               return true;
+            }
+            this.retries.incrementAndGet();
+            if (!pause(backoff))
+               return false;
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+         }
+      }
+   }// end writeOne
+
+   // integrity constraint violations and data exceptions, which a retry does not fix
+   private static boolean refused(SQLException e) {
+      String state = e.getSQLState();
+      return state != null && (state.startsWith("23") || state.startsWith("22"));
+   }
+
+   // false when closed meanwhile
+   private boolean pause(long millis) {
+      if (closed)
+         return false;
+      try {
+         Thread.sleep(millis);
+      } catch (InterruptedException e) {
+         if (closed)
+            return false;
+      }
+      return true;
+   }
+
+   // inserts the new orders, takes their units and moves the checkpoint in one transaction
+   private void write(List<OrderJournal.Entry> entries) throws SQLException {
+      StringBuilder sql = new StringBuilder(
+            "WITH inserted AS (INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) VALUES ");
+      for (int i = 0; i < entries.size(); i++)
+         sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, ?)");
+      sql.append(" ON CONFLICT (orderNumber) DO NOTHING RETURNING storeID, productName, unitsOrdered)"
+            + " UPDATE Product SET numberOfUnits = numberOfUnits - v.units"
+            + " FROM (SELECT storeID, productName, sum(unitsOrdered) AS units FROM inserted GROUP BY storeID, productName) AS v"
+            + " WHERE Product.storeID = v.storeID AND Product.productName = v.productName");
+
+      ConnectionPool pool = this.esql.getPool();
+      PooledConnection conn = pool.borrow();
+      try {
+         Connection c = conn.getConnection();
+         c.setAutoCommit(false);
+         PreparedStatement insert = c.prepareStatement(sql.toString());
+         try {
+            int param = 1;
+            for (OrderJournal.Entry entry : entries) {
+               insert.setInt(param++, entry.orderNumber);
+               insert.setInt(param++, entry.customerId);
+               insert.setInt(param++, entry.storeId);
+               insert.setString(param++, entry.productName);
+               insert.setInt(param++, entry.units);
+               insert.setTimestamp(param++, new Timestamp(entry.orderTime));
+            }
+            insert.executeUpdate();
+         } finally {
+            insert.close();
+         }
+
+         long last = entries.get(entries.size() - 1).sequence;
+         PreparedStatement checkpoint = conn.prepare(
+               "INSERT INTO OrderJournalCheckpoint (journal, lastSequence) VALUES (?, ?) ON CONFLICT (journal) DO UPDATE SET lastSequence = GREATEST(OrderJournalCheckpoint.lastSequence, EXCLUDED.lastSequence)");
+         checkpoint.setString(1, this.name);
+         checkpoint.setLong(2, last);
+         checkpoint.executeUpdate();
+         c.commit();
+      } finally {
+         // rolls back when the commit was not reached
+         pool.release(conn);
+      }
+
+      this.written.addAndGet(entries.size());
+      this.commits.incrementAndGet();
+      AuditWriter audit = this.esql.getAuditWriter();
+      if (audit != null) {
+         Set<String> products = new LinkedHashSet<String>();
+         for (OrderJournal.Entry entry : entries) {
+            if (!products.add(entry.storeId + "/" + entry.productName))
+               continue;
+            try {
+               audit.record(entry.storeId, entry.productName);
+            } catch (SQLException e) {
+               // the orders are committed, so this must not send them back to be retried or refused
+               System.err.println("Unable to audit order of " + entry.productName.trim() + " at store "
+                     + entry.storeId + ": " + e.getMessage());
+            }
+         }
+      }
+   }// end write
+
+   /**
+    * Writes the queued records and stops the drainer thread. Records not
+    * written by then stay in the journal.
+    */
+   public void close() {
+      this.closed = true;
+      this.drainer.interrupt();
+      try {
+         this.drainer.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * @return a one-line summary of the records written
+    */
+   public String getStats() {
+      return String.format("queued=%d written=%d commits=%d retries=%d dropped=%d segments=%d",
+            this.queue.size(), this.written.get(), this.commits.get(), this.retries.get(), this.dropped.get(),
+            this.journal.getSegments());
+   }
+}// end OrderDrainer
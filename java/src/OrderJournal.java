@@ -0,0 +1,403 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of accepted orders on local disk, so orders acknowledged
+ * before they reach the database survive a crash. The journal is a
+ * directory of segment files named after the first sequence they hold.
+ * Each segment is created at its full size and memory-mapped, so an append
+ * is a copy into the page cache with no system call. Every record carries
+ * a sequence number and a CRC32 of its contents:
+ *
+ *   int length | int crc | long sequence | int orderNumber | int customerID |
+ *   int storeID | int units | long orderTime | short nameLength | name
+ *
+ * and a length of zero marks the end of a segment's records.
+ *
+ * A record is durable once sync() returned for its sequence. Callers of
+ * sync() share fsyncs: the first one waits syncMillis for more records,
+ * then forces everything appended so far, and the others find their record
+ * already forced. A segment is forced when the next one is started, and
+ * deleted by release() once all its records were applied. On open, a
+ * torn or corrupt tail left by a crash is cut off.
+ *
+ * Records the database refused are appended to refused.csv in the same
+ * directory by refuse() before their segment can be released, so orders
+ * that were acknowledged but never written can be reconciled.
+ *
+ */
+public class OrderJournal {
+
+   /**
+    * An order as written to the journal.
+    */
+   public static final class Entry {
+      public final long sequence;
+      public final int orderNumber;
+      public final int customerId;
+      public final int storeId;
+      public final String productName;
+      public final int units;
+      public final long orderTime;
+
+      public Entry(long sequence, int orderNumber, int customerId, int storeId, String productName, int units,
+            long orderTime) {
+         this.sequence = sequence;
+         this.orderNumber = orderNumber;
+         this.customerId = customerId;
+         this.storeId = storeId;
+         this.productName = productName;
+         this.units = units;
+         this.orderTime = orderTime;
+      }
+   }
+
+   // one mapped segment file
+   private static final class Segment {
+      final long firstSequence;
+      final File file;
+      final RandomAccessFile raf;
+      final MappedByteBuffer buffer;
+      // sequence of the last record, firstSequence - 1 when empty
+      long lastSequence;
+
+      Segment(File file, long firstSequence, int size) throws IOException {
+         this.firstSequence = firstSequence;
+         this.file = file;
+         this.raf = new RandomAccessFile(file, "rw");
+         if (this.raf.length() < size)
+            this.raf.setLength(size);
+         this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.raf.length());
+         this.lastSequence = firstSequence - 1;
+      }
+
+      void close() {
+         try {
+            this.raf.close();
+         } catch (IOException e) {
+            // the mapping stays valid until it is collected
+         }
+      }
+   }
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final String SUFFIX = ".seg";
+   private static final String REFUSED = "refused.csv";
+   // length and crc
+   private static final int HEADER = 8;
+   // the fixed fields after the header
+   private static final int FIXED = 8 + 4 + 4 + 4 + 4 + 8 + 2;
+   private static final int MAX_NAME = 1024;
+   private static final int MAX_RECORD = HEADER + FIXED + MAX_NAME;
+
+   private final File dir;
+   private final boolean fsync;
+   private final long syncMillis;
+   private final int segmentBytes;
+
+   // guarded by this
+   private final List<Segment> segments = new ArrayList<Segment>();
+   private Segment active;
+   private long lastSequence;
+   // guarded by syncLock
+   private long durableSequence;
+   private final Object syncLock = new Object();
+   private final List<Entry> recovered = new ArrayList<Entry>();
+
+   /**
+    * Opens the journal, creating its directory when missing, and reads back
+    * the records left in it.
+    *
+    * @param dir           the directory holding the segments
+    * @param fsync         whether sync() forces records to disk; without it a
+    *                      crash of the machine, not of the process, may lose them
+    * @param syncMillis    how long sync() waits for more records before forcing them
+    * @param segmentBytes  the size of a segment file
+    * @param afterSequence records up to this sequence are already applied and skipped
+    * @throws java.io.IOException when the segments could not be opened or read
+    */
+   public OrderJournal(File dir, boolean fsync, long syncMillis, int segmentBytes, long afterSequence)
+         throws IOException {
+      if (segmentBytes < 2 * MAX_RECORD)
+         throw new IllegalArgumentException("segmentBytes must be at least " + 2 * MAX_RECORD);
+      this.dir = dir;
+      this.fsync = fsync;
+      this.syncMillis = syncMillis;
+      this.segmentBytes = segmentBytes;
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Unable to create " + dir);
+
+      String[] names = dir.list(new FilenameFilter() {
+         public boolean accept(File d, String name) {
+            return name.endsWith(SUFFIX);
+         }
+      });
+      // zero-padded, so the name order is the sequence order
+      Arrays.sort(names);
+      long last = afterSequence;
+      for (int i = 0; i < names.length; i++) {
+         long first;
+         try {
+            first = Long.parseLong(names[i].substring(0, names[i].length() - SUFFIX.length()));
+         } catch (NumberFormatException e) {
+            continue;
+         }
+         Segment segment = new Segment(new File(dir, names[i]), first, 0);
+         int end = read(segment, afterSequence);
+         if (i < names.length - 1 && end < segment.buffer.capacity() && segment.buffer.getInt(end) != 0)
+            System.err.println("Order journal segment " + segment.file + " is corrupt at " + end
+                  + ", the rest of it is skipped");
+         segment.buffer.position(end);
+         this.segments.add(segment);
+         last = Math.max(last, segment.lastSequence);
+      }
+      this.lastSequence = last;
+      this.durableSequence = last;
+
+      Segment tail = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+      if (tail != null && tail.lastSequence < tail.firstSequence) {
+         // started but never written, possibly not even at its full size
+         this.segments.remove(tail);
+         tail.close();
+         if (!tail.file.delete())
+            throw new IOException("Unable to delete the empty order journal segment " + tail.file);
+      }
+      if (this.segments.isEmpty() || tail.lastSequence < tail.firstSequence) {
+         this.active = newSegment(last + 1);
+      } else {
+         this.active = this.segments.get(this.segments.size() - 1);
+         cut(this.active);
+      }
+      release(afterSequence);
+   }// end OrderJournal
+
+   // collects the valid records of a segment, returning where they end
+   private int read(Segment segment, long afterSequence) {
+      ByteBuffer buffer = segment.buffer;
+      CRC32 crc = new CRC32();
+      byte[] body = new byte[MAX_RECORD];
+      int position = 0;
+      while (position + HEADER <= buffer.capacity()) {
+         int length = buffer.getInt(position);
+         int expected = buffer.getInt(position + 4);
+         if (length < FIXED || length > FIXED + MAX_NAME || position + HEADER + length > buffer.capacity())
+            break;
+         ByteBuffer slice = buffer.duplicate();
+         slice.position(position + HEADER);
+         slice.get(body, 0, length);
+         crc.reset();
+         crc.update(body, 0, length);
+         if ((int) crc.getValue() != expected)
+            break;
+         Entry entry = decode(ByteBuffer.wrap(body, 0, length));
+         if (entry == null || entry.sequence <= segment.lastSequence)
+            break;
+         segment.lastSequence = entry.sequence;
+         if (entry.sequence > afterSequence)
+            this.recovered.add(entry);
+         position += HEADER + length;
+      }
+      return position;
+   }// end read
+
+   // zeroes whatever follows the last valid record, so it is never read back as records
+   private void cut(Segment segment) {
+      MappedByteBuffer buffer = segment.buffer;
+      int end = buffer.position();
+      if (end + 4 > buffer.capacity() || buffer.getInt(end) == 0)
+         return;
+      System.err.println("Cutting the order journal segment " + segment.file + " at " + end
+            + ", the rest is torn or corrupt");
+      for (int i = end; i < buffer.capacity(); i++)
+         buffer.put(i, (byte) 0);
+      buffer.force();
+   }
+
+   private static Entry decode(ByteBuffer body) {
+      long sequence = body.getLong();
+      int orderNumber = body.getInt();
+      int customerId = body.getInt();
+      int storeId = body.getInt();
+      int units = body.getInt();
+      long orderTime = body.getLong();
+      int nameLength = body.getShort();
+      if (nameLength < 0 || nameLength != body.remaining())
+         return null;
+      byte[] name = new byte[nameLength];
+      body.get(name);
+      return new Entry(sequence, orderNumber, customerId, storeId, new String(name, UTF8), units, orderTime);
+   }
+
+   private Segment newSegment(long firstSequence) throws IOException {
+      Segment segment = new Segment(new File(this.dir, String.format("%020d%s", firstSequence, SUFFIX)),
+            firstSequence, this.segmentBytes);
+      this.segments.add(segment);
+      return segment;
+   }
+
+   /**
+    * @return the records found when the journal was opened, past the
+    *         sequence given then, in journal order
+    */
+   public List<Entry> getRecovered() {
+      return new ArrayList<Entry>(this.recovered);
+   }
+
+   /**
+    * Appends an order. It is not durable until sync() returns for its
+    * sequence.
+    *
+    * @return the appended entry with its sequence
+    * @throws java.io.IOException when a new segment could not be created
+    */
+   public synchronized Entry append(int orderNumber, int customerId, int storeId, String productName, int units,
+         long orderTime) throws IOException {
+      byte[] name = productName.getBytes(UTF8);
+      if (name.length > MAX_NAME)
+         throw new IOException("Product name too long for the order journal");
+      Entry entry = new Entry(this.lastSequence + 1, orderNumber, customerId, storeId, productName, units,
+            orderTime);
+      int length = FIXED + name.length;
+      ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+      record.position(HEADER);
+      record.putLong(entry.sequence).putInt(orderNumber).putInt(customerId).putInt(storeId).putInt(units)
+            .putLong(orderTime).putShort((short) name.length).put(name);
+      CRC32 crc = new CRC32();
+      crc.update(record.array(), HEADER, length);
+      record.putInt(0, length).putInt(4, (int) crc.getValue());
+      record.flip();
+
+      // keep room for the end marker
+      if (this.active.buffer.remaining() < record.remaining() + 4) {
+         // earlier segments are on disk once sync() only has to force the active one
+         if (this.fsync)
+            this.active.buffer.force();
+         this.active = newSegment(entry.sequence);
+      }
+      this.active.buffer.put(record);
+      this.active.lastSequence = entry.sequence;
+      this.lastSequence = entry.sequence;
+      return entry;
+   }// end append
+
+   /**
+    * Waits until the record with the given sequence is on disk.
+    */
+   public void sync(long sequence) {
+      synchronized (this.syncLock) {
+         if (this.durableSequence >= sequence)
+            return;
+         if (this.syncMillis > 0) {
+            // let more records join this fsync
+            try {
+               Thread.sleep(this.syncMillis);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+         long target;
+         MappedByteBuffer buffer;
+         synchronized (this) {
+            target = this.lastSequence;
+            buffer = this.active.buffer;
+         }
+         if (this.fsync)
+            buffer.force();
+         this.durableSequence = target;
+      }
+   }// end sync
+
+   /**
+    * Keeps a record the database refused in refused.csv, on disk before it
+    * returns when fsync is on. A crash before the record's group is
+    * checkpointed replays it, so a record may be listed more than once.
+    *
+    * @param entry  the refused record
+    * @param reason why it was refused
+    * @throws java.io.IOException when the file could not be written
+    */
+   public synchronized void refuse(Entry entry, String reason) throws IOException {
+      File file = new File(this.dir, REFUSED);
+      StringBuilder line = new StringBuilder();
+      if (!file.exists())
+         line.append("sequence,orderNumber,customerID,storeID,productName,unitsOrdered,orderTime,reason\n");
+      line.append(entry.sequence).append(',').append(entry.orderNumber).append(',').append(entry.customerId)
+            .append(',').append(entry.storeId).append(',');
+      quote(line, entry.productName).append(',').append(entry.units).append(',')
+            .append(new Timestamp(entry.orderTime)).append(',');
+      quote(line, String.valueOf(reason)).append('\n');
+      FileOutputStream out = new FileOutputStream(file, true);
+      try {
+         out.write(line.toString().getBytes(UTF8));
+         if (this.fsync)
+            out.getFD().sync();
+      } finally {
+         out.close();
+      }
+   }// end refuse
+
+   private static StringBuilder quote(StringBuilder line, String value) {
+      line.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char ch = value.charAt(i);
+         if (ch == '"')
+            line.append('"');
+         line.append(ch == '\n' || ch == '\r' ? ' ' : ch);
+      }
+      return line.append('"');
+   }
+
+   /**
+    * Deletes the segments whose records were all applied.
+    *
+    * @param appliedSequence the last sequence applied to the database
+    * @return the number of segments deleted
+    */
+   public synchronized int release(long appliedSequence) {
+      int released = 0;
+      while (this.segments.size() > 1 && this.segments.get(0).lastSequence <= appliedSequence) {
+         Segment segment = this.segments.remove(0);
+         segment.close();
+         if (!segment.file.delete())
+            System.err.println("Unable to delete the order journal segment " + segment.file);
+         released++;
+      }
+      return released;
+   }// end release
+
+   /**
+    * @return the sequence of the last appended record
+    */
+   public synchronized long getLastSequence() {
+      return this.lastSequence;
+   }
+
+   /**
+    * @return the number of segment files
+    */
+   public synchronized int getSegments() {
+      return this.segments.size();
+   }
+
+   /**
+    * Forces what was appended and closes the segment files.
+    */
+   public synchronized void close() {
+      if (this.fsync)
+         this.active.buffer.force();
+      for (Segment segment : this.segments)
+         segment.close();
+   }
+}// end OrderJournal
@@ -0,0 +1,18 @@
+/**
+ * One line of a batch order: a customer ordering units of a product from a store.
+ *
+ */
+public final class OrderLine {
+
+   public final int customerId;
+   public final int storeId;
+   public final String productName;
+   public final int units;
+
+   public OrderLine(int customerId, int storeId, String productName, int units) {
+      this.customerId = customerId;
+      this.storeId = storeId;
+      this.productName = productName;
+      this.units = units;
+   }
+}// end OrderLine
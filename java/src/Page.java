@@ -0,0 +1,70 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One page of a keyset-paginated result. The next page is asked for with
+ * nextToken, an opaque string holding the sort key of the last row, so
+ * every page is read with an index seek past that key instead of an
+ * OFFSET scan over the rows before it.
+ *
+ */
+public final class Page<T> {
+
+   // separates the parts of a sort key inside a token
+   private static final char SEPARATOR = '|';
+
+   public final List<T> items;
+   // null on the last page
+   public final String nextToken;
+
+   public Page(List<T> items, String nextToken) {
+      this.items = items;
+      this.nextToken = nextToken;
+   }
+
+   /**
+    * Builds a page from rows read with a limit of pageSize + 1, where the
+    * extra row only tells whether there is a next page.
+    *
+    * @param rows     the rows read
+    * @param pageSize the rows per page
+    * @param keys     the sort key of a row
+    */
+   static <T> Page<T> of(List<T> rows, int pageSize, KeyOf<T> keys) {
+      if (rows.size() <= pageSize)
+         return new Page<T>(rows, null);
+      List<T> items = rows.subList(0, pageSize);
+      return new Page<T>(items, token(keys.key(items.get(pageSize - 1))));
+   }
+
+   // the sort key of a row, as the strings stored in its token
+   interface KeyOf<T> {
+      String[] key(T row);
+   }
+
+   static String token(String... key) {
+      StringBuilder raw = new StringBuilder();
+      for (int i = 0; i < key.length; i++)
+         raw.append(i == 0 ? "" : String.valueOf(SEPARATOR)).append(key[i]);
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.toString().getBytes(StandardCharsets.UTF_8));
+   }
+
+   /**
+    * @param token a nextToken of an earlier page
+    * @param parts the number of parts of the sort key; only the last may contain the separator
+    * @return the sort key stored in the token
+    * @throws ServiceException when the token is malformed
+    */
+   static String[] key(String token, int parts) throws ServiceException {
+      try {
+         String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+         String[] key = raw.split("\\" + SEPARATOR, parts);
+         if (key.length == parts)
+            return key;
+      } catch (IllegalArgumentException e) {
+         // reported below
+      }
+      throw new ServiceException(ServiceException.Reason.INVALID_INPUT, "Invalid page token.");
+   }
+}// end Page
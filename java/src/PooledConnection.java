@@ -0,0 +1,149 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGStatement;
+
+/**
+ * A physical database connection owned by a ConnectionPool, together with the
+ * bookkeeping the pool needs to validate, evict and recycle it, and an LRU
+ * cache of the prepared statements issued on it.
+ *
+ */
+class PooledConnection {
+
+   // the physical connection
+   private final Connection connection;
+
+   // when the physical connection was opened (ms since epoch)
+   private final long createdAt;
+
+   // when the connection was last handed back to the pool (ms since epoch)
+   private long lastReturned;
+
+   // prepared statements keyed by SQL text, least recently used first
+   private final LinkedHashMap<String, PreparedStatement> statements;
+
+   // statement cache metrics, shared by every connection of the pool
+   private final AtomicLong cacheHits;
+   private final AtomicLong cacheMisses;
+
+   PooledConnection(Connection connection, final int statementCacheSize, AtomicLong cacheHits,
+         AtomicLong cacheMisses) {
+      this.connection = connection;
+      this.cacheHits = cacheHits;
+      this.cacheMisses = cacheMisses;
+      this.createdAt = System.currentTimeMillis();
+      this.lastReturned = this.createdAt;
+      this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= statementCacheSize)
+               return false;
+            closeQuietly(eldest.getValue());
+            return true;
+         }
+      };
+   }
+
+   /**
+    * Returns a prepared statement for the given SQL text, reusing the one
+    * cached on this connection when possible. Cached statements are prepared
+    * on the server so repeated executions skip parsing and planning. The
+    * caller must not close the returned statement.
+    *
+    * @param sql the SQL text with ? placeholders
+    * @return a prepared statement with its parameters cleared
+    * @throws java.sql.SQLException when the statement could not be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = this.statements.get(sql);
+      if (stmt != null) {
+         this.cacheHits.incrementAndGet();
+         stmt.clearParameters();
+         return stmt;
+      }
+      this.cacheMisses.incrementAndGet();
+      stmt = this.connection.prepareStatement(sql);
+      if (stmt instanceof PGStatement)
+         ((PGStatement) stmt).setUseServerPrepare(true);
+      this.statements.put(sql, stmt);
+      return stmt;
+   }// end prepare
+
+
+   /**
+    * @return the underlying JDBC connection
+    */
+   public Connection getConnection() {
+      return this.connection;
+   }
+
+   long getCreatedAt() {
+      return this.createdAt;
+   }
+
+   long getLastReturned() {
+      return this.lastReturned;
+   }
+
+   void markReturned() {
+      this.lastReturned = System.currentTimeMillis();
+   }
+
+   /**
+    * Checks that the backend is still reachable. The 7.3 driver predates
+    * Connection.isValid, so a trivial query is issued instead.
+    *
+    * @return true when the connection answered the validation query
+    */
+   boolean validate() {
+      Statement stmt = null;
+      try {
+         if (this.connection.isClosed())
+            return false;
+         stmt = this.connection.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT 1");
+         return rs.next();
+      } catch (SQLException e) {
+         return false;
+      } finally {
+         if (stmt != null) {
+            try {
+               stmt.close();
+            } catch (SQLException e) {
+               // ignored.
+            }
+         }
+      }
+   }
+
+   /**
+    * Closes the cached statements and the physical connection, ignoring errors.
+    */
+   void close() {
+      Iterator<PreparedStatement> it = this.statements.values().iterator();
+      while (it.hasNext()) {
+         closeQuietly(it.next());
+         it.remove();
+      }
+      try {
+         this.connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   private static void closeQuietly(Statement stmt) {
+      try {
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+}// end PooledConnection
@@ -0,0 +1,30 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the Product table.
+ *
+ */
+public final class Product {
+
+   // column list matching MAPPER, for use in SELECT statements
+   public static final String COLUMNS = "storeID, productName, numberOfUnits, pricePerUnit";
+
+   public static final RowMapper<Product> MAPPER = new RowMapper<Product>() {
+      public Product map(ResultSet rs) throws SQLException {
+         return new Product(rs.getInt(1), User.trim(rs.getString(2)), rs.getInt(3), rs.getDouble(4));
+      }
+   };
+
+   public final int storeId;
+   public final String productName;
+   public final int numberOfUnits;
+   public final double pricePerUnit;
+
+   public Product(int storeId, String productName, int numberOfUnits, double pricePerUnit) {
+      this.storeId = storeId;
+      this.productName = productName;
+      this.numberOfUnits = numberOfUnits;
+      this.pricePerUnit = pricePerUnit;
+   }
+}// end Product
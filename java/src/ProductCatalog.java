@@ -0,0 +1,211 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-through cache of the Product table, one catalog per store. At most
+ * maxStores catalogs are held, evicting the least recently used. Every
+ * cached store is LISTENed on its product_changed_&lt;storeID&gt; channel,
+ * notified by the Product triggers, so stock and prices stay fresh across
+ * processes. A channel name cannot hold a minus sign, so the triggers and
+ * channel() spell a negative id with an 'm', e.g. product_changed_m5.
+ *
+ */
+public class ProductCatalog implements ChangeNotifier.Listener {
+
+   // prefix of the per-store channel notified by the Product triggers
+   public static final String CHANNEL_PREFIX = "product_changed_";
+
+   private final Amazon esql;
+   private final ChangeNotifier notifier;
+   private final int maxStores;
+
+   // store id -> products keyed by name, in name order; guarded by this
+   private final LinkedHashMap<Integer, Map<String, Product>> catalogs;
+
+   // store id -> invalidation count, so a load racing an invalidation is discarded; guarded by this
+   private final Map<Integer, Long> generations = new HashMap<Integer, Long>();
+
+   // store id -> loads in progress, which need the store's channel kept; guarded by this
+   private final Map<Integer, Integer> loading = new HashMap<Integer, Integer>();
+
+   // orders LISTEN and UNLISTEN of the store channels, taken before this
+   private final Object listenLock = new Object();
+
+   // metrics, guarded by this
+   private long hits = 0;
+   private long misses = 0;
+   private long invalidations = 0;
+   private long evictions = 0;
+
+   /**
+    * @param esql      the session used to load catalogs
+    * @param notifier  delivers the product change notifications
+    * @param maxStores the maximum number of store catalogs kept in memory
+    */
+   public ProductCatalog(Amazon esql, ChangeNotifier notifier, int maxStores) {
+      this.esql = esql;
+      this.notifier = notifier;
+      this.maxStores = maxStores;
+      this.catalogs = new LinkedHashMap<Integer, Map<String, Product>>(16, 0.75f, true);
+   }// end ProductCatalog
+
+   /**
+    * Returns every product of a store, loading the catalog on a miss.
+    *
+    * @param storeId the store
+    * @return the products ordered by name, empty for unknown stores
+    * @throws java.sql.SQLException when the catalog could not be loaded
+    */
+   public List<Product> getProducts(int storeId) throws SQLException {
+      return new ArrayList<Product>(catalog(storeId).values());
+   }
+
+   /**
+    * Looks up one product of a store, loading the catalog on a miss.
+    *
+    * @param storeId     the store
+    * @param productName the product name, trailing blanks are ignored as in char(n)
+    * @return the product, or null when the store does not carry it
+    * @throws java.sql.SQLException when the catalog could not be loaded
+    */
+   public Product getProduct(int storeId, String productName) throws SQLException {
+      return catalog(storeId).get(key(productName));
+   }
+
+   private Map<String, Product> catalog(int storeId) throws SQLException {
+      Integer key = Integer.valueOf(storeId);
+      long generation;
+      synchronized (this) {
+         Map<String, Product> cached = this.catalogs.get(key);
+         if (cached != null) {
+            hits++;
+            return cached;
+         }
+         misses++;
+         generation = generation(key);
+         this.loading.put(key, Integer.valueOf(loading(key) + 1));
+      }
+
+      boolean installed = false;
+      List<Integer> evicted = new ArrayList<Integer>();
+      try {
+         // subscribe before reading so no change between the read and the LISTEN is missed
+         synchronized (this.listenLock) {
+            this.notifier.listen(channel(storeId), this);
+         }
+         final Map<String, Product> loaded = new LinkedHashMap<String, Product>();
+         this.esql.executeQueryStreaming(
+               "SELECT " + Product.COLUMNS + " FROM Product WHERE storeID = ? ORDER BY productName", 0,
+               new RowHandler() {
+                  public boolean handleRow(ResultSet rs) throws SQLException {
+                     Product product = Product.MAPPER.map(rs);
+                     loaded.put(product.productName, product);
+                     return true;
+                  }
+               }, storeId);
+         Map<String, Product> catalog = Collections.unmodifiableMap(loaded);
+
+         synchronized (this) {
+            // only install if nothing changed while loading
+            if (generation(key) == generation) {
+               this.catalogs.put(key, catalog);
+               installed = true;
+               while (this.catalogs.size() > this.maxStores) {
+                  Integer eldest = this.catalogs.keySet().iterator().next();
+                  this.catalogs.remove(eldest);
+                  evictions++;
+                  evicted.add(eldest);
+               }
+            }
+         }
+         return catalog;
+      } finally {
+         synchronized (this) {
+            int left = loading(key) - 1;
+            if (left == 0)
+               this.loading.remove(key);
+            else
+               this.loading.put(key, Integer.valueOf(left));
+         }
+         if (!installed)
+            evicted.add(key);
+         for (Integer store : evicted)
+            unlisten(store);
+      }
+   }// end catalog
+
+   // stops listening to a store unless it is cached or being loaded again
+   private void unlisten(Integer storeId) {
+      // held across the check and the UNLISTEN, so a load starting meanwhile
+      // issues its LISTEN after the UNLISTEN rather than being undone by it
+      synchronized (this.listenLock) {
+         synchronized (this) {
+            if (this.catalogs.containsKey(storeId) || loading(storeId) > 0)
+               return;
+         }
+         this.notifier.unlisten(channel(storeId), this);
+      }
+   }
+
+   private int loading(Integer storeId) {
+      Integer count = this.loading.get(storeId);
+      return count == null ? 0 : count.intValue();
+   }
+
+   private long generation(Integer storeId) {
+      Long generation = this.generations.get(storeId);
+      return generation == null ? 0 : generation.longValue();
+   }
+
+   /**
+    * Drops the cached catalog of a store. Called for local writes so the
+    * next read does not wait for the notification round trip.
+    *
+    * @param storeId the store whose products changed
+    */
+   public synchronized void invalidate(int storeId) {
+      Integer key = Integer.valueOf(storeId);
+      this.generations.put(key, Long.valueOf(generation(key) + 1));
+      if (this.catalogs.remove(key) != null)
+         invalidations++;
+   }
+
+   public void onNotify(String channel) {
+      if (!channel.startsWith(CHANNEL_PREFIX))
+         return;
+      try {
+         invalidate(Integer.parseInt(channel.substring(CHANNEL_PREFIX.length()).replace('m', '-')));
+      } catch (NumberFormatException e) {
+         // not one of ours.
+      }
+   }
+
+   // the channel the Product triggers notify for a store
+   private static String channel(int storeId) {
+      return CHANNEL_PREFIX + String.valueOf(storeId).replace('-', 'm');
+   }
+
+   // char(n) comparisons ignore trailing blanks
+   private static String key(String productName) {
+      int end = productName.length();
+      while (end > 0 && productName.charAt(end - 1) == ' ')
+         end--;
+      return productName.substring(0, end);
+   }
+
+   /**
+    * @return a one-line summary of the cache size and hit/miss statistics
+    */
+   public synchronized String getStats() {
+      long lookups = hits + misses;
+      return String.format("stores=%d hits=%d misses=%d hitRatio=%.3f invalidations=%d evictions=%d",
+            this.catalogs.size(), hits, misses, lookups == 0 ? 0.0 : (double) hits / lookups, invalidations,
+            evictions);
+   }
+}// end ProductCatalog
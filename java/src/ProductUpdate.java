@@ -0,0 +1,34 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * A row of the ProductUpdates table.
+ *
+ */
+public final class ProductUpdate {
+
+   // column list matching MAPPER, for use in SELECT statements
+   public static final String COLUMNS = "updateNumber, managerID, storeID, productName, updatedOn";
+
+   public static final RowMapper<ProductUpdate> MAPPER = new RowMapper<ProductUpdate>() {
+      public ProductUpdate map(ResultSet rs) throws SQLException {
+         return new ProductUpdate(rs.getInt(1), rs.getInt(2), rs.getInt(3), User.trim(rs.getString(4)),
+               rs.getTimestamp(5));
+      }
+   };
+
+   public final int updateNumber;
+   public final int managerId;
+   public final int storeId;
+   public final String productName;
+   public final Timestamp updatedOn;
+
+   public ProductUpdate(int updateNumber, int managerId, int storeId, String productName, Timestamp updatedOn) {
+      this.updateNumber = updateNumber;
+      this.managerId = managerId;
+      this.storeId = storeId;
+      this.productName = productName;
+      this.updatedOn = updatedOn;
+   }
+}// end ProductUpdate
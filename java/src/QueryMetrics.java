@@ -0,0 +1,320 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency, row, byte and error counts of the statements run through the
+ * Amazon query helpers, kept per SQL shape and per statement kind (select,
+ * insert, ...), plus the time spent waiting for a pooled connection.
+ * A shape is the SQL text with literals replaced by ? and repeated
+ * parameter groups, as in IN (?, ?, ?) or multi-row VALUES, folded into
+ * one, so batches of any size share a shape.
+ *
+ * Statements slower than the slow query threshold are logged to standard
+ * error with their shape, never their parameters. The metrics are read
+ * through JMX (amazon:type=QueryMetrics) or as Prometheus text with dump().
+ *
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+   // the most distinct shapes tracked, later ones are counted under OTHER
+   private static final int MAX_SHAPES = 512;
+   // the most SQL texts remembered with their shape
+   private static final int MAX_TEXTS = 4096;
+   private static final String OTHER = "other";
+
+   private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+   private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+   // a parenthesized group, up to two levels of nesting deep, repeated with commas
+   private static final Pattern REPEATED_GROUP = Pattern
+         .compile("(\\((?:[^()]|\\((?:[^()]|\\([^()]*\\))*\\))*\\))(?:, \\1)+");
+   private static final Pattern REPEATED_PARAM = Pattern.compile("\\?(?:, \\?)+");
+
+   // the numbers kept for one shape
+   static final class Stats {
+      final String shape;
+      final String kind;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong bytes = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong slow = new AtomicLong();
+
+      Stats(String shape, String kind) {
+         this.shape = shape;
+         this.kind = kind;
+      }
+   }
+
+   private final boolean enabled;
+   private final boolean countBytes;
+   private volatile long slowMicros;
+
+   // SQL text -> its shape's stats, so the text is normalized once
+   private final ConcurrentHashMap<String, Stats> byText = new ConcurrentHashMap<String, Stats>();
+   private final ConcurrentHashMap<String, Stats> byShape = new ConcurrentHashMap<String, Stats>();
+   private final ConcurrentHashMap<String, LatencyHistogram> byKind = new ConcurrentHashMap<String, LatencyHistogram>();
+   private final LatencyHistogram connectionWait = new LatencyHistogram();
+
+   /**
+    * @param enabled         whether anything is recorded
+    * @param countBytes      whether the bytes of fetched rows are added up
+    * @param slowQueryMillis statements taking longer are logged, a negative value logs none
+    */
+   public QueryMetrics(boolean enabled, boolean countBytes, long slowQueryMillis) {
+      this.enabled = enabled;
+      this.countBytes = enabled && countBytes;
+      setSlowQueryMillis(slowQueryMillis);
+   }
+
+   /**
+    * Registers the metrics with the platform MBean server, under a numbered
+    * name when one is already registered. Failures are reported and ignored.
+    */
+   public void register() {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName("amazon:type=QueryMetrics");
+         for (int i = 2; server.isRegistered(name); i++)
+            name = new ObjectName("amazon:type=QueryMetrics,instance=" + i);
+         server.registerMBean(this, name);
+      } catch (Exception e) {
+         System.err.println("Unable to register the query metrics with JMX: " + e.getMessage());
+      }
+   }
+
+   public boolean isEnabled() {
+      return this.enabled;
+   }
+
+   // whether the helpers should add up the bytes of the rows they fetch
+   public boolean isCountingBytes() {
+      return this.countBytes;
+   }
+
+   /**
+    * Records one statement.
+    *
+    * @param sql         the SQL text as prepared
+    * @param waitNanos   time spent waiting for the connection
+    * @param elapsedNanos time spent running the statement and reading its rows
+    * @param rows        rows returned or affected, negative when the statement failed
+    * @param bytes       bytes of the fetched rows, 0 when not counted
+    */
+   public void record(String sql, long waitNanos, long elapsedNanos, long rows, long bytes) {
+      if (!this.enabled)
+         return;
+      long micros = elapsedNanos / 1000;
+      this.connectionWait.record(waitNanos / 1000);
+      Stats stats = stats(sql);
+      stats.latency.record(micros);
+      kind(stats.kind).record(micros);
+      if (rows < 0) {
+         stats.errors.incrementAndGet();
+      } else {
+         stats.rows.addAndGet(rows);
+         stats.bytes.addAndGet(bytes);
+      }
+      long threshold = this.slowMicros;
+      if (threshold >= 0 && micros > threshold) {
+         stats.slow.incrementAndGet();
+         System.err.println(String.format("Slow query: %.1f ms, %s rows, waited %.1f ms for a connection: %s",
+               micros / 1000.0, rows < 0 ? "failed" : String.valueOf(rows), waitNanos / 1e6, stats.shape));
+      }
+   }// end record
+
+   private Stats stats(String sql) {
+      Stats stats = this.byText.get(sql);
+      if (stats != null)
+         return stats;
+      String shape = shape(sql);
+      stats = this.byShape.get(shape);
+      if (stats == null) {
+         if (this.byShape.size() >= MAX_SHAPES)
+            shape = OTHER;
+         Stats created = new Stats(shape, kindOf(shape));
+         stats = this.byShape.putIfAbsent(shape, created);
+         if (stats == null)
+            stats = created;
+      }
+      if (this.byText.size() < MAX_TEXTS)
+         this.byText.put(sql, stats);
+      return stats;
+   }// end stats
+
+   private LatencyHistogram kind(String kind) {
+      LatencyHistogram histogram = this.byKind.get(kind);
+      if (histogram == null) {
+         LatencyHistogram created = new LatencyHistogram();
+         histogram = this.byKind.putIfAbsent(kind, created);
+         if (histogram == null)
+            histogram = created;
+      }
+      return histogram;
+   }
+
+   /**
+    * @return the SQL text with literals replaced and repeated groups folded
+    */
+   static String shape(String sql) {
+      String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+      shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+      shape = WHITESPACE.matcher(shape).replaceAll(" ").trim();
+      shape = shape.replaceAll("\\( ", "(").replaceAll(" \\)", ")").replaceAll(" ?, ?", ", ");
+      shape = REPEATED_PARAM.matcher(shape).replaceAll("?, ...");
+      shape = REPEATED_GROUP.matcher(shape).replaceAll("$1, ...");
+      return shape;
+   }
+
+   // the first keyword, lower case
+   private static String kindOf(String shape) {
+      int end = 0;
+      while (end < shape.length() && Character.isLetter(shape.charAt(end)))
+         end++;
+      return end == 0 ? OTHER : shape.substring(0, end).toLowerCase();
+   }
+
+   public long getQueries() {
+      long total = 0;
+      for (Stats stats : this.byShape.values())
+         total += stats.latency.getCount();
+      return total;
+   }
+
+   public long getErrors() {
+      long total = 0;
+      for (Stats stats : this.byShape.values())
+         total += stats.errors.get();
+      return total;
+   }
+
+   public long getSlowQueries() {
+      long total = 0;
+      for (Stats stats : this.byShape.values())
+         total += stats.slow.get();
+      return total;
+   }
+
+   public long getSlowQueryMillis() {
+      long micros = this.slowMicros;
+      return micros < 0 ? -1 : micros / 1000;
+   }
+
+   public void setSlowQueryMillis(long millis) {
+      this.slowMicros = millis < 0 ? -1 : millis * 1000;
+   }
+
+   public double getConnectionWaitP99Millis() {
+      return this.connectionWait.percentile(0.99) / 1000.0;
+   }
+
+   public int getShapes() {
+      return this.byShape.size();
+   }
+
+   // shapes by total time, highest first
+   private List<Stats> sorted() {
+      List<Stats> list = new ArrayList<Stats>(this.byShape.values());
+      Collections.sort(list, new Comparator<Stats>() {
+         public int compare(Stats a, Stats b) {
+            return Long.compare(b.latency.getSum(), a.latency.getSum());
+         }
+      });
+      return list;
+   }
+
+   public String top(int n) {
+      StringBuilder out = new StringBuilder();
+      List<Stats> list = sorted();
+      for (int i = 0; i < Math.min(n, list.size()); i++) {
+         Stats s = list.get(i);
+         out.append(String.format("%10.1f ms total %8d calls p50=%.2f ms p99=%.2f ms rows=%d errors=%d  %s%n",
+               s.latency.getSum() / 1000.0, s.latency.getCount(), s.latency.percentile(0.5) / 1000.0,
+               s.latency.percentile(0.99) / 1000.0, s.rows.get(), s.errors.get(), s.shape));
+      }
+      return out.toString();
+   }
+
+   public String dump() {
+      StringBuilder out = new StringBuilder();
+      List<Stats> list = sorted();
+
+      out.append("# HELP amazon_query_duration_seconds Time to run a statement and read its rows, per SQL shape.\n");
+      out.append("# TYPE amazon_query_duration_seconds summary\n");
+      for (Stats s : list)
+         summary(out, "amazon_query_duration_seconds", "kind=\"" + s.kind + "\",shape=\"" + escape(s.shape) + "\"",
+               s.latency);
+      counters(out, "amazon_query_rows_total", "Rows returned or affected, per SQL shape.", list, 0);
+      counters(out, "amazon_query_bytes_total", "Bytes of the rows fetched, per SQL shape.", list, 1);
+      counters(out, "amazon_query_errors_total", "Statements that failed, per SQL shape.", list, 2);
+      counters(out, "amazon_query_slow_total", "Statements slower than the slow query threshold, per SQL shape.",
+            list, 3);
+
+      out.append("# HELP amazon_operation_duration_seconds Time to run a statement, per statement kind.\n");
+      out.append("# TYPE amazon_operation_duration_seconds summary\n");
+      for (Map.Entry<String, LatencyHistogram> entry : this.byKind.entrySet())
+         summary(out, "amazon_operation_duration_seconds", "kind=\"" + entry.getKey() + "\"", entry.getValue());
+
+      out.append("# HELP amazon_connection_wait_seconds Time spent waiting for a pooled connection.\n");
+      out.append("# TYPE amazon_connection_wait_seconds summary\n");
+      summary(out, "amazon_connection_wait_seconds", null, this.connectionWait);
+      return out.toString();
+   }// end dump
+
+   private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+      String prefix = labels == null ? "" : labels + ",";
+      double[] quantiles = { 0.5, 0.9, 0.99, 0.999 };
+      for (double q : quantiles)
+         out.append(name).append('{').append(prefix).append("quantile=\"").append(q).append("\"} ")
+               .append(histogram.percentile(q) / 1e6).append('\n');
+      String suffix = labels == null ? " " : "{" + labels + "} ";
+      out.append(name).append("_sum").append(suffix).append(histogram.getSum() / 1e6).append('\n');
+      out.append(name).append("_count").append(suffix).append(histogram.getCount()).append('\n');
+   }
+
+   private static void counters(StringBuilder out, String name, String help, List<Stats> list, int which) {
+      out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      out.append("# TYPE ").append(name).append(" counter\n");
+      for (Stats s : list) {
+         AtomicLong value = which == 0 ? s.rows : which == 1 ? s.bytes : which == 2 ? s.errors : s.slow;
+         out.append(name).append("{kind=\"").append(s.kind).append("\",shape=\"").append(escape(s.shape))
+               .append("\"} ").append(value.get()).append('\n');
+      }
+   }
+
+   // label values escape backslash, double quote and newline
+   private static String escape(String value) {
+      return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+   }
+
+   public void reset() {
+      for (Stats stats : this.byShape.values()) {
+         stats.latency.reset();
+         stats.rows.set(0);
+         stats.bytes.set(0);
+         stats.errors.set(0);
+         stats.slow.set(0);
+      }
+      for (LatencyHistogram histogram : this.byKind.values())
+         histogram.reset();
+      this.connectionWait.reset();
+   }
+
+   /**
+    * @return a one-line summary of the statement counts
+    */
+   public String getStats() {
+      return String.format("queries=%d errors=%d slow=%d shapes=%d connectionWaitP99=%.2fms", getQueries(),
+            getErrors(), getSlowQueries(), getShapes(), getConnectionWaitP99Millis());
+   }
+}// end QueryMetrics
@@ -0,0 +1,34 @@
+/**
+ * JMX view of QueryMetrics, registered as amazon:type=QueryMetrics.
+ *
+ */
+public interface QueryMetricsMBean {
+
+   long getQueries();
+
+   long getErrors();
+
+   long getSlowQueries();
+
+   long getSlowQueryMillis();
+
+   void setSlowQueryMillis(long millis);
+
+   // 99th percentile of the time spent waiting for a pooled connection
+   double getConnectionWaitP99Millis();
+
+   int getShapes();
+
+   /**
+    * @param n how many shapes to list
+    * @return the n SQL shapes with the most total time, one per line
+    */
+   String top(int n);
+
+   /**
+    * @return every metric in the Prometheus text exposition format
+    */
+   String dump();
+
+   void reset();
+}// end QueryMetricsMBean
@@ -0,0 +1,344 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Restocks products before they sell out. A background thread reads the
+ * orders placed since its last tick, past a high-water mark on
+ * orderNumber, and keeps an exponentially decayed sales rate per (store,
+ * product). Every product that sold is then checked against its reorder
+ * point, the units expected to sell during the lead time plus a safety
+ * stock; a product below it is topped up to cover the lead time and the
+ * cover period after it. The lines of a store are placed as one supply
+ * batch in the name of the store's manager, routed to the nearest
+ * warehouses with capacity.
+ *
+ * A tick does bounded work: at most maxOrders orders read, maxProducts
+ * products checked and maxStores batches placed; the rest is left for the
+ * next tick. A tick runs on a single connection taken without waiting and
+ * only when the pool has more than reserve connections to spare, so the
+ * scheduler never makes a request wait for a connection.
+ *
+ * Order numbers are drawn before commit, so an order committed after a
+ * higher number was read is not counted. The rates are estimates and
+ * start over when the process restarts, warmed up from the last maxOrders
+ * orders.
+ *
+ */
+public class ReplenishmentScheduler {
+
+   // sales of one product of one store
+   private static final class Velocity {
+      final int storeId;
+      final String productName;
+      // units per millisecond, as of lastMillis
+      double rate = 0.0;
+      long lastMillis = Long.MIN_VALUE;
+
+      Velocity(int storeId, String productName) {
+         this.storeId = storeId;
+         this.productName = productName;
+      }
+
+      void add(int units, long millis, double tau) {
+         if (this.lastMillis == Long.MIN_VALUE) {
+            this.lastMillis = millis;
+         } else if (millis >= this.lastMillis) {
+            this.rate *= Math.exp((this.lastMillis - millis) / tau);
+            this.lastMillis = millis;
+         } else {
+            // an order older than the last one counted decays from its own time
+            this.rate += units / tau * Math.exp((millis - this.lastMillis) / tau);
+            return;
+         }
+         this.rate += units / tau;
+      }
+
+      double rateAt(long millis, double tau) {
+         return millis <= this.lastMillis ? this.rate : this.rate * Math.exp((this.lastMillis - millis) / tau);
+      }
+   }
+
+   // rates below this, in units per millisecond, are forgotten
+   private static final double FORGET_RATE = 1e-12;
+
+   private final Amazon esql;
+   private final long intervalMillis;
+   private final double windowMillis;
+   private final long leadTimeMillis;
+   private final long coverMillis;
+   private final int safetyUnits;
+   private final int maxUnits;
+   private final int maxOrders;
+   private final int maxProducts;
+   private final int maxStores;
+   private final int reserve;
+   private final Thread worker;
+   private volatile boolean closed = false;
+
+   // only touched by the worker thread
+   private final Map<String, Velocity> velocities = new HashMap<String, Velocity>();
+   // products that sold and are still to be checked, oldest first
+   private final LinkedHashMap<String, Velocity> pending = new LinkedHashMap<String, Velocity>();
+   private int highWater = -1;
+   private long lastForget = System.currentTimeMillis();
+
+   // metrics
+   private final AtomicLong ticks = new AtomicLong();
+   private final AtomicLong skipped = new AtomicLong();
+   private final AtomicLong ordersRead = new AtomicLong();
+   private final AtomicLong requests = new AtomicLong();
+   private final AtomicLong unitsRequested = new AtomicLong();
+   private final AtomicLong refused = new AtomicLong();
+   private final AtomicLong failures = new AtomicLong();
+   private volatile int tracked = 0;
+   private volatile int waiting = 0;
+
+   /**
+    * Starts the scheduler thread.
+    *
+    * @param esql           the session whose pool, service and caches are used
+    * @param intervalMillis time between ticks
+    * @param windowMillis   time constant of the sales rates; older sales weigh e times less per window
+    * @param leadTimeMillis how long a supply request takes to arrive
+    * @param coverMillis    sales a request covers beyond the lead time
+    * @param safetyUnits    units kept on top of the sales expected during the lead time
+    * @param maxUnits       the most units requested per product at once
+    * @param maxOrders      the most orders read per tick
+    * @param maxProducts    the most products checked per tick
+    * @param maxStores      the most supply batches placed per tick
+    * @param reserve        pool connections left to requests; a tick is skipped otherwise
+    */
+   public ReplenishmentScheduler(Amazon esql, long intervalMillis, long windowMillis, long leadTimeMillis,
+         long coverMillis, int safetyUnits, int maxUnits, int maxOrders, int maxProducts, int maxStores,
+         int reserve) {
+      this.esql = esql;
+      this.intervalMillis = intervalMillis;
+      this.windowMillis = Math.max(1, windowMillis);
+      this.leadTimeMillis = leadTimeMillis;
+      this.coverMillis = coverMillis;
+      this.safetyUnits = safetyUnits;
+      this.maxUnits = maxUnits;
+      this.maxOrders = maxOrders;
+      this.maxProducts = maxProducts;
+      this.maxStores = maxStores;
+      this.reserve = reserve;
+      this.worker = new Thread(new Runnable() {
+         public void run() {
+            runLoop();
+         }
+      }, "amazon-replenishment");
+      this.worker.setDaemon(true);
+      this.worker.start();
+   }// end ReplenishmentScheduler
+
+   private void runLoop() {
+      while (!closed) {
+         try {
+            Thread.sleep(this.intervalMillis);
+         } catch (InterruptedException e) {
+            return;
+         }
+         try {
+            tick();
+         } catch (RuntimeException e) {
+            this.failures.incrementAndGet();
+            System.err.println("Replenishment tick failed: " + e);
+         }
+      }
+   }
+
+   private void tick() {
+      ConnectionPool pool = this.esql.getPool();
+      if (!pool.hasSpare(this.reserve)) {
+         this.skipped.incrementAndGet();
+         return;
+      }
+      PooledConnection conn;
+      try {
+         conn = pool.borrow(0);
+      } catch (SQLException e) {
+         // taken by a request in the meantime
+         this.skipped.incrementAndGet();
+         return;
+      }
+      try {
+         readOrders(conn);
+         replenish(conn);
+         this.ticks.incrementAndGet();
+      } catch (SQLException e) {
+         this.failures.incrementAndGet();
+         System.err.println("Replenishment tick failed: " + e.getMessage());
+      } finally {
+         pool.release(conn);
+         this.tracked = this.velocities.size();
+         this.waiting = this.pending.size();
+      }
+   }// end tick
+
+   // counts the orders placed since the last tick
+   private void readOrders(PooledConnection conn) throws SQLException {
+      if (this.highWater < 0) {
+         ResultSet rs = conn.prepare("SELECT max(orderNumber) FROM Orders").executeQuery();
+         int last = rs.next() ? rs.getInt(1) : 0;
+         rs.close();
+         this.highWater = Math.max(0, last - this.maxOrders);
+      }
+      PreparedStatement stmt = conn.prepare(
+            "SELECT orderNumber, storeID, productName, unitsOrdered, orderTime FROM Orders WHERE orderNumber > ? ORDER BY orderNumber LIMIT ?");
+      stmt.setInt(1, this.highWater);
+      stmt.setInt(2, this.maxOrders);
+      ResultSet rs = stmt.executeQuery();
+      int read = 0;
+      try {
+         while (rs.next()) {
+            int storeId = rs.getInt(2);
+            String productName = User.trim(rs.getString(3));
+            String key = storeId + "|" + productName;
+            Velocity velocity = this.velocities.get(key);
+            if (velocity == null) {
+               velocity = new Velocity(storeId, productName);
+               this.velocities.put(key, velocity);
+            }
+            velocity.add(rs.getInt(4), rs.getTimestamp(5).getTime(), this.windowMillis);
+            this.pending.put(key, velocity);
+            this.highWater = rs.getInt(1);
+            read++;
+         }
+      } finally {
+         rs.close();
+      }
+      this.ordersRead.addAndGet(read);
+
+      // once per window, drop the products that stopped selling
+      long now = System.currentTimeMillis();
+      if (now - this.lastForget >= this.windowMillis) {
+         for (Iterator<Velocity> it = this.velocities.values().iterator(); it.hasNext();) {
+            if (it.next().rateAt(now, this.windowMillis) < FORGET_RATE)
+               it.remove();
+         }
+         this.lastForget = now;
+      }
+   }// end readOrders
+
+   // checks the pending products and places the supply batches they need
+   private void replenish(PooledConnection conn) throws SQLException {
+      List<Velocity> batch = new ArrayList<Velocity>();
+      for (Iterator<Velocity> it = this.pending.values().iterator(); it.hasNext() && batch.size() < this.maxProducts;) {
+         batch.add(it.next());
+         it.remove();
+      }
+      if (batch.isEmpty())
+         return;
+
+      Map<String, Integer> stock = readStock(conn, batch);
+      long now = System.currentTimeMillis();
+      Map<Integer, List<Velocity>> needed = new LinkedHashMap<Integer, List<Velocity>>();
+      Map<Integer, List<SupplyLine>> lines = new LinkedHashMap<Integer, List<SupplyLine>>();
+      for (Velocity velocity : batch) {
+         Integer units = stock.get(velocity.storeId + "|" + velocity.productName);
+         if (units == null)
+            continue; // the product was removed
+         double rate = velocity.rateAt(now, this.windowMillis);
+         double reorderPoint = rate * this.leadTimeMillis + this.safetyUnits;
+         if (units.intValue() >= reorderPoint)
+            continue;
+         double target = reorderPoint + rate * this.coverMillis;
+         int quantity = (int) Math.min(this.maxUnits, Math.ceil(target - units.intValue()));
+         if (quantity <= 0)
+            continue;
+         Integer storeId = Integer.valueOf(velocity.storeId);
+         if (!lines.containsKey(storeId)) {
+            lines.put(storeId, new ArrayList<SupplyLine>());
+            needed.put(storeId, new ArrayList<Velocity>());
+         }
+         lines.get(storeId).add(new SupplyLine(velocity.productName, quantity));
+         needed.get(storeId).add(velocity);
+      }
+
+      int placed = 0;
+      for (Map.Entry<Integer, List<SupplyLine>> entry : lines.entrySet()) {
+         int storeId = entry.getKey().intValue();
+         if (placed == this.maxStores) {
+            // checked again next tick
+            requeue(needed.get(entry.getKey()));
+            continue;
+         }
+         int manager = this.esql.getStoreDirectory().managerOf(storeId);
+         if (manager == StoreDirectory.NO_STORE)
+            continue;
+         placed++;
+         try {
+            List<SupplyRequest> done = this.esql.getService().supply(manager, storeId, entry.getValue(), conn);
+            this.requests.addAndGet(done.size());
+            for (SupplyRequest request : done)
+               this.unitsRequested.addAndGet(request.unitsRequested);
+         } catch (ServiceException e) {
+            // no warehouse has the capacity left, try again next tick
+            this.refused.incrementAndGet();
+            requeue(needed.get(entry.getKey()));
+         }
+      }
+   }// end replenish
+
+   private void requeue(List<Velocity> velocities) {
+      for (Velocity velocity : velocities)
+         this.pending.put(velocity.storeId + "|" + velocity.productName, velocity);
+   }
+
+   // reads the stock of the given products in one round trip
+   private static Map<String, Integer> readStock(PooledConnection conn, List<Velocity> products)
+         throws SQLException {
+      StringBuilder sql = new StringBuilder(
+            "SELECT storeID, productName, numberOfUnits FROM Product WHERE (storeID, productName) IN (");
+      for (int i = 0; i < products.size(); i++)
+         sql.append(i == 0 ? "" : ", ").append("(CAST(? AS integer), CAST(? AS char(30)))");
+      sql.append(')');
+      PreparedStatement stmt = conn.getConnection().prepareStatement(sql.toString());
+      try {
+         int param = 1;
+         for (Velocity velocity : products) {
+            stmt.setInt(param++, velocity.storeId);
+            stmt.setString(param++, velocity.productName);
+         }
+         Map<String, Integer> stock = new HashMap<String, Integer>();
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next())
+            stock.put(rs.getInt(1) + "|" + User.trim(rs.getString(2)), Integer.valueOf(rs.getInt(3)));
+         rs.close();
+         return stock;
+      } finally {
+         stmt.close();
+      }
+   }// end readStock
+
+   /**
+    * Stops the scheduler thread, waiting for a running tick to finish.
+    */
+   public void close() {
+      this.closed = true;
+      this.worker.interrupt();
+      try {
+         this.worker.join(this.intervalMillis + 10000);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * @return a one-line summary of the work done so far
+    */
+   public String getStats() {
+      return String.format(
+            "ticks=%d skipped=%d orders=%d tracked=%d pending=%d requests=%d units=%d refused=%d failures=%d",
+            this.ticks.get(), this.skipped.get(), this.ordersRead.get(), this.tracked, this.waiting,
+            this.requests.get(), this.unitsRequested.get(), this.refused.get(), this.failures.get());
+   }
+}// end ReplenishmentScheduler
@@ -0,0 +1,21 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback used by Amazon.executeQueryStreaming to consume a result one row
+ * at a time. The handler reads the current row through the typed ResultSet
+ * accessors (getInt, getDouble, getString, ...) and must not advance or
+ * close the result set.
+ *
+ */
+public interface RowHandler {
+
+   /**
+    * Called once for every row of the result, in order.
+    *
+    * @param rs the result set positioned on the current row
+    * @return true to keep reading, false to stop early
+    * @throws java.sql.SQLException when reading the row failed
+    */
+   boolean handleRow(ResultSet rs) throws SQLException;
+}// end RowHandler
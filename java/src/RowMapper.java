@@ -0,0 +1,17 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a result set to a typed object by column
+ * position, reading numeric columns with the primitive accessors.
+ *
+ */
+public interface RowMapper<T> {
+
+   /**
+    * @param rs the result set positioned on the row to map
+    * @return the mapped object
+    * @throws java.sql.SQLException when reading the row failed
+    */
+   T map(ResultSet rs) throws SQLException;
+}// end RowMapper
@@ -0,0 +1,40 @@
+/**
+ * A request to AmazonService that was refused, as opposed to a database
+ * failure, which surfaces as SQLException. The message is meant for the
+ * end user.
+ *
+ */
+public class ServiceException extends Exception {
+
+   /**
+    * Why a request was refused.
+    */
+   public enum Reason {
+      // malformed or out of range input
+      INVALID_INPUT,
+      // the user, store, product or warehouse does not exist
+      NOT_FOUND,
+      // the user may not perform the operation
+      FORBIDDEN,
+      // the store is beyond Amazon.STORE_RADIUS of the customer
+      OUT_OF_RANGE,
+      // the store does not have enough units
+      INSUFFICIENT_STOCK
+   }
+
+   private static final long serialVersionUID = 1L;
+
+   private final Reason reason;
+
+   public ServiceException(Reason reason, String message) {
+      super(message);
+      this.reason = reason;
+   }
+
+   /**
+    * @return why the request was refused
+    */
+   public Reason getReason() {
+      return this.reason;
+   }
+}// end ServiceException
@@ -0,0 +1,52 @@
+import java.util.Arrays;
+
+/**
+ * What the application needs to know about a logged in user to authorize
+ * and serve its actions, loaded once by SessionCache instead of on every
+ * action.
+ *
+ */
+public final class Session {
+
+   public final int userId;
+   public final String name;
+   // 'customer', 'manager' or 'admin', in any letter case
+   public final String type;
+   public final double latitude;
+   public final double longitude;
+
+   // ids of the stores the user manages, sorted
+   private final int[] managedStores;
+
+   public Session(User user, int[] managedStores) {
+      this.userId = user.userId;
+      this.name = user.name;
+      this.type = user.type;
+      this.latitude = user.latitude;
+      this.longitude = user.longitude;
+      this.managedStores = managedStores.clone();
+      Arrays.sort(this.managedStores);
+   }
+
+   public boolean isManager() {
+      return this.type.equalsIgnoreCase("Manager");
+   }
+
+   public boolean isAdmin() {
+      return this.type.equalsIgnoreCase("Admin");
+   }
+
+   /**
+    * @return true when the user is the manager of the store
+    */
+   public boolean manages(int storeId) {
+      return Arrays.binarySearch(this.managedStores, storeId) >= 0;
+   }
+
+   /**
+    * @return the ids of the stores the user manages, sorted
+    */
+   public int[] getManagedStores() {
+      return this.managedStores.clone();
+   }
+}// end Session
@@ -0,0 +1,218 @@
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Sessions of the users that logged in or acted recently, keyed by user id,
+ * so the type, location and managed stores of a user are read once rather
+ * than on every action. At most maxSessions are held, evicting the least
+ * recently used. A session is dropped when AmazonService.updateUser changes
+ * its user, and all of them when the store_changed channel is notified,
+ * since a store may have changed manager.
+ *
+ * Logging in also hands out an opaque token, 32 random bytes, that stands
+ * for the user in later requests. Tokens unused for tokenIdleMillis expire,
+ * at most maxSessions are held, and updating a user revokes its tokens.
+ *
+ */
+public class SessionCache implements ChangeNotifier.Listener {
+
+   // the user a token was handed out to
+   private static final class Token {
+      final int userId;
+      long lastUsed;
+
+      Token(int userId, long lastUsed) {
+         this.userId = userId;
+         this.lastUsed = lastUsed;
+      }
+   }
+
+   private final Amazon esql;
+   private final int maxSessions;
+   private final long tokenIdleMillis;
+   private final SecureRandom random = new SecureRandom();
+
+   // user id -> session, guarded by this
+   private final LinkedHashMap<Integer, Session> sessions;
+
+   // token -> user, least recently used first; guarded by this
+   private final LinkedHashMap<String, Token> tokens;
+
+   // invalidation count, so a load racing an invalidation is discarded; guarded by this
+   private long generation = 0;
+
+   // metrics, guarded by this
+   private long hits = 0;
+   private long misses = 0;
+   private long invalidations = 0;
+
+   /**
+    * @param esql            the session used to load users
+    * @param maxSessions     the maximum number of sessions, and of tokens, kept in memory
+    * @param tokenIdleMillis how long a token may go unused before it expires
+    */
+   public SessionCache(Amazon esql, final int maxSessions, long tokenIdleMillis) {
+      this.esql = esql;
+      this.maxSessions = maxSessions;
+      this.tokenIdleMillis = tokenIdleMillis;
+      this.tokens = new LinkedHashMap<String, Token>(16, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+
+         protected boolean removeEldestEntry(java.util.Map.Entry<String, Token> eldest) {
+            return size() > SessionCache.this.maxSessions;
+         }
+      };
+      this.sessions = new LinkedHashMap<Integer, Session>(16, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+
+         protected boolean removeEldestEntry(java.util.Map.Entry<Integer, Session> eldest) {
+            return size() > SessionCache.this.maxSessions;
+         }
+      };
+   }// end SessionCache
+
+   /**
+    * Checks log in credentials and caches the session of the user.
+    *
+    * @return the session, or null when the name and password do not match
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Session logIn(String name, String password) throws SQLException {
+      long loading;
+      synchronized (this) {
+         loading = this.generation;
+      }
+      User user = this.esql.executeQueryForObject(
+            "SELECT " + User.COLUMNS + " FROM USERS WHERE name = ? AND password = ?", User.MAPPER, name, password);
+      if (user == null)
+         return null;
+      return install(load(user), loading);
+   }
+
+   /**
+    * Returns the session of a user, loading it on a miss.
+    *
+    * @return the session, or null when the user does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Session get(int userId) throws SQLException {
+      long loading;
+      synchronized (this) {
+         Session cached = this.sessions.get(Integer.valueOf(userId));
+         if (cached != null) {
+            hits++;
+            return cached;
+         }
+         misses++;
+         loading = this.generation;
+      }
+      User user = this.esql.executeQueryForObject("SELECT " + User.COLUMNS + " FROM Users WHERE userid = ?",
+            User.MAPPER, userId);
+      if (user == null)
+         return null;
+      return install(load(user), loading);
+   }// end get
+
+   private Session load(User user) throws SQLException {
+      // only managers manage stores, skip the lookup for everyone else
+      if (!user.type.equalsIgnoreCase("Manager"))
+         return new Session(user, new int[0]);
+      return new Session(user, this.esql.getStoreDirectory().managedBy(user.userId));
+   }
+
+   private synchronized Session install(Session session, long loading) {
+      // only cache if nothing changed while loading
+      if (this.generation == loading)
+         this.sessions.put(Integer.valueOf(session.userId), session);
+      return session;
+   }
+
+   /**
+    * Hands out a new token standing for the user of a session.
+    *
+    * @return the token, 64 hex digits
+    */
+   public String openToken(Session session) {
+      byte[] bytes = new byte[32];
+      this.random.nextBytes(bytes);
+      StringBuilder token = new StringBuilder(64);
+      for (byte b : bytes)
+         token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      synchronized (this) {
+         this.tokens.put(token.toString(), new Token(session.userId, System.currentTimeMillis()));
+      }
+      return token.toString();
+   }// end openToken
+
+   /**
+    * Returns the session of the user a token stands for, loading it on a miss.
+    *
+    * @return the session, or null when the token is unknown, expired or its user is gone
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Session resolve(String token) throws SQLException {
+      int userId;
+      synchronized (this) {
+         Token found = token == null ? null : this.tokens.get(token);
+         if (found == null)
+            return null;
+         long now = System.currentTimeMillis();
+         if (now - found.lastUsed > this.tokenIdleMillis) {
+            this.tokens.remove(token);
+            return null;
+         }
+         found.lastUsed = now;
+         userId = found.userId;
+      }
+      return get(userId);
+   }// end resolve
+
+   /**
+    * Revokes a token, e.g. on log out.
+    */
+   public synchronized void closeToken(String token) {
+      this.tokens.remove(token);
+   }
+
+   /**
+    * Drops the session and revokes the tokens of a user, e.g. after the
+    * user was updated.
+    *
+    * @param userId the user
+    */
+   public synchronized void invalidate(int userId) {
+      this.generation++;
+      if (this.sessions.remove(Integer.valueOf(userId)) != null)
+         invalidations++;
+      Iterator<Token> it = this.tokens.values().iterator();
+      while (it.hasNext()) {
+         if (it.next().userId == userId)
+            it.remove();
+      }
+   }
+
+   /**
+    * Drops every session.
+    */
+   public synchronized void invalidateAll() {
+      this.generation++;
+      invalidations += this.sessions.size();
+      this.sessions.clear();
+   }
+
+   public void onNotify(String channel) {
+      invalidateAll();
+   }
+
+   /**
+    * @return a one-line summary of the cache size and hit/miss statistics
+    */
+   public synchronized String getStats() {
+      long lookups = hits + misses;
+      return String.format("sessions=%d tokens=%d hits=%d misses=%d hitRatio=%.3f invalidations=%d",
+            this.sessions.size(), this.tokens.size(), hits, misses, lookups == 0 ? 0.0 : (double) hits / lookups,
+            invalidations);
+   }
+}// end SessionCache
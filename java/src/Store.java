@@ -0,0 +1,33 @@
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the Store table.
+ *
+ */
+public final class Store {
+
+   // column list matching MAPPER, for use in SELECT statements
+   public static final String COLUMNS = "storeID, latitude, longitude, managerID, dateEstablished";
+
+   public static final RowMapper<Store> MAPPER = new RowMapper<Store>() {
+      public Store map(ResultSet rs) throws SQLException {
+         return new Store(rs.getInt(1), rs.getDouble(2), rs.getDouble(3), rs.getInt(4), rs.getDate(5));
+      }
+   };
+
+   public final int storeId;
+   public final double latitude;
+   public final double longitude;
+   public final int managerId;
+   public final Date dateEstablished;
+
+   public Store(int storeId, double latitude, double longitude, int managerId, Date dateEstablished) {
+      this.storeId = storeId;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.managerId = managerId;
+      this.dateEstablished = dateEstablished;
+   }
+}// end Store
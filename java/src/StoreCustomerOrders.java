@@ -0,0 +1,28 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the StoreCustomerOrders aggregate: orders a customer placed at a store.
+ *
+ */
+public final class StoreCustomerOrders {
+
+   // column list matching MAPPER, for use in SELECT statements
+   public static final String COLUMNS = "storeID, customerID, orderCount";
+
+   public static final RowMapper<StoreCustomerOrders> MAPPER = new RowMapper<StoreCustomerOrders>() {
+      public StoreCustomerOrders map(ResultSet rs) throws SQLException {
+         return new StoreCustomerOrders(rs.getInt(1), rs.getInt(2), rs.getLong(3));
+      }
+   };
+
+   public final int storeId;
+   public final int customerId;
+   public final long orderCount;
+
+   public StoreCustomerOrders(int storeId, int customerId, long orderCount) {
+      this.storeId = storeId;
+      this.customerId = customerId;
+      this.orderCount = orderCount;
+   }
+}// end StoreCustomerOrders
@@ -0,0 +1,190 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * In-memory directory of the stores, mapping a store id to its manager and
+ * location, so checking that a store exists or who manages it needs no
+ * query. The directory is an open-addressing table over primitive arrays,
+ * rebuilt from the Store table whenever the store_changed channel is
+ * notified; lookups neither lock nor allocate. When no snapshot is available
+ * the lookups fall back to a query.
+ *
+ */
+public class StoreDirectory implements ChangeNotifier.Listener {
+
+   // returned by managerOf for an unknown store
+   public static final int NO_STORE = -1;
+
+   // marks a free slot; Store.storeID is a plain integer, so load() checks that no store uses it
+   private static final int FREE = Integer.MIN_VALUE;
+
+   // one immutable load of the Store table
+   private static final class Table {
+      final int[] keys;
+      final int[] managers;
+      final double[] latitudes;
+      final double[] longitudes;
+      final int mask;
+      final int size;
+
+      Table(int[] ids, int[] managers, double[] latitudes, double[] longitudes, int n) {
+         // at most half full, so probe sequences stay short
+         int capacity = Integer.highestOneBit(Math.max(n, 8) * 2 - 1) << 1;
+         this.keys = new int[capacity];
+         Arrays.fill(this.keys, FREE);
+         this.managers = new int[capacity];
+         this.latitudes = new double[capacity];
+         this.longitudes = new double[capacity];
+         this.mask = capacity - 1;
+         this.size = n;
+         for (int i = 0; i < n; i++) {
+            int slot = slot(ids[i]);
+            this.keys[slot] = ids[i];
+            this.managers[slot] = managers[i];
+            this.latitudes[slot] = latitudes[i];
+            this.longitudes[slot] = longitudes[i];
+         }
+      }
+
+      // the slot holding the id, or the free slot where it would go
+      int slot(int id) {
+         int hash = id * 0x9E3779B9;
+         int slot = (hash ^ hash >>> 16) & this.mask;
+         while (this.keys[slot] != FREE && this.keys[slot] != id)
+            slot = (slot + 1) & this.mask;
+         return slot;
+      }
+   }
+
+   private final Amazon esql;
+
+   // current snapshot, null until loaded or after a failed reload
+   private volatile Table table = null;
+
+   public StoreDirectory(Amazon esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Rebuilds the directory from the Store table.
+    *
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public void load() throws SQLException {
+      // read straight into primitive arrays, growing them as needed
+      final int[][] ids = new int[][] { new int[256] };
+      final int[][] managers = new int[][] { new int[256] };
+      final double[][] xs = new double[][] { new double[256] };
+      final double[][] ys = new double[][] { new double[256] };
+      int n = this.esql.executeQueryStreaming("SELECT storeID, managerID, latitude, longitude FROM Store", 0,
+            new RowHandler() {
+               private int i = 0;
+
+               public boolean handleRow(ResultSet rs) throws SQLException {
+                  if (i == ids[0].length) {
+                     ids[0] = Arrays.copyOf(ids[0], i * 2);
+                     managers[0] = Arrays.copyOf(managers[0], i * 2);
+                     xs[0] = Arrays.copyOf(xs[0], i * 2);
+                     ys[0] = Arrays.copyOf(ys[0], i * 2);
+                  }
+                  ids[0][i] = rs.getInt(1);
+                  managers[0][i] = rs.getInt(2);
+                  xs[0][i] = rs.getDouble(3);
+                  ys[0][i] = rs.getDouble(4);
+                  i++;
+                  return true;
+               }
+            });
+      for (int i = 0; i < n; i++) {
+         if (ids[0][i] == FREE) {
+            // cannot be told from a free slot, serve every lookup from the database instead
+            this.table = null;
+            System.err.println("Store id " + FREE + " is in use, the store directory falls back to queries");
+            return;
+         }
+      }
+      this.table = new Table(ids[0], managers[0], xs[0], ys[0], n);
+   }// end load
+
+   public void onNotify(String channel) {
+      try {
+         load();
+      } catch (SQLException e) {
+         // serve from the database until the next successful reload
+         this.table = null;
+         System.err.println("Unable to reload the store directory: " + e.getMessage());
+      }
+   }
+
+   /**
+    * @return true when the store exists
+    * @throws java.sql.SQLException when the database fallback failed
+    */
+   public boolean contains(int storeId) throws SQLException {
+      return managerOf(storeId) != NO_STORE;
+   }
+
+   /**
+    * @return the user id of the store's manager, or NO_STORE when the store
+    *         does not exist
+    * @throws java.sql.SQLException when the database fallback failed
+    */
+   public int managerOf(int storeId) throws SQLException {
+      Table snapshot = this.table;
+      if (snapshot != null) {
+         int slot = snapshot.slot(storeId);
+         return snapshot.keys[slot] == FREE ? NO_STORE : snapshot.managers[slot];
+      }
+      return this.esql.executeQueryForInt("SELECT managerid FROM Store WHERE storeid = ?", NO_STORE, storeId);
+   }
+
+   /**
+    * @return the (latitude, longitude) of the store, or null when the store
+    *         does not exist
+    * @throws java.sql.SQLException when the database fallback failed
+    */
+   public double[] locationOf(int storeId) throws SQLException {
+      Table snapshot = this.table;
+      if (snapshot != null) {
+         int slot = snapshot.slot(storeId);
+         if (snapshot.keys[slot] == FREE)
+            return null;
+         return new double[] { snapshot.latitudes[slot], snapshot.longitudes[slot] };
+      }
+      Store store = this.esql.executeQueryForObject("SELECT " + Store.COLUMNS + " FROM Store WHERE storeid = ?",
+            Store.MAPPER, storeId);
+      return store == null ? null : new double[] { store.latitude, store.longitude };
+   }
+
+   /**
+    * @return the ids of the stores the user manages, in no particular order
+    * @throws java.sql.SQLException when the database fallback failed
+    */
+   public int[] managedBy(int managerId) throws SQLException {
+      final KdTree.IntBuffer out = new KdTree.IntBuffer();
+      Table snapshot = this.table;
+      if (snapshot != null) {
+         for (int slot = 0; slot < snapshot.keys.length; slot++) {
+            if (snapshot.keys[slot] != FREE && snapshot.managers[slot] == managerId)
+               out.add(snapshot.keys[slot]);
+         }
+         return out.toArray();
+      }
+      this.esql.executeQueryStreaming("SELECT storeID FROM Store WHERE managerID = ?", 0, new RowHandler() {
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            out.add(rs.getInt(1));
+            return true;
+         }
+      }, managerId);
+      return out.toArray();
+   }// end managedBy
+
+   /**
+    * @return the number of stores in the current snapshot, or -1 when there is none
+    */
+   public int size() {
+      Table snapshot = this.table;
+      return snapshot == null ? -1 : snapshot.size;
+   }
+}// end StoreDirectory
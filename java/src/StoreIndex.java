@@ -0,0 +1,116 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * In-memory spatial index of store locations used for radius and
+ * nearest-store searches. The index is a KdTree snapshot that is rebuilt
+ * from the Store table whenever the store_changed channel is notified.
+ * When no snapshot is available the searches fall back to a query served by
+ * the location_on_store GiST index.
+ *
+ */
+public class StoreIndex implements ChangeNotifier.Listener {
+
+   // channel notified by the trg_store_change trigger
+   public static final String CHANNEL = "store_changed";
+
+   private final Amazon esql;
+
+   // current snapshot, null until loaded or after a failed reload
+   private volatile KdTree tree = null;
+
+   public StoreIndex(Amazon esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Rebuilds the tree from the Store table.
+    *
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public void load() throws SQLException {
+      // read straight into primitive arrays, growing them as needed
+      final int[][] ids = new int[][] { new int[256] };
+      final double[][] xs = new double[][] { new double[256] };
+      final double[][] ys = new double[][] { new double[256] };
+      int n = this.esql.executeQueryStreaming("SELECT storeID, latitude, longitude FROM Store", 0, new RowHandler() {
+         private int i = 0;
+
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            if (i == ids[0].length) {
+               ids[0] = Arrays.copyOf(ids[0], i * 2);
+               xs[0] = Arrays.copyOf(xs[0], i * 2);
+               ys[0] = Arrays.copyOf(ys[0], i * 2);
+            }
+            ids[0][i] = rs.getInt(1);
+            xs[0][i] = rs.getDouble(2);
+            ys[0][i] = rs.getDouble(3);
+            i++;
+            return true;
+         }
+      });
+      this.tree = new KdTree(ids[0], xs[0], ys[0], n);
+   }// end load
+
+   public void onNotify(String channel) {
+      try {
+         load();
+      } catch (SQLException e) {
+         // serve from the database until the next successful reload
+         this.tree = null;
+         System.err.println("Unable to reload the store index: " + e.getMessage());
+      }
+   }
+
+   /**
+    * Finds the stores within the given distance of a location.
+    *
+    * @param latitude  latitude of the location
+    * @param longitude longitude of the location
+    * @param radius    the maximum distance, inclusive
+    * @return the matching store ids, in no particular order
+    * @throws java.sql.SQLException when the database fallback failed
+    */
+   public int[] withinRadius(double latitude, double longitude, double radius) throws SQLException {
+      KdTree snapshot = this.tree;
+      if (snapshot != null)
+         return snapshot.withinRadius(latitude, longitude, radius);
+
+      // the bounding box is answered by the GiST index, the exact distance is checked on the candidates
+      return queryIds(
+            "SELECT storeID FROM Store WHERE box(point(latitude, longitude), point(latitude, longitude)) && box(point(?, ?), point(?, ?)) AND (latitude - ?) * (latitude - ?) + (longitude - ?) * (longitude - ?) <= ?",
+            latitude - radius, longitude - radius, latitude + radius, longitude + radius, latitude, latitude,
+            longitude, longitude, radius * radius);
+   }// end withinRadius
+
+   /**
+    * Finds the k stores closest to a location.
+    *
+    * @param latitude  latitude of the location
+    * @param longitude longitude of the location
+    * @param k         the number of stores to return
+    * @return up to k store ids, closest first
+    * @throws java.sql.SQLException when the database fallback failed
+    */
+   public int[] nearest(double latitude, double longitude, int k) throws SQLException {
+      KdTree snapshot = this.tree;
+      if (snapshot != null)
+         return snapshot.nearest(latitude, longitude, k);
+
+      return queryIds(
+            "SELECT storeID FROM Store ORDER BY (latitude - ?) * (latitude - ?) + (longitude - ?) * (longitude - ?) LIMIT ?",
+            latitude, latitude, longitude, longitude, k);
+   }// end nearest
+
+   private int[] queryIds(String query, Object... params) throws SQLException {
+      final KdTree.IntBuffer out = new KdTree.IntBuffer();
+      this.esql.executeQueryStreaming(query, 0, new RowHandler() {
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            out.add(rs.getInt(1));
+            return true;
+         }
+      }, params);
+      return out.toArray();
+   }
+}// end StoreIndex
@@ -0,0 +1,28 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the StoreProductSales aggregate: units of a product sold by a store.
+ *
+ */
+public final class StoreProductSales {
+
+   // column list matching MAPPER, for use in SELECT statements
+   public static final String COLUMNS = "storeID, productName, unitsSold";
+
+   public static final RowMapper<StoreProductSales> MAPPER = new RowMapper<StoreProductSales>() {
+      public StoreProductSales map(ResultSet rs) throws SQLException {
+         return new StoreProductSales(rs.getInt(1), User.trim(rs.getString(2)), rs.getLong(3));
+      }
+   };
+
+   public final int storeId;
+   public final String productName;
+   public final long unitsSold;
+
+   public StoreProductSales(int storeId, String productName, long unitsSold) {
+      this.storeId = storeId;
+      this.productName = productName;
+      this.unitsSold = unitsSold;
+   }
+}// end StoreProductSales
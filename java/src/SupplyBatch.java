@@ -0,0 +1,192 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Places the supply requests of one store in one transaction, consolidated
+ * into one SupplyShipments row per warehouse:
+ * - the shipment and request numbers are drawn from their sequences up front;
+ * - the shipments and the requests are inserted with multi-row INSERT
+ *   statements of up to ROWS_PER_INSERT rows, since the bundled 7.3 driver
+ *   runs executeBatch as one statement per row;
+ * - the stock of every product is raised by one set-based UPDATE.
+ * Either every line is placed or none is.
+ *
+ */
+public class SupplyBatch {
+
+   // rows per multi-row INSERT
+   static final int ROWS_PER_INSERT = 1000;
+
+   private final ConnectionPool pool;
+
+   /**
+    * @param pool the pool to borrow the connection from
+    */
+   public SupplyBatch(ConnectionPool pool) {
+      this.pool = pool;
+   }
+
+   /**
+    * Places the given lines.
+    *
+    * @param managerId  the manager placing the requests
+    * @param storeId    the store receiving the units
+    * @param lines      the products and units; every product must exist in the store
+    * @param warehouses for each line, the warehouse shipping it
+    * @return the placed requests, in line order
+    * @throws java.sql.SQLException when the transaction failed, in which case
+    *                               no request was placed
+    */
+   public List<SupplyRequest> place(int managerId, int storeId, List<SupplyLine> lines, int[] warehouses)
+         throws SQLException {
+      if (lines.isEmpty())
+         return new ArrayList<SupplyRequest>();
+      PooledConnection conn = this.pool.borrow();
+      try {
+         return place(conn, managerId, storeId, lines, warehouses);
+      } finally {
+         this.pool.release(conn);
+      }
+   }// end place
+
+   /**
+    * Places the given lines on a connection the caller already holds. The
+    * connection is left in auto-commit mode whether the lines were placed
+    * or rolled back.
+    *
+    * @param conn the connection to run the transaction on
+    * @see #place(int, int, List, int[])
+    */
+   public List<SupplyRequest> place(PooledConnection conn, int managerId, int storeId, List<SupplyLine> lines,
+         int[] warehouses) throws SQLException {
+      int n = lines.size();
+      List<SupplyRequest> placed = new ArrayList<SupplyRequest>(n);
+      if (n == 0)
+         return placed;
+
+      // one shipment per warehouse, in first-use order; units per product
+      Map<Integer, Integer> shipments = new LinkedHashMap<Integer, Integer>();
+      Map<String, Integer> units = new LinkedHashMap<String, Integer>();
+      for (int i = 0; i < n; i++) {
+         shipments.put(Integer.valueOf(warehouses[i]), null);
+         String name = User.trim(lines.get(i).productName);
+         Integer sum = units.get(name);
+         units.put(name, Integer.valueOf((sum == null ? 0 : sum.intValue()) + lines.get(i).units));
+      }
+
+      Connection c = conn.getConnection();
+      boolean committed = false;
+      c.setAutoCommit(false);
+      try {
+
+         int[] shipmentIds = nextvals(c, "supplyshipments", "shipmentid", shipments.size());
+         List<Object[]> rows = new ArrayList<Object[]>(shipments.size());
+         int k = 0;
+         for (Map.Entry<Integer, Integer> shipment : shipments.entrySet()) {
+            shipment.setValue(Integer.valueOf(shipmentIds[k++]));
+            rows.add(new Object[] { shipment.getValue(), shipment.getKey(), Integer.valueOf(storeId),
+                  Integer.valueOf(managerId) });
+         }
+         insert(c, "INSERT INTO SupplyShipments (shipmentID, warehouseID, storeID, managerID, createdOn) VALUES ",
+               "(?, ?, ?, ?, now())", rows);
+
+         int[] requestNumbers = nextvals(c, "productsupplyrequests", "requestnumber", n);
+         rows = new ArrayList<Object[]>(n);
+         for (int i = 0; i < n; i++) {
+            SupplyLine line = lines.get(i);
+            SupplyRequest request = new SupplyRequest(requestNumbers[i], managerId, warehouses[i], storeId,
+                  User.trim(line.productName), line.units, shipments.get(Integer.valueOf(warehouses[i])).intValue());
+            rows.add(new Object[] { Integer.valueOf(request.requestNumber), Integer.valueOf(managerId),
+                  Integer.valueOf(request.warehouseId), Integer.valueOf(storeId), request.productName,
+                  Integer.valueOf(request.unitsRequested), Integer.valueOf(request.shipmentId) });
+            placed.add(request);
+         }
+         insert(c, "INSERT INTO ProductSupplyRequests (requestNumber, managerID, warehouseID, storeID, productName, unitsRequested, shipmentID) VALUES ",
+               "(?, ?, ?, ?, ?, ?, ?)", rows);
+
+         int updated = increment(c, storeId, units);
+         if (updated != units.size())
+            throw new SQLException("Expected to update " + units.size() + " products, updated " + updated);
+         c.commit();
+         committed = true;
+         return placed;
+      } finally {
+         try {
+            if (!committed)
+               c.rollback();
+            c.setAutoCommit(true);
+         } catch (SQLException e) {
+            // a broken connection is discarded when it is released
+         }
+      }
+   }// end place
+
+   // inserts the rows, ROWS_PER_INSERT per statement
+   private static void insert(Connection c, String head, String row, List<Object[]> rows) throws SQLException {
+      for (int from = 0; from < rows.size(); from += ROWS_PER_INSERT) {
+         int count = Math.min(ROWS_PER_INSERT, rows.size() - from);
+         StringBuilder sql = new StringBuilder(head);
+         for (int r = 0; r < count; r++)
+            sql.append(r == 0 ? "" : ", ").append(row);
+         PreparedStatement stmt = c.prepareStatement(sql.toString());
+         try {
+            int param = 1;
+            for (Object[] values : rows.subList(from, from + count)) {
+               for (Object value : values)
+                  stmt.setObject(param++, value);
+            }
+            stmt.executeUpdate();
+         } finally {
+            stmt.close();
+         }
+      }
+   }// end insert
+
+   private static int increment(Connection c, int storeId, Map<String, Integer> units) throws SQLException {
+      StringBuilder sql = new StringBuilder(
+            "UPDATE Product SET numberOfUnits = numberOfUnits + v.units FROM (VALUES ");
+      for (int i = 0; i < units.size(); i++)
+         sql.append(i == 0 ? "" : ", ").append("(CAST(? AS char(30)), CAST(? AS integer))");
+      sql.append(") AS v (productName, units) WHERE Product.storeID = ? AND Product.productName = v.productName");
+      PreparedStatement stmt = c.prepareStatement(sql.toString());
+      try {
+         int param = 1;
+         for (Map.Entry<String, Integer> entry : units.entrySet()) {
+            stmt.setString(param++, entry.getKey());
+            stmt.setInt(param++, entry.getValue().intValue());
+         }
+         stmt.setInt(param, storeId);
+         return stmt.executeUpdate();
+      } finally {
+         stmt.close();
+      }
+   }
+
+   // draws count values from a serial column's sequence in one round trip
+   private static int[] nextvals(Connection c, String table, String column, int count) throws SQLException {
+      PreparedStatement stmt = c.prepareStatement(
+            "SELECT nextval(pg_get_serial_sequence(?, ?)) FROM generate_series(1, ?)");
+      try {
+         stmt.setString(1, table);
+         stmt.setString(2, column);
+         stmt.setInt(3, count);
+         ResultSet rs = stmt.executeQuery();
+         int[] values = new int[count];
+         int k = 0;
+         while (rs.next() && k < count)
+            values[k++] = rs.getInt(1);
+         rs.close();
+         if (k != count)
+            throw new SQLException("Expected " + count + " values of " + table + "." + column + ", got " + k);
+         return values;
+      } finally {
+         stmt.close();
+      }
+   }
+}// end SupplyBatch
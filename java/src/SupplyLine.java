@@ -0,0 +1,14 @@
+/**
+ * One line of a batch supply request: units of a product a store needs.
+ *
+ */
+public final class SupplyLine {
+
+   public final String productName;
+   public final int units;
+
+   public SupplyLine(String productName, int units) {
+      this.productName = productName;
+      this.units = units;
+   }
+}// end SupplyLine
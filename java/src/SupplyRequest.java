@@ -0,0 +1,39 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the ProductSupplyRequests table.
+ *
+ */
+public final class SupplyRequest {
+
+   // column list matching MAPPER, for use in SELECT statements
+   public static final String COLUMNS = "requestNumber, managerID, warehouseID, storeID, productName, unitsRequested, shipmentID";
+
+   public static final RowMapper<SupplyRequest> MAPPER = new RowMapper<SupplyRequest>() {
+      public SupplyRequest map(ResultSet rs) throws SQLException {
+         return new SupplyRequest(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), User.trim(rs.getString(5)),
+               rs.getInt(6), rs.getInt(7));
+      }
+   };
+
+   public final int requestNumber;
+   public final int managerId;
+   public final int warehouseId;
+   public final int storeId;
+   public final String productName;
+   public final int unitsRequested;
+   // the SupplyShipments row the request ships with, 0 for requests placed one by one
+   public final int shipmentId;
+
+   public SupplyRequest(int requestNumber, int managerId, int warehouseId, int storeId, String productName,
+         int unitsRequested, int shipmentId) {
+      this.requestNumber = requestNumber;
+      this.managerId = managerId;
+      this.warehouseId = warehouseId;
+      this.storeId = storeId;
+      this.productName = productName;
+      this.unitsRequested = unitsRequested;
+      this.shipmentId = shipmentId;
+   }
+}// end SupplyRequest
@@ -0,0 +1,41 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the Users table.
+ *
+ */
+public final class User {
+
+   // column list matching MAPPER, for use in SELECT statements
+   public static final String COLUMNS = "userID, name, password, latitude, longitude, type";
+
+   public static final RowMapper<User> MAPPER = new RowMapper<User>() {
+      public User map(ResultSet rs) throws SQLException {
+         return new User(rs.getInt(1), trim(rs.getString(2)), trim(rs.getString(3)), rs.getDouble(4),
+               rs.getDouble(5), trim(rs.getString(6)));
+      }
+   };
+
+   public final int userId;
+   public final String name;
+   public final String password;
+   public final double latitude;
+   public final double longitude;
+   // 'customer', 'manager' or 'admin', in any letter case
+   public final String type;
+
+   public User(int userId, String name, String password, double latitude, double longitude, String type) {
+      this.userId = userId;
+      this.name = name;
+      this.password = password;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.type = type;
+   }
+
+   // char(n) columns come back padded with blanks
+   static String trim(String s) {
+      return s == null ? null : s.trim();
+   }
+}// end User
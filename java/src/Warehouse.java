@@ -0,0 +1,30 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the Warehouse table.
+ *
+ */
+public final class Warehouse {
+
+   // column list matching MAPPER, for use in SELECT statements
+   public static final String COLUMNS = "warehouseID, area, latitude, longitude";
+
+   public static final RowMapper<Warehouse> MAPPER = new RowMapper<Warehouse>() {
+      public Warehouse map(ResultSet rs) throws SQLException {
+         return new Warehouse(rs.getInt(1), rs.getInt(2), rs.getDouble(3), rs.getDouble(4));
+      }
+   };
+
+   public final int warehouseId;
+   public final int area;
+   public final double latitude;
+   public final double longitude;
+
+   public Warehouse(int warehouseId, int area, double latitude, double longitude) {
+      this.warehouseId = warehouseId;
+      this.area = area;
+      this.latitude = latitude;
+      this.longitude = longitude;
+   }
+}// end Warehouse
@@ -0,0 +1,211 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Chooses the warehouse that supplies a store. Warehouse locations are held
+ * in a KdTree, and every warehouse can ship a number of units per window
+ * proportional to its area: area * unitsPerArea units every windowMillis.
+ * A supply request goes to the nearest warehouse with enough capacity left
+ * in the current window; the capacity is reserved in memory when the
+ * warehouse is chosen and given back when the request is not placed.
+ *
+ * The warehouses are read once; call load() after changing the Warehouse
+ * table. Capacity is not persisted, so a restart starts a fresh window.
+ *
+ */
+public class WarehouseRouter {
+
+   /**
+    * A warehouse that can take a request, with what it would cost.
+    */
+   public static final class Candidate {
+      public final int warehouseId;
+      public final double distance;
+      // units that can still be shipped in the current window
+      public final int remaining;
+      // distance weighted by how busy the warehouse is, lower is better
+      public final double cost;
+
+      Candidate(int warehouseId, double distance, int remaining, int capacity) {
+         this.warehouseId = warehouseId;
+         this.distance = distance;
+         this.remaining = remaining;
+         this.cost = distance * (1.0 + (double) (capacity - remaining) / Math.max(1, capacity));
+      }
+   }
+
+   // one immutable load of the Warehouse table
+   private static final class Snapshot {
+      final KdTree tree;
+      final Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+      final double[] latitudes;
+      final double[] longitudes;
+      final int[] capacities;
+      final AtomicIntegerArray used;
+
+      Snapshot(List<Warehouse> warehouses, double unitsPerArea) {
+         int n = warehouses.size();
+         int[] ids = new int[n];
+         this.latitudes = new double[n];
+         this.longitudes = new double[n];
+         this.capacities = new int[n];
+         this.used = new AtomicIntegerArray(n);
+         for (int i = 0; i < n; i++) {
+            Warehouse w = warehouses.get(i);
+            ids[i] = w.warehouseId;
+            this.latitudes[i] = w.latitude;
+            this.longitudes[i] = w.longitude;
+            this.capacities[i] = (int) Math.min(Integer.MAX_VALUE, Math.round(w.area * unitsPerArea));
+            this.positions.put(Integer.valueOf(w.warehouseId), Integer.valueOf(i));
+         }
+         this.tree = new KdTree(ids, this.latitudes, this.longitudes, n);
+      }
+   }
+
+   // warehouses looked at first by route(), widened when none of them has capacity
+   private static final int FIRST_CANDIDATES = 8;
+
+   private final Amazon esql;
+   private final double unitsPerArea;
+   private final long windowMillis;
+
+   private volatile Snapshot snapshot = null;
+   // start of the current capacity window, guarded by this
+   private long windowStart = System.currentTimeMillis();
+
+   /**
+    * @param esql         the session used to read the warehouses
+    * @param unitsPerArea units a warehouse ships per window for every unit of area
+    * @param windowMillis length of a capacity window
+    */
+   public WarehouseRouter(Amazon esql, double unitsPerArea, long windowMillis) {
+      this.esql = esql;
+      this.unitsPerArea = unitsPerArea;
+      this.windowMillis = windowMillis;
+   }
+
+   /**
+    * Reads the warehouses, starting a fresh capacity window.
+    *
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public synchronized void load() throws SQLException {
+      List<Warehouse> warehouses = this.esql.executeQueryForList("SELECT " + Warehouse.COLUMNS + " FROM Warehouse",
+            Warehouse.MAPPER);
+      this.snapshot = new Snapshot(warehouses, this.unitsPerArea);
+      this.windowStart = System.currentTimeMillis();
+   }
+
+   private Snapshot current() throws SQLException {
+      Snapshot s = this.snapshot;
+      if (s == null) {
+         load();
+         s = this.snapshot;
+      }
+      synchronized (this) {
+         long now = System.currentTimeMillis();
+         if (now - this.windowStart >= this.windowMillis) {
+            for (int i = 0; i < s.capacities.length; i++)
+               s.used.set(i, 0);
+            this.windowStart = now;
+         }
+      }
+      return s;
+   }
+
+   /**
+    * Chooses the nearest warehouse that can ship the units and reserves
+    * them.
+    *
+    * @return the warehouse id, or -1 when no warehouse has the capacity left
+    * @throws java.sql.SQLException when the warehouses could not be read
+    */
+   public int route(double latitude, double longitude, int units) throws SQLException {
+      Snapshot s = current();
+      int n = s.capacities.length;
+      int k = Math.min(FIRST_CANDIDATES, n);
+      int looked = 0;
+      while (k > looked) {
+         int[] ids = s.tree.nearest(latitude, longitude, k);
+         // the first `looked` ids were refused in the previous round
+         for (int i = looked; i < ids.length; i++) {
+            if (reserve(s, s.positions.get(Integer.valueOf(ids[i])).intValue(), units))
+               return ids[i];
+         }
+         looked = ids.length;
+         k = (int) Math.min(n, k * 4L);
+      }
+      return -1;
+   }// end route
+
+   private static boolean reserve(Snapshot s, int position, int units) {
+      while (true) {
+         int used = s.used.get(position);
+         if (used + (long) units > s.capacities[position])
+            return false;
+         if (s.used.compareAndSet(position, used, used + units))
+            return true;
+      }
+   }
+
+   /**
+    * Counts units shipped by a warehouse chosen by hand against its capacity,
+    * even when that leaves it over capacity.
+    *
+    * @throws java.sql.SQLException when the warehouses could not be read
+    */
+   public void charge(int warehouseId, int units) throws SQLException {
+      Snapshot s = current();
+      Integer position = s.positions.get(Integer.valueOf(warehouseId));
+      if (position != null)
+         s.used.addAndGet(position.intValue(), units);
+   }
+
+   /**
+    * Gives back capacity reserved for a request that was not placed.
+    */
+   public void release(int warehouseId, int units) {
+      Snapshot s = this.snapshot;
+      Integer position = s == null ? null : s.positions.get(Integer.valueOf(warehouseId));
+      if (position == null)
+         return;
+      while (true) {
+         int used = s.used.get(position.intValue());
+         if (s.used.compareAndSet(position.intValue(), used, Math.max(0, used - units)))
+            return;
+      }
+   }
+
+   /**
+    * Ranks the k nearest warehouses that can ship the units by cost, the
+    * distance weighted by how much of their capacity is already used.
+    *
+    * @return the candidates, cheapest first
+    * @throws java.sql.SQLException when the warehouses could not be read
+    */
+   public List<Candidate> rank(double latitude, double longitude, int units, int k) throws SQLException {
+      Snapshot s = current();
+      List<Candidate> candidates = new ArrayList<Candidate>();
+      for (int id : s.tree.nearest(latitude, longitude, k)) {
+         int position = s.positions.get(Integer.valueOf(id)).intValue();
+         int remaining = s.capacities[position] - s.used.get(position);
+         if (remaining < units)
+            continue;
+         double dx = s.latitudes[position] - latitude;
+         double dy = s.longitudes[position] - longitude;
+         candidates.add(new Candidate(id, Math.sqrt(dx * dx + dy * dy), remaining, s.capacities[position]));
+      }
+      Collections.sort(candidates, new Comparator<Candidate>() {
+         public int compare(Candidate a, Candidate b) {
+            return Double.compare(a.cost, b.cost);
+         }
+      });
+      return candidates;
+   }// end rank
+}// end WarehouseRouter
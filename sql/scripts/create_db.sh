@@ -1,7 +1,12 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+JAVA_DIR=$DIR/../../java
 #cs166_createdb $USER"_project_phase_3_DB"
 cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_tables.sql
-cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_indexes.sql
-cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/load_data.sql
-cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/triggers.sql
\ No newline at end of file
+
+# load the CSVs through JDBC, then add the foreign keys and indexes over the loaded data
+javac -d $JAVA_DIR/classes -cp $JAVA_DIR/lib/pg73jdbc3.jar $JAVA_DIR/src/*.java
+java -cp $JAVA_DIR/classes:$JAVA_DIR/lib/pg73jdbc3.jar BulkLoader $USER"_project_phase_3_DB" $PGPORT $USER $DIR/../../data $DIR/../src
+
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/triggers.sql
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" -c "SELECT rebuild_sales_aggregates();"
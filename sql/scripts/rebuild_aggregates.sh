@@ -0,0 +1,3 @@
+#!/bin/bash
+# Recomputes StoreProductSales and StoreCustomerOrders from the Orders history.
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" -c "SELECT rebuild_sales_aggregates();"
@@ -0,0 +1,25 @@
+ALTER TABLE Store DROP CONSTRAINT IF EXISTS store_managerID_fkey;
+ALTER TABLE Product DROP CONSTRAINT IF EXISTS product_storeID_fkey;
+ALTER TABLE Orders DROP CONSTRAINT IF EXISTS orders_customerID_fkey;
+ALTER TABLE Orders DROP CONSTRAINT IF EXISTS orders_product_fkey;
+ALTER TABLE ProductSupplyRequests DROP CONSTRAINT IF EXISTS productsupplyrequests_managerID_fkey;
+ALTER TABLE ProductSupplyRequests DROP CONSTRAINT IF EXISTS productsupplyrequests_warehouseID_fkey;
+ALTER TABLE ProductSupplyRequests DROP CONSTRAINT IF EXISTS productsupplyrequests_product_fkey;
+ALTER TABLE ProductSupplyRequests DROP CONSTRAINT IF EXISTS productsupplyrequests_shipmentID_fkey;
+ALTER TABLE SupplyShipments DROP CONSTRAINT IF EXISTS supplyshipments_warehouseID_fkey;
+ALTER TABLE SupplyShipments DROP CONSTRAINT IF EXISTS supplyshipments_storeID_fkey;
+ALTER TABLE ProductUpdates DROP CONSTRAINT IF EXISTS productupdates_managerID_fkey;
+ALTER TABLE ProductUpdates DROP CONSTRAINT IF EXISTS productupdates_product_fkey;
+
+ALTER TABLE Store ADD CONSTRAINT store_managerID_fkey FOREIGN KEY(managerID) REFERENCES Users(userID);
+ALTER TABLE Product ADD CONSTRAINT product_storeID_fkey FOREIGN KEY(storeID) REFERENCES Store(storeID) ON DELETE CASCADE;
+ALTER TABLE Orders ADD CONSTRAINT orders_customerID_fkey FOREIGN KEY(customerID) REFERENCES Users(userID);
+ALTER TABLE Orders ADD CONSTRAINT orders_product_fkey FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName);
+ALTER TABLE ProductSupplyRequests ADD CONSTRAINT productsupplyrequests_managerID_fkey FOREIGN KEY(managerID) REFERENCES Users(userID);
+ALTER TABLE ProductSupplyRequests ADD CONSTRAINT productsupplyrequests_warehouseID_fkey FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID);
+ALTER TABLE ProductSupplyRequests ADD CONSTRAINT productsupplyrequests_product_fkey FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName);
+ALTER TABLE ProductSupplyRequests ADD CONSTRAINT productsupplyrequests_shipmentID_fkey FOREIGN KEY(shipmentID) REFERENCES SupplyShipments(shipmentID);
+ALTER TABLE SupplyShipments ADD CONSTRAINT supplyshipments_warehouseID_fkey FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID);
+ALTER TABLE SupplyShipments ADD CONSTRAINT supplyshipments_storeID_fkey FOREIGN KEY(storeID) REFERENCES Store(storeID) ON DELETE CASCADE;
+ALTER TABLE ProductUpdates ADD CONSTRAINT productupdates_managerID_fkey FOREIGN KEY(managerID) REFERENCES Users(userID);
+ALTER TABLE ProductUpdates ADD CONSTRAINT productupdates_product_fkey FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName);
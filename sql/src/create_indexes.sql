@@ -1,7 +1,17 @@
 DROP INDEX IF EXISTS storeID_on_products;
 DROP INDEX IF EXISTS storeID_on_orders;
 DROP INDEX IF EXISTS customerID_on_orders;
+DROP INDEX IF EXISTS location_on_store;
+DROP INDEX IF EXISTS unitsSold_on_storeproductsales;
+DROP INDEX IF EXISTS orderCount_on_storecustomerorders;
+DROP INDEX IF EXISTS storeID_on_productupdates;
+DROP INDEX IF EXISTS name_on_users;
 
 CREATE INDEX storeID_on_products ON product USING btree (storeid);
 CREATE INDEX storeID_on_orders ON orders USING btree (storeid);
-CREATE INDEX customerID_on_orders ON orders USING btree (customerid);
\ No newline at end of file
+CREATE INDEX customerID_on_orders ON orders USING btree (customerid, ordertime DESC, ordernumber DESC);
+CREATE INDEX location_on_store ON store USING gist (box(point(latitude, longitude), point(latitude, longitude)));
+CREATE INDEX unitsSold_on_storeproductsales ON storeproductsales USING btree (storeid, unitssold DESC);
+CREATE INDEX orderCount_on_storecustomerorders ON storecustomerorders USING btree (storeid, ordercount DESC);
+CREATE INDEX storeID_on_productupdates ON productupdates USING btree (storeid, updatedon DESC, updatenumber DESC);
+CREATE INDEX name_on_users ON users USING btree (name, userid);
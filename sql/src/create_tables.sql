@@ -1,10 +1,15 @@
+-- Foreign keys are added by create_foreign_keys.sql once the data is loaded.
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS Product CASCADE;
 DROP TABLE IF EXISTS Users CASCADE;
 DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
+DROP TABLE IF EXISTS SupplyShipments CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS StoreProductSales CASCADE;
+DROP TABLE IF EXISTS StoreCustomerOrders CASCADE;
+DROP TABLE IF EXISTS OrderJournalCheckpoint CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -22,17 +27,14 @@ CREATE TABLE Store ( storeID integer,
                      longitude decimal(9, 6) NOT NULL,
                      managerID integer NOT NULL,
 					 dateEstablished date,
-		             PRIMARY KEY(storeID), 
-                     FOREIGN KEY(managerID) REFERENCES Users(userID)
+		             PRIMARY KEY(storeID)
 );
 
 CREATE TABLE Product ( storeID integer NOT NULL, 
                        productName char(30) NOT NULL,
                        numberOfUnits integer NOT NULL,
                        pricePerUnit float NOT NULL,
-                       PRIMARY KEY(storeID, productName), 
-                       FOREIGN KEY(storeID) REFERENCES Store(storeID)
-		               ON DELETE CASCADE
+                       PRIMARY KEY(storeID, productName)
 );
 
 CREATE TABLE Warehouse ( WarehouseID integer,
@@ -48,9 +50,7 @@ CREATE TABLE Orders (
                      productName char(30) NOT NULL, 
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
-                     PRIMARY KEY(orderNumber),
-                     FOREIGN KEY(customerID) REFERENCES Users(userID),
-                     FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                     PRIMARY KEY(orderNumber)
 );
 
 CREATE TABLE ProductSupplyRequests (  
@@ -60,10 +60,17 @@ CREATE TABLE ProductSupplyRequests (
                                storeID integer NOT NULL,
                                productName char(30) NOT NULL, 
 							   unitsRequested integer NOT NULL,
-                               PRIMARY KEY(requestNumber),
-							   FOREIGN KEY(managerID) REFERENCES Users(userID), 
-                               FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID),
-                               FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+							   shipmentID integer,            --SupplyShipments row of a consolidated request, NULL otherwise
+                               PRIMARY KEY(requestNumber)
+);
+
+CREATE TABLE SupplyShipments (
+							   shipmentID serial NOT NULL,
+							   warehouseID integer NOT NULL,
+							   storeID integer NOT NULL,
+							   managerID integer NOT NULL,
+							   createdOn timestamp NOT NULL,
+							   PRIMARY KEY(shipmentID)
 );
 
 CREATE TABLE ProductUpdates (
@@ -72,7 +79,29 @@ CREATE TABLE ProductUpdates (
                         	storeID integer NOT NULL,
                        		productName char(30) NOT NULL, 
                             updatedOn timestamp NOT NULL,
-                        	PRIMARY KEY(updateNumber),
-                        	FOREIGN KEY(managerID) REFERENCES Users(userID),
-                        	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                        	PRIMARY KEY(updateNumber)
+);
+
+-- Running totals maintained by the trg_order_aggregates trigger so the popular
+-- products/customers reports never scan Orders. Rebuild with rebuild_sales_aggregates().
+CREATE TABLE StoreProductSales (
+							storeID integer NOT NULL,
+							productName char(30) NOT NULL,
+							unitsSold bigint NOT NULL,
+							PRIMARY KEY(storeID, productName)
+);
+
+CREATE TABLE StoreCustomerOrders (
+							storeID integer NOT NULL,
+							customerID integer NOT NULL,
+							orderCount bigint NOT NULL,
+							PRIMARY KEY(storeID, customerID)
+);
+
+-- Last sequence of a local order journal already written to Orders, updated in
+-- the same transaction as the orders so a replayed journal skips them.
+CREATE TABLE OrderJournalCheckpoint (
+							journal char(30) NOT NULL,
+							lastSequence bigint NOT NULL,
+							PRIMARY KEY(journal)
 );
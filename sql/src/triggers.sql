@@ -1,28 +1,138 @@
 DROP TRIGGER IF EXISTS trg_product_update ON Product;
 DROP TRIGGER IF EXISTS trg_new_order ON Orders;
+DROP TRIGGER IF EXISTS trg_store_change ON Store;
+DROP TRIGGER IF EXISTS trg_product_change ON Product;
+DROP TRIGGER IF EXISTS trg_order_aggregates ON Orders;
+DROP FUNCTION IF EXISTS product_units_update();
 
 CREATE OR REPLACE LANGUAGE plpgsql;
 CREATE OR REPLACE FUNCTION product_update()
 RETURNS "trigger" AS 
 $BODY$
 BEGIN
-  INSERT INTO ProductUpdates (storeid, productname, updatedon, managerid)
-  VALUES (NEW.storeid, NEW.productname, now(), (SELECT managerid FROM Store WHERE storeid = NEW.storeid));
+  -- sessions that set amazon.audit_mode to 'app' write the audit rows themselves, in batches
+  IF coalesce(current_setting('amazon.audit_mode', true), '') <> 'app' THEN
+    INSERT INTO ProductUpdates (storeid, productname, updatedon, managerid)
+    VALUES (NEW.storeid, NEW.productname, now(), (SELECT managerid FROM Store WHERE storeid = NEW.storeid));
+  END IF;
+  -- invalidate the application's cached catalog of this store; a minus sign
+  -- is not valid in a channel name, so negative ids are spelled with an m
+  EXECUTE 'NOTIFY product_changed_' || replace(NEW.storeid::text, '-', 'm');
   RETURN NEW;
 END;
 $BODY$
 LANGUAGE plpgsql VOLATILE;
 
+-- Invalidates the cached catalog of a store when products are added or removed.
 CREATE OR REPLACE LANGUAGE plpgsql;
-CREATE OR REPLACE FUNCTION product_units_update()
+CREATE OR REPLACE FUNCTION notify_product_change()
 RETURNS "trigger" AS 
 $BODY$
+BEGIN
+  IF TG_OP = 'DELETE' THEN
+    EXECUTE 'NOTIFY product_changed_' || replace(OLD.storeid::text, '-', 'm');
+  ELSE
+    EXECUTE 'NOTIFY product_changed_' || replace(NEW.storeid::text, '-', 'm');
+  END IF;
+  RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Places an order in a single statement. Stock is reserved with a conditional
+-- UPDATE so concurrent orders can never take numberOfUnits below zero.
+-- Returns the new order number, or a negative status:
+--   -1 customer or store does not exist
+--   -2 store is further than maxDistance from the customer
+--   -3 the store does not carry the product
+--   -4 not enough units in stock
+--   -5 units is not positive
+CREATE OR REPLACE LANGUAGE plpgsql;
+CREATE OR REPLACE FUNCTION place_order(customer integer, store integer, product char(30), units integer, maxDistance float)
+RETURNS integer AS 
+$BODY$
 DECLARE 
-  oldUnits  integer;
+  distance  float;
+  newOrder  integer;
 BEGIN
-  oldUnits := (SELECT numberOfUnits FROM Product WHERE storeID = NEW.storeID AND productName = NEW.productName);
-  UPDATE Product SET numberOfUnits = oldUnits - NEW.unitsOrdered WHERE storeID = NEW.storeID AND productname = NEW.productName;
-  RETURN NEW;
+  IF units <= 0 THEN
+    RETURN -5;
+  END IF;
+
+  SELECT sqrt((u.latitude - s.latitude) * (u.latitude - s.latitude) + (u.longitude - s.longitude) * (u.longitude - s.longitude))
+  INTO distance
+  FROM Users u, Store s
+  WHERE u.userID = customer AND s.storeID = store;
+  IF NOT FOUND THEN
+    RETURN -1;
+  END IF;
+  IF distance > maxDistance THEN
+    RETURN -2;
+  END IF;
+
+  UPDATE Product SET numberOfUnits = numberOfUnits - units
+  WHERE storeID = store AND productName = product AND numberOfUnits >= units;
+  IF NOT FOUND THEN
+    PERFORM 1 FROM Product WHERE storeID = store AND productName = product;
+    IF NOT FOUND THEN
+      RETURN -3;
+    END IF;
+    RETURN -4;
+  END IF;
+
+  INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)
+  VALUES (customer, store, product, units, now())
+  RETURNING orderNumber INTO newOrder;
+  RETURN newOrder;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Tells the application's in-memory store index to reload.
+CREATE OR REPLACE LANGUAGE plpgsql;
+CREATE OR REPLACE FUNCTION notify_store_change()
+RETURNS "trigger" AS 
+$BODY$
+BEGIN
+  NOTIFY store_changed;
+  RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Keeps the per-store sales aggregates current as orders are inserted.
+CREATE OR REPLACE LANGUAGE plpgsql;
+CREATE OR REPLACE FUNCTION order_aggregates_update()
+RETURNS "trigger" AS 
+$BODY$
+BEGIN
+  INSERT INTO StoreProductSales (storeID, productName, unitsSold)
+  VALUES (NEW.storeID, NEW.productName, NEW.unitsOrdered)
+  ON CONFLICT (storeID, productName) DO UPDATE SET unitsSold = StoreProductSales.unitsSold + EXCLUDED.unitsSold;
+
+  INSERT INTO StoreCustomerOrders (storeID, customerID, orderCount)
+  VALUES (NEW.storeID, NEW.customerID, 1)
+  ON CONFLICT (storeID, customerID) DO UPDATE SET orderCount = StoreCustomerOrders.orderCount + 1;
+  RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Recomputes the sales aggregates from the full Orders history, e.g. after a
+-- bulk load or to recover from drift.
+CREATE OR REPLACE LANGUAGE plpgsql;
+CREATE OR REPLACE FUNCTION rebuild_sales_aggregates()
+RETURNS void AS 
+$BODY$
+BEGIN
+  LOCK TABLE Orders IN SHARE MODE;
+  TRUNCATE StoreProductSales, StoreCustomerOrders;
+
+  INSERT INTO StoreProductSales (storeID, productName, unitsSold)
+  SELECT storeID, productName, SUM(unitsOrdered) FROM Orders GROUP BY storeID, productName;
+
+  INSERT INTO StoreCustomerOrders (storeID, customerID, orderCount)
+  SELECT storeID, customerID, COUNT(*) FROM Orders GROUP BY storeID, customerID;
 END;
 $BODY$
 LANGUAGE plpgsql VOLATILE;
@@ -31,6 +141,14 @@ CREATE TRIGGER trg_product_update
 AFTER UPDATE ON Product
 FOR EACH ROW EXECUTE PROCEDURE product_update();
 
-CREATE TRIGGER trg_new_order
+CREATE TRIGGER trg_product_change
+AFTER INSERT OR DELETE ON Product
+FOR EACH ROW EXECUTE PROCEDURE notify_product_change();
+
+CREATE TRIGGER trg_order_aggregates
 AFTER INSERT ON Orders
-FOR EACH ROW EXECUTE PROCEDURE product_units_update();
\ No newline at end of file
+FOR EACH ROW EXECUTE PROCEDURE order_aggregates_update();
+
+CREATE TRIGGER trg_store_change
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Store
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_store_change();